@@ -24,40 +24,108 @@ import android.accounts.Account;
 import android.accounts.AccountManagerFuture;
 import android.app.Activity;
 import android.os.Bundle;
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.Request;
+import retrofit.http.TokenProvider;
 import rx.Observable;
 import rx.functions.*;
 import javax.inject.Singleton;
 import android.util.Log;
 
+/**
+ * Adds an {@link AccountManager} auth token to each request. The token is cached in a
+ * {@link TokenProvider}, so concurrent first calls share one fetch, which runs off the calling
+ * thread; a 401 invalidates the token with the AccountManager and the request is sent once more
+ * with a new one.
+ *
+ * <p>One instance serves every caller. The context of each call is handed to the fetch it starts,
+ * and is not kept; only its application context is, to invalidate tokens with.
+ */
 @Singleton
-public abstract class AuthenticationInterceptor extends retrofit.http.Retrofit.SimpleRequestInterceptor {
-    String token;
-    Activity activity;
-    Context context;
+public abstract class AuthenticationInterceptor extends retrofit.http.Retrofit.SimpleRequestInterceptor
+        implements retrofit.http.Retrofit.TokenInterceptor {
+    volatile Context context;
+
+    final TokenProvider tokens = new TokenProvider() {
+        @Override protected Token fetch(Object context) throws Exception {
+            if (context instanceof Context) {
+                AuthenticationInterceptor.this.context = ((Context) context).getApplicationContext();
+            } else {
+                context = AuthenticationInterceptor.this.context;
+            }
+            if (context == null) throw new IllegalStateException("No context to get an auth token with");
+            String token = getAuthToken((Context) context, accountType(), authTokenType());
+            if (token == null) throw new IllegalStateException("No auth token for " + accountType());
+            long lifetimeMs = tokenLifetimeMs();
+            return lifetimeMs == Long.MAX_VALUE ? Token.of(token)
+                    : new Token(token, System.currentTimeMillis() + lifetimeMs);
+        }
+
+        @Override protected void onInvalidate(String token) {
+            if (context != null) getAccountManager(context).invalidateAuthToken(accountType(), token);
+        }
+    };
 
     public abstract String accountType();
     public abstract String authTokenType();
     public abstract void intercept(String token, RequestFacade request);
 
+    /** How long a fetched token stays valid; unknown by default, so it lasts until a 401. */
+    public long tokenLifetimeMs() {
+        return Long.MAX_VALUE;
+    }
+
+    /** The application context of the last fetch, or null before the first one. */
     public Context context() {
         return context;
     }
 
+    /**
+     * @deprecated The activity of a call is passed to the fetch it starts and is not kept, so that
+     *     callers with different activities can share this interceptor. Always returns null.
+     */
+    @Deprecated
     public Activity activity() {
-        return activity;
+        return null;
+    }
+
+    @Override
+    public Observable<?> ready(Object context) {
+        return tokens.token(context);
     }
 
     @Override
     public void intercept(Object context, RequestFacade request) {
-        this.activity = (Activity) context;
-        this.context = (Context) context;
-        if (token == null) token = getAuthToken(activity, accountType(), authTokenType());
-        intercept(token, request);
+        intercept(tokens.blockingToken(context), request);
+    }
+
+    @Override
+    public boolean unauthorized(Request request) {
+        // Only a request that carried the cached token is worth sending again, with a new one.
+        String token = tokens.peek();
+        if (token != null) {
+            Headers headers = request.headers();
+            for (int i = 0; i < headers.size(); i++) {
+                if (headers.value(i).contains(token)) {
+                    return tokens.invalidate(token);
+                }
+            }
+        }
+        return false;
     }
 
     public String getAuthToken(Activity activity, String accountType, String authTokenType) {
+        return getAuthToken((Context) activity, accountType, authTokenType);
+    }
+
+    /**
+     * Gets an auth token with the {@link AccountManager} of {@code context}. Only an {@link Activity}
+     * can prompt for credentials; with any other context the user is notified instead.
+     */
+    public String getAuthToken(Context context, String accountType, String authTokenType) {
         Log.d("retrogithub", "getAuthToken");
-        AccountManager accountManager = AccountManager.get(activity);
+        AccountManager accountManager = getAccountManager(context);
+        Activity activity = context instanceof Activity ? (Activity) context : null;
         Account account = getAccount(accountManager, accountType);
         Log.d("retrogithub", "account: " + account);
         AccountManagerFuture<Bundle> bundleTask = null;
@@ -66,7 +134,11 @@ public abstract class AuthenticationInterceptor extends retrofit.http.Retrofit.S
             bundleTask = accountManager.addAccount(accountType, authTokenType, null, null, activity, null, null);
         } else {
             Log.d("retrogithub", "getAuthToken");
-            bundleTask = accountManager.getAuthToken(account, authTokenType, null, activity, null, null);
+            if (activity != null) {
+                bundleTask = accountManager.getAuthToken(account, authTokenType, null, activity, null, null);
+            } else {
+                bundleTask = accountManager.getAuthToken(account, authTokenType, null, true, null, null);
+            }
         }
 
         if (bundleTask == null) {
@@ -90,6 +162,10 @@ public abstract class AuthenticationInterceptor extends retrofit.http.Retrofit.S
         return tokenBundle.getString(AccountManager.KEY_AUTHTOKEN);
     }
 
+    public AccountManager getAccountManager(Context context) {
+        return AccountManager.get(context);
+    }
+
     public Account getAccount(AccountManager accountManager, String accountType) {
         Log.d("retrogithub", "getAccount");
         Account[] accounts = accountManager.getAccountsByType(accountType);
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.AccountManagerCallback;
+import android.accounts.AccountManagerFuture;
+import android.app.Activity;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+
+import com.squareup.okhttp.Request;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class AuthenticationInterceptorTest {
+    final Account account = new Account("octocat", "com.github");
+    final AccountManager accountManager = mock(AccountManager.class);
+    Context managerContext;
+
+    final AuthenticationInterceptor interceptor = new AuthenticationInterceptor() {
+        @Override public String accountType() {
+            return "com.github";
+        }
+
+        @Override public String authTokenType() {
+            return "repo";
+        }
+
+        @Override public void intercept(String token, RequestFacade request) {
+        }
+
+        @Override public AccountManager getAccountManager(Context context) {
+            managerContext = context;
+            return accountManager;
+        }
+    };
+
+    /** Returns a non-Activity context whose account has the auth token {@code token}. */
+    @SuppressWarnings("unchecked")
+    Context context(String token) throws Exception {
+        Context context = mock(Context.class);
+        when(context.getApplicationContext()).thenReturn(context);
+        Bundle bundle = new Bundle();
+        bundle.putString(AccountManager.KEY_AUTHTOKEN, token);
+        AccountManagerFuture<Bundle> future = mock(AccountManagerFuture.class);
+        when(future.getResult()).thenReturn(bundle);
+        when(accountManager.getAccountsByType("com.github")).thenReturn(new Account[] { account });
+        when(accountManager.getAuthToken(eq(account), eq("repo"), (Bundle) isNull(), eq(true),
+                (AccountManagerCallback<Bundle>) isNull(), (Handler) isNull())).thenReturn(future);
+        return context;
+    }
+
+    Request request(String authorization) {
+        return new Request.Builder()
+                .url("https://example.com/user")
+                .header("Authorization", authorization)
+                .build();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testNonActivityContext() throws Exception {
+        Context context = context("t1");
+
+        assertEquals("t1", interceptor.ready(context).toBlocking().single());
+        assertSame(context, managerContext);
+        assertSame(context, interceptor.context());
+        verify(accountManager, never()).getAuthToken(any(Account.class), any(String.class),
+                any(Bundle.class), any(Activity.class), any(AccountManagerCallback.class),
+                any(Handler.class));
+    }
+
+    @Test
+    public void testUnauthorizedRetriesOnlyWhenTokenWasDropped() throws Exception {
+        interceptor.ready(context("t1")).toBlocking().single();
+
+        assertFalse(interceptor.unauthorized(request("token other")));
+        verify(accountManager, never()).invalidateAuthToken(any(String.class), any(String.class));
+
+        assertTrue(interceptor.unauthorized(request("token t1")));
+        verify(accountManager).invalidateAuthToken("com.github", "t1");
+        assertFalse(interceptor.unauthorized(request("token t1")));
+    }
+}
@@ -0,0 +1,1878 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrofit.processor;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.squareup.javapoet.AnnotationSpec;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.JavaFile;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeName;
+import com.squareup.javapoet.TypeSpec;
+import com.squareup.javapoet.TypeVariableName;
+import com.squareup.javapoet.WildcardTypeName;
+
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.TypeVariable;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+
+import retrofit.http.Retrofit;
+import retrofit.processor.RetrofitProcessor.Property;
+
+/**
+ * Writes a generated class with JavaPoet instead of {@code retrofit.vm}, for
+ * {@code -Aretrofit.backend=javapoet}. The class behaves the same as the template's: same fields,
+ * methods and statements, in the same order. But every type is a {@link TypeName}, so JavaPoet
+ * works out the imports and the layout as it writes, and {@link Reformatter} has nothing to do.
+ *
+ * <p>The constructor reads the types it needs from the compiler's model, so it must run on the
+ * compiler thread. {@link #generate()} only reads what the constructor kept and the template
+ * variables, so it can run on a render thread.
+ */
+final class JavaPoetGenerator {
+  static final String BACKEND = "javapoet";
+
+  private static final ClassName OBSERVABLE = ClassName.get(rx.Observable.class);
+  private static final ClassName ON_SUBSCRIBE = ClassName.get(rx.Observable.OnSubscribe.class);
+  private static final ClassName SUBSCRIBER = ClassName.get(rx.Subscriber.class);
+  private static final ClassName FUNC1 = ClassName.get(rx.functions.Func1.class);
+  private static final ClassName ACTION1 = ClassName.get(rx.functions.Action1.class);
+  private static final ClassName SCHEDULER = ClassName.get(rx.Scheduler.class);
+  private static final ClassName SCHEDULERS = ClassName.get(rx.schedulers.Schedulers.class);
+
+  private static final ClassName REQUEST = ClassName.get(com.squareup.okhttp.Request.class);
+  private static final ClassName REQUEST_BUILDER = REQUEST.nestedClass("Builder");
+  private static final ClassName RESPONSE = ClassName.get(com.squareup.okhttp.Response.class);
+  private static final ClassName OK_HTTP_CLIENT =
+      ClassName.get(com.squareup.okhttp.OkHttpClient.class);
+  private static final ClassName OK_HTTP_CALLBACK =
+      ClassName.get(com.squareup.okhttp.Callback.class);
+  private static final ClassName HEADERS = ClassName.get(com.squareup.okhttp.Headers.class);
+  private static final ClassName MEDIA_TYPE = ClassName.get(com.squareup.okhttp.MediaType.class);
+  private static final ClassName REQUEST_BODY =
+      ClassName.get(com.squareup.okhttp.RequestBody.class);
+  private static final ClassName RESPONSE_BODY =
+      ClassName.get(com.squareup.okhttp.ResponseBody.class);
+  private static final ClassName MULTIPART_BUILDER =
+      ClassName.get(com.squareup.okhttp.MultipartBuilder.class);
+  private static final ClassName HTTP_URL = ClassName.get(com.squareup.okhttp.HttpUrl.class);
+  private static final ClassName HTTP_URL_BUILDER = HTTP_URL.nestedClass("Builder");
+  private static final ClassName CACHE = ClassName.get(com.squareup.okhttp.Cache.class);
+  private static final ClassName PROTOCOL = ClassName.get(com.squareup.okhttp.Protocol.class);
+  private static final ClassName CONNECTION_POOL =
+      ClassName.get(com.squareup.okhttp.ConnectionPool.class);
+
+  private static final ClassName RETROFIT_ERROR = ClassName.get(retrofit.RetrofitError.class);
+  private static final ClassName RETROFIT_ERROR_KIND = RETROFIT_ERROR.nestedClass("Kind");
+  private static final ClassName ERROR_HANDLER = ClassName.get(retrofit.ErrorHandler.class);
+  private static final ClassName REQUEST_INTERCEPTOR =
+      ClassName.get(retrofit.RequestInterceptor.class);
+  private static final ClassName REQUEST_FACADE = REQUEST_INTERCEPTOR.nestedClass("RequestFacade");
+  private static final ClassName LOG_LEVEL = ClassName.get(retrofit.RestAdapter.LogLevel.class);
+  private static final ClassName CLIENT_RESPONSE = ClassName.get(retrofit.client.Response.class);
+  private static final ClassName CLIENT_HEADER = ClassName.get(retrofit.client.Header.class);
+  private static final ClassName CONVERTER = ClassName.get(retrofit.converter.Converter.class);
+  private static final ClassName LOGAN_SQUARE_CONVERTER =
+      ClassName.get("retrofit.converter", "LoganSquareConverter");
+  private static final ClassName TYPED_INPUT = ClassName.get(retrofit.mime.TypedInput.class);
+  private static final ClassName TYPED_OUTPUT = ClassName.get(retrofit.mime.TypedOutput.class);
+  private static final ClassName TYPED_BYTE_ARRAY =
+      ClassName.get(retrofit.mime.TypedByteArray.class);
+  private static final ClassName GSON = ClassName.get("com.google.gson", "Gson");
+
+  private static final ClassName RETROFIT = ClassName.get(Retrofit.class);
+  private static final ClassName SIMPLE_REQUEST_INTERCEPTOR =
+      RETROFIT.nestedClass("SimpleRequestInterceptor");
+  private static final ClassName REQUEST_AUTHENTICATOR =
+      RETROFIT.nestedClass("RequestAuthenticator");
+  private static final ClassName ASYNC_CALL = ClassName.get(retrofit.http.AsyncCall.class);
+  private static final ClassName BATCHER = ClassName.get(retrofit.http.Batcher.class);
+  private static final ClassName BATCHER_LOADER = BATCHER.nestedClass("Loader");
+  private static final ClassName CACHING_AUTHENTICATOR =
+      ClassName.get(retrofit.http.CachingAuthenticator.class);
+  private static final ClassName CONNECTION_STATS =
+      ClassName.get(retrofit.http.ConnectionStats.class);
+  private static final ClassName FORM_BODY_BUILDER =
+      ClassName.get(retrofit.http.FormBody.class).nestedClass("Builder");
+  private static final ClassName GZIP_REQUEST_BODY =
+      ClassName.get(retrofit.http.GzipRequestBody.class);
+  private static final ClassName HTTP_LOGGER = ClassName.get(retrofit.http.HttpLogger.class);
+  private static final ClassName HTTP_LOGGER_LOG = HTTP_LOGGER.nestedClass("Log");
+  private static final ClassName PERMISSIONS = ClassName.get(retrofit.http.Permissions.class);
+  private static final ClassName REQUEST_EXCEPTION =
+      ClassName.get(retrofit.http.RequestException.class);
+  private static final ClassName ROUTE = ClassName.get(retrofit.http.Route.class);
+  private static final ClassName ROUTE_PARAM = ROUTE.nestedClass("Param");
+  private static final ClassName ROUTE_SHAPE = ROUTE.nestedClass("Shape");
+  private static final ClassName ROUTE_BINDING = ROUTE.nestedClass("Binding");
+  private static final ClassName TOKEN_PROVIDER = ClassName.get(retrofit.http.TokenProvider.class);
+  private static final ClassName TRACER = ClassName.get(retrofit.http.Tracer.class);
+  private static final ClassName TRACE = TRACER.nestedClass("Trace");
+  private static final ClassName TYPE_TOKEN = ClassName.get(retrofit.http.TypeToken.class);
+  private static final ClassName VIRTUAL_THREADS =
+      ClassName.get(retrofit.http.VirtualThreads.class);
+
+  private static final ClassName COMPLETABLE_FUTURE =
+      ClassName.get("java.util.concurrent", "CompletableFuture");
+  private static final ClassName SETTABLE_FUTURE =
+      ClassName.get("com.google.common.util.concurrent", "SettableFuture");
+  private static final ClassName IO_EXCEPTION = ClassName.get(java.io.IOException.class);
+  private static final ClassName INPUT_STREAM = ClassName.get(java.io.InputStream.class);
+  private static final ClassName BYTE_ARRAY_INPUT_STREAM =
+      ClassName.get(java.io.ByteArrayInputStream.class);
+  private static final ClassName BYTE_ARRAY_OUTPUT_STREAM =
+      ClassName.get(java.io.ByteArrayOutputStream.class);
+  private static final ClassName TYPE = ClassName.get(java.lang.reflect.Type.class);
+  private static final ClassName LIST = ClassName.get(List.class);
+  private static final ClassName ARRAY_LIST = ClassName.get(ArrayList.class);
+  private static final ClassName MAP_ENTRY = ClassName.get(Map.Entry.class);
+  private static final ClassName SET = ClassName.get(java.util.Set.class);
+  private static final ClassName ARRAYS = ClassName.get(java.util.Arrays.class);
+  private static final ClassName BIT_SET = ClassName.get(java.util.BitSet.class);
+  private static final ClassName TIME_UNIT = ClassName.get(java.util.concurrent.TimeUnit.class);
+  private static final ClassName CHARSET = ClassName.get(java.nio.charset.Charset.class);
+  private static final ClassName URL_DECODER = ClassName.get(java.net.URLDecoder.class);
+  private static final ClassName STRING = ClassName.get(String.class);
+  private static final ClassName THROWABLE = ClassName.get(Throwable.class);
+  private static final TypeName WILDCARD = WildcardTypeName.subtypeOf(Object.class);
+
+  private static final TypeName OBSERVABLE_REQUEST = ParameterizedTypeName.get(OBSERVABLE, REQUEST);
+  private static final TypeName OBSERVABLE_RESPONSE =
+      ParameterizedTypeName.get(OBSERVABLE, RESPONSE);
+
+  /**
+   * Holds the members {@link #addSupport} copies. They only vary with virtual threads, so they are
+   * built once rather than for every generated class.
+   */
+  private static final TypeSpec SUPPORT = support(false);
+  private static final TypeSpec VIRTUAL_THREAD_SUPPORT = support(true);
+
+  /** The types that one property's code is written with, resolved on the compiler thread. */
+  private static final class Signature {
+    final Modifier access;
+    final TypeName returnType;
+    final ImmutableList<ParameterSpec> parameters;
+    /**
+     * What the property produces: {@code T} for {@code Observable<T>}, {@code Callback<T>} or a
+     * future of {@code T}, and otherwise the return type.
+     */
+    final TypeName resultType;
+    /** The method's {@code @Converter}, or null. */
+    final TypeName converter;
+    /** The method's {@code @RequestInterceptor}, or null. */
+    final TypeName requestInterceptor;
+
+    Signature(Property p, Elements elementUtils) {
+      ExecutableElement method = p.method();
+      this.access = p.getAccess().equals("public ") ? Modifier.PUBLIC
+          : p.getAccess().equals("protected ") ? Modifier.PROTECTED : null;
+      this.returnType = TypeName.get(method.getReturnType());
+      ImmutableList.Builder<ParameterSpec> parameters = ImmutableList.builder();
+      TypeMirror callbackType = null;
+      for (VariableElement parameter : method.getParameters()) {
+        String name = parameter.getSimpleName().toString();
+        parameters.add(
+            ParameterSpec.builder(TypeName.get(parameter.asType()), name, Modifier.FINAL).build());
+        if (name.equals(p.getCallbackName())) {
+          callbackType = parameter.asType();
+        }
+      }
+      this.parameters = parameters.build();
+      TypeMirror result = method.getReturnType();
+      if (p.isObservable() || !p.getFuture().equals("")) {
+        result = firstTypeArgument(result);
+      } else if (p.isCallback()) {
+        result = firstTypeArgument(callbackType);
+      }
+      this.resultType = result == null ? TypeName.OBJECT : TypeName.get(result);
+      this.converter = classValue(method, Retrofit.Converter.class, "value", elementUtils);
+      this.requestInterceptor =
+          classValue(method, Retrofit.RequestInterceptor.class, "value", elementUtils);
+    }
+
+    private static TypeMirror firstTypeArgument(TypeMirror type) {
+      if (type instanceof DeclaredType) {
+        List<? extends TypeMirror> arguments = ((DeclaredType) type).getTypeArguments();
+        if (!arguments.isEmpty()) {
+          return arguments.get(0);
+        }
+      }
+      return null;
+    }
+  }
+
+  private final RetrofitTemplateVars vars;
+  private final ClassName subclass;
+  private final TypeName superclass;
+  private final ImmutableList<TypeVariableName> typeVariables;
+  private final AnnotationSpec gwtCompatible;
+  private final TypeName converter;
+  private final TypeName errorHandler;
+  private final TypeName requestInterceptor;
+  private final TypeName authenticator;
+  private final TypeName okHttpClient;
+  private final TypeName requestExecutor;
+  private final TypeName parseExecutor;
+  private final TypeName callbackExecutor;
+  private final TypeName builderType;
+  private final ImmutableList<TypeVariableName> builderTypeVariables;
+  private final Map<Property, Signature> signatures = new IdentityHashMap<Property, Signature>();
+
+  private final ClassName onSubscribeResponse;
+  private final ClassName jsonTypedInput;
+  private final ClassName simpleRequestFacade;
+  private final ClassName converted;
+
+  JavaPoetGenerator(TypeElement type, RetrofitTemplateVars vars,
+      GwtCompatibility gwtCompatibility, ProcessingEnvironment processingEnv) {
+    Elements elementUtils = processingEnv.getElementUtils();
+    this.vars = vars;
+    this.subclass = ClassName.get(vars.pkg, vars.subclass);
+    this.superclass = TypeName.get(type.asType());
+    this.typeVariables = typeVariables(type);
+    this.gwtCompatible = gwtCompatibility.gwtCompatibleAnnotation().isPresent()
+        ? AnnotationSpec.get(gwtCompatibility.gwtCompatibleAnnotation().get())
+        : null;
+    this.converter = classValue(type, Retrofit.Converter.class, "value", elementUtils);
+    this.errorHandler = classValue(type, Retrofit.ErrorHandler.class, "value", elementUtils);
+    this.requestInterceptor =
+        classValue(type, Retrofit.RequestInterceptor.class, "value", elementUtils);
+    this.authenticator = classValue(type, Retrofit.Authenticator.class, "value", elementUtils);
+    this.okHttpClient = classValue(type, Retrofit.OkHttpClient.class, "value", elementUtils);
+    this.requestExecutor = classValue(type, Retrofit.Executors.class, "request", elementUtils);
+    this.parseExecutor = classValue(type, Retrofit.Executors.class, "parse", elementUtils);
+    this.callbackExecutor = classValue(type, Retrofit.Executors.class, "callback", elementUtils);
+    TypeElement builder = null;
+    for (TypeElement nested : ElementFilter.typesIn(type.getEnclosedElements())) {
+      if (nested.getAnnotation(Retrofit.Builder.class) != null) {
+        builder = nested;
+      }
+    }
+    this.builderType = builder == null ? null : TypeName.get(builder.asType());
+    this.builderTypeVariables = builder == null
+        ? ImmutableList.<TypeVariableName>of()
+        : typeVariables(builder);
+    for (Property p : vars.props) {
+      signatures.put(p, new Signature(p, elementUtils));
+    }
+    for (Property p : vars.builderProps) {
+      signatures.put(p, new Signature(p, elementUtils));
+    }
+    this.onSubscribeResponse = subclass.nestedClass("OnSubscribeResponse");
+    this.jsonTypedInput = subclass.nestedClass("JsonTypedInput");
+    this.simpleRequestFacade = subclass.nestedClass("SimpleRequestFacade");
+    this.converted = subclass.nestedClass("Converted");
+  }
+
+  private static ImmutableList<TypeVariableName> typeVariables(TypeElement type) {
+    ImmutableList.Builder<TypeVariableName> variables = ImmutableList.builder();
+    for (TypeParameterElement parameter : type.getTypeParameters()) {
+      variables.add(TypeVariableName.get((TypeVariable) parameter.asType()));
+    }
+    return variables.build();
+  }
+
+  /**
+   * Returns the class given as {@code member} of the {@code annotation} on {@code element},
+   * defaults included, or null if the element doesn't have that annotation.
+   */
+  private static TypeName classValue(Element element, Class<? extends Annotation> annotation,
+      String member, Elements elementUtils) {
+    for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+      TypeElement annotationType = (TypeElement) mirror.getAnnotationType().asElement();
+      if (!annotationType.getQualifiedName().contentEquals(annotation.getCanonicalName())) {
+        continue;
+      }
+      for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+          : elementUtils.getElementValuesWithDefaults(mirror).entrySet()) {
+        if (entry.getKey().getSimpleName().contentEquals(member)) {
+          return TypeName.get((TypeMirror) entry.getValue().getValue());
+        }
+      }
+    }
+    return null;
+  }
+
+  /** Returns the source of the generated class. */
+  String generate() {
+    TypeSpec.Builder type = TypeSpec.classBuilder(vars.subclass)
+        .addJavadoc("@see $S\n", "https://github.com/square/okhttp/wiki/Recipes")
+        .addModifiers(Modifier.PUBLIC, Modifier.FINAL)
+        .addTypeVariables(typeVariables)
+        .superclass(superclass);
+    if (gwtCompatible != null) {
+      type.addAnnotation(gwtCompatible);
+    }
+    addConstants(type);
+    addFields(type);
+    if (!vars.builderTypeName.equals("")) {
+      type.addMethod(defaultConstructor());
+    }
+    type.addMethod(constructor());
+    for (Property p : vars.props) {
+      if (p.isConnectionStats()) {
+        type.addMethod(overriding(p).addStatement("return connectionStats").build());
+      } else if (p.getBatch() != null) {
+        addBatch(type, p);
+      } else {
+        type.addMethod(overriding(p).addCode(body(p)).build());
+      }
+    }
+    addSupport(type);
+    if (!vars.builderTypeName.equals("")) {
+      addBuilder(type);
+    }
+    return JavaFile.builder(vars.pkg, type.build())
+        .skipJavaLangImports(true)
+        .indent("    ")
+        .build()
+        .toString();
+  }
+
+  private boolean authenticates(Property p) {
+    return !vars.authenticator.equals("") && (p.isAuthenticated() || vars.authenticated);
+  }
+
+  /** Whether requests are prepared on {@code requestScheduler}, which may block. */
+  private boolean preparesOnRequestScheduler(Property p) {
+    return vars.virtualThreads || authenticates(p);
+  }
+
+  /** The interceptors that {@code TokenProvider} asks for tokens before a call is prepared. */
+  private String tokenInterceptors(Property p) {
+    StringBuilder interceptors = new StringBuilder("requestInterceptor");
+    if (!p.getRequestInterceptor().equals("")) {
+      interceptors.append(", finalRequestInterceptor");
+    }
+    if (authenticates(p)) {
+      interceptors.append(", requestAuthenticator");
+    }
+    return interceptors.toString();
+  }
+
+  /** Whether the converter is given a {@code Type} from a {@code TypeToken} rather than a class. */
+  private static boolean usesTypeToken(Property p) {
+    // A blocking method has no typeArgs2, and the template treats that as having one.
+    return p.getTypeArgs2() == null || !p.getTypeArgs2().equals("");
+  }
+
+  private static TypeName observableOf(TypeName type) {
+    return ParameterizedTypeName.get(OBSERVABLE, type.box());
+  }
+
+  private static TypeName func1Of(TypeName from, TypeName to) {
+    return ParameterizedTypeName.get(FUNC1, from.box(), to.box());
+  }
+
+  /** An anonymous {@code Func1<F, T>} whose {@code call(F parameter)} runs {@code body}. */
+  private static TypeSpec func1(TypeName from, TypeName to, String parameter, CodeBlock body) {
+    return TypeSpec.anonymousClassBuilder("")
+        .addSuperinterface(func1Of(from, to))
+        .addMethod(MethodSpec.methodBuilder("call")
+            .addAnnotation(Override.class)
+            .addModifiers(Modifier.PUBLIC)
+            .returns(to.box())
+            .addParameter(from.box(), parameter)
+            .addCode(body)
+            .build())
+        .build();
+  }
+
+  /** An anonymous {@code Action1<T>} whose {@code call(T parameter)} runs {@code body}. */
+  private static TypeSpec action1(TypeName type, String parameter, CodeBlock body) {
+    return TypeSpec.anonymousClassBuilder("")
+        .addSuperinterface(ParameterizedTypeName.get(ACTION1, type.box()))
+        .addMethod(MethodSpec.methodBuilder("call")
+            .addAnnotation(Override.class)
+            .addModifiers(Modifier.PUBLIC)
+            .addParameter(type.box(), parameter)
+            .addCode(body)
+            .build())
+        .build();
+  }
+
+  /** {@code new TypeToken<T>() {}}, whose {@code getType()} keeps {@code T}'s arguments. */
+  private static TypeSpec typeToken(TypeName type) {
+    return TypeSpec.anonymousClassBuilder("")
+        .superclass(ParameterizedTypeName.get(TYPE_TOKEN, type.box()))
+        .build();
+  }
+
+  /** Quotes text that is already escaped for use inside a Java string literal. */
+  private static String quoted(String escaped) {
+    return "\"" + escaped + "\"";
+  }
+
+  private void addConstants(TypeSpec.Builder type) {
+    type.addField(FieldSpec.builder(STRING, "_MIME_APP_JSON",
+            Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+        .initializer("$S", "applications/json")
+        .build());
+    type.addField(FieldSpec.builder(STRING, "_CHARSET_UTF8",
+            Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+        .initializer("$S", "charset=utf-8")
+        .build());
+    type.addField(FieldSpec.builder(STRING, "_MIME_APP_JSON_CHARSET_UTF8",
+            Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+        .initializer("_MIME_APP_JSON + $S + _CHARSET_UTF8", "; ")
+        .build());
+    for (Property p : vars.props) {
+      if (!p.getRouteConstant().equals("")) {
+        type.addField(FieldSpec.builder(TypeName.INT, p.getRouteConstant(),
+                Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+            .initializer("$L", p.getRouteId())
+            .build());
+      }
+    }
+    for (Map.Entry<String, String> set : vars.permissionSets.entrySet()) {
+      type.addField(FieldSpec.builder(ParameterizedTypeName.get(SET, STRING), set.getKey(),
+              Modifier.STATIC, Modifier.FINAL)
+          .initializer("$T.of($L)", PERMISSIONS, set.getValue())
+          .build());
+    }
+    if (!vars.requestExecutor.equals("")) {
+      type.addField(FieldSpec.builder(SCHEDULER, "REQUEST_SCHEDULER",
+              Modifier.STATIC, Modifier.FINAL)
+          .initializer("$T.from(new $T())", SCHEDULERS, requestExecutor)
+          .build());
+    }
+    if (!vars.parseExecutor.equals("")) {
+      type.addField(FieldSpec.builder(SCHEDULER, "PARSE_SCHEDULER",
+              Modifier.STATIC, Modifier.FINAL)
+          .initializer("$T.from(new $T())", SCHEDULERS, parseExecutor)
+          .build());
+    }
+    if (!vars.callbackExecutor.equals("")) {
+      type.addField(FieldSpec.builder(SCHEDULER, "CALLBACK_SCHEDULER",
+              Modifier.STATIC, Modifier.FINAL)
+          .initializer("$T.from(new $T())", SCHEDULERS, callbackExecutor)
+          .build());
+    }
+    type.addField(FieldSpec.builder(ParameterizedTypeName.get(LIST, ROUTE), "ROUTES",
+            Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+        .initializer(routes())
+        .build());
+  }
+
+  /** The {@code ROUTES} table: one {@code Route} per HTTP method, in source order. */
+  private CodeBlock routes() {
+    boolean retries = !vars.retryHeaders.isEmpty();
+    CodeBlock.Builder routes = CodeBlock.builder().add("$T.table(\n$>$>", ROUTE);
+    String separator = "";
+    for (Property p : vars.props) {
+      if (p.getRouteConstant().equals("")) {
+        continue;
+      }
+      Signature s = signatures.get(p);
+      routes.add(separator);
+      routes.add("new $T($L, $S, $S, $L,\n", ROUTE, p.getRouteConstant(), p.getGetter(),
+          p.getHttpMethod(), quoted(p.getUrl()));
+      routes.add("$>$>$T.$L, $L,\n", ROUTE_SHAPE, p.getShape(), quoted(p.getRouteResultType()));
+      if (s.converter != null && !p.getConverter().equals("")) {
+        routes.add("$T.class,\n", s.converter);
+      } else if (!vars.converter.equals("")) {
+        routes.add("$T.class,\n", converter);
+      } else {
+        routes.add("null,\n");
+      }
+      routes.add("$L, $L,\n", authenticates(p), retries);
+      routes.add("new $T[] {$L}", STRING, Joiner.on(", ").join(p.getPermissionLiterals()));
+      for (RetrofitProcessor.RouteParam param : p.getRouteParams()) {
+        routes.add(",\nnew $T($T.$L, $S, $L)", ROUTE_PARAM, ROUTE_BINDING, param.getBinding(),
+            param.getName(), quoted(param.getKey()));
+      }
+      routes.add(")$<$<");
+      separator = ",\n";
+    }
+    return routes.add("$<$<)").build();
+  }
+
+  private void addFields(TypeSpec.Builder type) {
+    type.addField(OK_HTTP_CLIENT, "okHttpClient");
+    type.addField(CONVERTER, "converter");
+    type.addField(LOG_LEVEL, "logLevel");
+    type.addField(HTTP_LOGGER, "httpLogger");
+    type.addField(TRACER, "tracer");
+    type.addField(FieldSpec.builder(SCHEDULER, "requestScheduler")
+        .addJavadoc("Where requests are prepared, including any blocking authenticator.\n")
+        .build());
+    type.addField(FieldSpec.builder(SCHEDULER, "parseScheduler")
+        .addJavadoc("Where response bodies are read and converted; immediate runs them where they"
+            + " arrive.\n")
+        .build());
+    type.addField(FieldSpec.builder(SCHEDULER, "callbackScheduler")
+        .addJavadoc("Where callbacks are called; immediate calls them where the result arrives.\n")
+        .build());
+    for (String logger : vars.methodLoggers.values()) {
+      type.addField(HTTP_LOGGER, logger);
+    }
+    type.addField(FieldSpec.builder(REQUEST_INTERCEPTOR, "requestInterceptor")
+        .initializer("$T.NONE", REQUEST_INTERCEPTOR)
+        .build());
+    type.addField(FieldSpec.builder(ERROR_HANDLER, "errorHandler")
+        .initializer("$T.DEFAULT", ERROR_HANDLER)
+        .build());
+    type.addField(REQUEST_AUTHENTICATOR, "requestAuthenticator");
+    type.addField(FieldSpec.builder(Object.class, "context")
+        .addJavadoc("The context for interceptors and the authenticator, unless a method has a"
+            + " {@code @Context}.\n")
+        .build());
+    for (String field : vars.requestInterceptorFields.keySet()) {
+      FieldSpec.Builder interceptor = FieldSpec.builder(REQUEST_INTERCEPTOR, field);
+      if (vars.singletonRequestInterceptorFields.contains(field)) {
+        interceptor.addModifiers(Modifier.STATIC);
+      }
+      type.addField(interceptor.addModifiers(Modifier.FINAL)
+          .initializer("new $T()", requestInterceptorType(field))
+          .build());
+    }
+    type.addField(String[].class, "retryHeaders");
+    type.addField(String[].class, "headers");
+    type.addField(CACHE, "cache");
+    type.addField(STRING, "baseUrl");
+    if (vars.connectionStats) {
+      type.addField(FieldSpec.builder(CONNECTION_STATS, "connectionStats", Modifier.FINAL)
+          .initializer("new $T()", CONNECTION_STATS)
+          .build());
+    }
+  }
+
+  /** The type of a per-method {@code @RequestInterceptor} field, from the first method using it. */
+  private TypeName requestInterceptorType(String field) {
+    for (Property p : vars.props) {
+      if (p.getRequestInterceptorField().equals(field)) {
+        return signatures.get(p).requestInterceptor;
+      }
+    }
+    throw new IllegalStateException("No method uses " + field);
+  }
+
+  private MethodSpec defaultConstructor() {
+    List<String> nulls = new ArrayList<String>();
+    for (int i = 0; i < vars.builderProps.size(); i++) {
+      nulls.add("null");
+    }
+    return MethodSpec.constructorBuilder()
+        .addModifiers(Modifier.PUBLIC)
+        .addStatement("this($L)", Joiner.on(", ").join(nulls))
+        .build();
+  }
+
+  private MethodSpec constructor() {
+    MethodSpec.Builder constructor = MethodSpec.constructorBuilder()
+        .addModifiers(Modifier.PUBLIC);
+    for (Property p : vars.builderProps) {
+      constructor.addParameter(signatures.get(p).parameters.get(0).type, p.toString());
+    }
+    for (Property p : vars.builderProps) {
+      constructor.addStatement("this.$L = $L", p, p);
+    }
+
+    constructor.beginControlFlow("if (this.converter == null)");
+    constructor.beginControlFlow("try");
+    if (!vars.converter.equals("")) {
+      if (!vars.gsonConverter.equals("")) {
+        constructor.addStatement("this.converter = new $T(new $T())", converter, GSON);
+      } else {
+        constructor.addStatement("this.converter = new $T()", converter);
+      }
+    } else {
+      constructor.addStatement("this.converter = new $T()", LOGAN_SQUARE_CONVERTER);
+    }
+    constructor.nextControlFlow("catch ($T e)", Exception.class);
+    constructor.addStatement("throw new $T(e)", RuntimeException.class);
+    constructor.endControlFlow();
+    constructor.endControlFlow();
+
+    constructor.beginControlFlow("if (this.logLevel == null)")
+        .addStatement("this.logLevel = $T.$L", LOG_LEVEL, vars.logLevel.name())
+        .endControlFlow();
+    constructor.beginControlFlow("if (this.httpLogger == null)")
+        .addStatement("this.httpLogger = new $T(logLevel, $T.SYSTEM_OUT)",
+            HTTP_LOGGER, HTTP_LOGGER_LOG)
+        .endControlFlow();
+    for (Map.Entry<String, String> logger : vars.methodLoggers.entrySet()) {
+      constructor.addStatement("this.$L = httpLogger.withLevel($T.$L)",
+          logger.getValue(), LOG_LEVEL, logger.getKey());
+    }
+    constructor.beginControlFlow("if (this.tracer == null)")
+        .addStatement("this.tracer = $T.NOOP", TRACER)
+        .endControlFlow();
+
+    constructor.beginControlFlow("if (this.requestScheduler == null)");
+    if (!vars.requestExecutor.equals("")) {
+      constructor.addStatement("this.requestScheduler = REQUEST_SCHEDULER");
+    } else if (vars.virtualThreads) {
+      constructor.addStatement("this.requestScheduler = $T.scheduler()", VIRTUAL_THREADS);
+    } else {
+      constructor.addStatement("this.requestScheduler = $T.io()", SCHEDULERS);
+    }
+    constructor.endControlFlow();
+    constructor.beginControlFlow("if (this.parseScheduler == null)");
+    if (!vars.parseExecutor.equals("")) {
+      constructor.addStatement("this.parseScheduler = PARSE_SCHEDULER");
+    } else {
+      constructor.addStatement("this.parseScheduler = $T.immediate()", SCHEDULERS);
+    }
+    constructor.endControlFlow();
+    constructor.beginControlFlow("if (this.callbackScheduler == null)");
+    if (!vars.callbackExecutor.equals("")) {
+      constructor.addStatement("this.callbackScheduler = CALLBACK_SCHEDULER");
+    } else {
+      constructor.addStatement("this.callbackScheduler = $T.immediate()", SCHEDULERS);
+    }
+    constructor.endControlFlow();
+
+    if (!vars.requestInterceptor.equals("")) {
+      constructor.beginControlFlow("if (this.requestInterceptor == null)")
+          .addStatement("this.requestInterceptor = new $T()", requestInterceptor)
+          .endControlFlow();
+    }
+    if (!vars.errorHandler.equals("")) {
+      constructor.beginControlFlow("if (this.errorHandler == null)")
+          .addStatement("this.errorHandler = new $T()", errorHandler)
+          .endControlFlow();
+    }
+    if (!vars.authenticator.equals("")) {
+      constructor.beginControlFlow("if (this.requestAuthenticator == null)")
+          .addStatement("this.requestAuthenticator = new $T()", authenticator)
+          .endControlFlow();
+    }
+
+    if (!vars.okHttpClient.equals("")) {
+      constructor.addStatement("this.okHttpClient = new $T().get()", okHttpClient);
+    } else {
+      constructor.beginControlFlow("if (okHttpClient == null)")
+          .addStatement("okHttpClient = new $T()", OK_HTTP_CLIENT)
+          .endControlFlow();
+    }
+    constructor.addStatement("okHttpClient.setConnectTimeout(15, $T.SECONDS)", TIME_UNIT);
+    constructor.addStatement("okHttpClient.setReadTimeout(20, $T.SECONDS)", TIME_UNIT);
+    if (!vars.protocols.isEmpty() || !vars.connectionPool.equals("") || vars.connectionStats) {
+      constructor.addCode(
+          "// A client may be shared by several services, so these settings go on a copy of it.\n");
+      constructor.addStatement("this.okHttpClient = okHttpClient.clone()");
+    }
+    if (!vars.protocols.isEmpty()) {
+      CodeBlock.Builder protocols = CodeBlock.builder();
+      String separator = "";
+      for (String protocol : vars.protocols) {
+        protocols.add("$L$T.$L", separator, PROTOCOL, protocol);
+        separator = ", ";
+      }
+      constructor.addStatement("this.okHttpClient.setProtocols($T.asList($L))",
+          ARRAYS, protocols.build());
+    }
+    if (!vars.connectionPool.equals("")) {
+      constructor.addStatement("this.okHttpClient.setConnectionPool(new $T($L))",
+          CONNECTION_POOL, vars.connectionPool);
+    }
+    if (vars.connectionStats) {
+      constructor.addStatement("this.okHttpClient.networkInterceptors().add(connectionStats)");
+    }
+    constructor.beginControlFlow("if (cache != null)")
+        .addStatement("this.okHttpClient.setCache(cache)")
+        .endControlFlow();
+    return constructor.build();
+  }
+
+  /** The declaration of the method that implements {@code p}, without its body. */
+  private MethodSpec.Builder overriding(Property p) {
+    Signature s = signatures.get(p);
+    MethodSpec.Builder method = MethodSpec.methodBuilder(p.getGetter())
+        .addAnnotation(Override.class)
+        .returns(s.returnType)
+        .addParameters(s.parameters);
+    if (s.access != null) {
+      method.addModifiers(s.access);
+    }
+    return method;
+  }
+
+  /** Picks the method's own {@code @Converter}, if it has one, over the service's. */
+  private void addConverter(CodeBlock.Builder code, Property p) {
+    Signature s = signatures.get(p);
+    code.addStatement("$T myConverter = this.converter", CONVERTER);
+    if (!p.getConverter().equals("")) {
+      code.beginControlFlow("try");
+      if (!p.getGsonConverter().equals("")) {
+        code.addStatement("myConverter = new $T(new $T())", s.converter, GSON);
+      } else {
+        code.addStatement("myConverter = new $T()", s.converter);
+      }
+      code.nextControlFlow("catch ($T e)", Exception.class);
+      code.addStatement("throw new $T(e)", RuntimeException.class);
+      code.endControlFlow();
+    }
+    code.addStatement("final $T finalConverter = myConverter", CONVERTER);
+  }
+
+  private void addUrl(CodeBlock.Builder code, String path) {
+    code.addStatement("$T _url = $L", STRING, quoted(path));
+    code.beginControlFlow("if (!_url.startsWith($S) && !_url.startsWith($S))",
+        "http://", "https://");
+    code.addStatement("_url = $S + _url", vars.baseUrl);
+    code.endControlFlow();
+  }
+
+  private void addHeaders(CodeBlock.Builder code, Property p) {
+    for (Map.Entry<String, String> header : vars.headers.entrySet()) {
+      code.addStatement("requestBuilder.addHeader($S, $L)", header.getKey(), header.getValue());
+    }
+    for (Map.Entry<String, String> header : p.getHeaders().entrySet()) {
+      code.addStatement("requestBuilder.addHeader($S, $L)", header.getKey(), header.getValue());
+    }
+  }
+
+  /** Adds query parameters or form fields through {@code target.method(key, value)}. */
+  private static void addValues(CodeBlock.Builder code, List<RetrofitProcessor.ValueParam> params,
+      String target, String method) {
+    for (RetrofitProcessor.ValueParam param : params) {
+      String kind = param.getKind();
+      String key = quoted(param.getKey());
+      String value = param.getValue();
+      if (kind.equals(RetrofitProcessor.ValueParam.LITERAL)) {
+        code.addStatement("$L.$L($L, $L)", target, method, key, value);
+      } else if (kind.equals(RetrofitProcessor.ValueParam.PRIMITIVE)) {
+        code.addStatement("$L.$L($L, $T.valueOf($L))", target, method, key, STRING, value);
+      } else if (kind.equals(RetrofitProcessor.ValueParam.STRING)) {
+        if (method.equals("add")) {
+          code.addStatement("$L.$L($L, $L)", target, method, key, value);
+        } else {
+          code.addStatement("if ($L != null) $L.$L($L, $L)", value, target, method, key, value);
+        }
+      } else if (kind.equals(RetrofitProcessor.ValueParam.OBJECT)) {
+        code.addStatement("if ($L != null) $L.$L($L, $L.toString())",
+            value, target, method, key, value);
+      } else if (kind.equals(RetrofitProcessor.ValueParam.PRIMITIVE_ARRAY)) {
+        code.beginControlFlow("if ($L != null)", value);
+        code.beginControlFlow("for ($L _value : $L)", param.getElementType(), value);
+        code.addStatement("$L.$L($L, $T.valueOf(_value))", target, method, key, STRING);
+        code.endControlFlow();
+        code.endControlFlow();
+      } else if (kind.equals(RetrofitProcessor.ValueParam.ITERABLE)) {
+        code.beginControlFlow("if ($L != null)", value);
+        code.beginControlFlow("for ($T _value : $L)", Object.class, value);
+        code.addStatement("if (_value != null) $L.$L($L, _value.toString())", target, method, key);
+        code.endControlFlow();
+        code.endControlFlow();
+      } else if (kind.equals(RetrofitProcessor.ValueParam.MAP)) {
+        TypeName entry = ParameterizedTypeName.get(MAP_ENTRY, WILDCARD, WILDCARD);
+        TypeName map = ParameterizedTypeName.get(ClassName.get(Map.class), WILDCARD, WILDCARD);
+        code.beginControlFlow("if ($L != null)", value);
+        code.beginControlFlow("for ($T _entry : (($T) $L).entrySet())", entry, map, value);
+        code.beginControlFlow("if (_entry.getKey() != null && _entry.getValue() != null)");
+        code.addStatement("$L.$L(_entry.getKey().toString(), _entry.getValue().toString())",
+            target, method);
+        code.endControlFlow();
+        code.endControlFlow();
+        code.endControlFlow();
+      }
+    }
+  }
+
+  /** The body of a property that sends a request, built the way {@code retrofit.vm} builds it. */
+  private CodeBlock body(Property p) {
+    Signature s = signatures.get(p);
+    CodeBlock.Builder code = CodeBlock.builder();
+    addConverter(code, p);
+    addUrl(code, p.getPath() == null ? "" : p.getPath());
+    code.addStatement("$T httpUrlBuilder = $T.parse(_url).newBuilder()",
+        HTTP_URL_BUILDER, HTTP_URL);
+    addValues(code, p.getQueries(), "httpUrlBuilder", "addQueryParameter");
+    code.addStatement("$T httpUrl = httpUrlBuilder.build()", HTTP_URL);
+    code.addStatement("$T requestBuilder = new $T().url(httpUrl)",
+        REQUEST_BUILDER, REQUEST_BUILDER);
+    code.addStatement("final $T _finalUrl = httpUrl.toString()", STRING);
+    code.addStatement("$T bodyString = null", STRING);
+    code.addStatement("$T requestBody = null", REQUEST_BODY);
+
+    if (p.isGet()) {
+      // No body.
+    } else if (p.isPost()) {
+      if (!p.getBody().equals("")) {
+        code.addStatement("$T typedOutput = null", TYPED_OUTPUT);
+        code.beginControlFlow("try");
+        code.addStatement("typedOutput = finalConverter.toBody($L)", p.getBody());
+        code.addStatement("bodyString = toString(typedOutput)");
+        code.nextControlFlow("catch ($T e)", Exception.class);
+        code.addStatement("throw new $T(e)", RuntimeException.class);
+        code.endControlFlow();
+        code.addStatement("requestBody = $T.create($T.parse(typedOutput.mimeType()), bodyString)",
+            REQUEST_BODY, MEDIA_TYPE);
+      } else if (!p.getFields().isEmpty()) {
+        code.addStatement("$T formBuilder = new $T()", FORM_BODY_BUILDER, FORM_BODY_BUILDER);
+        addValues(code, p.getFields(), "formBuilder", "add");
+        code.addStatement("requestBody = formBuilder.build()");
+      }
+    } else if (p.isPut()) {
+      if (!p.getParts().isEmpty()) {
+        code.addStatement("$T partsBuilder = new $T().type($T.FORM)",
+            MULTIPART_BUILDER, MULTIPART_BUILDER, MULTIPART_BUILDER);
+        for (Map.Entry<String, RetrofitProcessor.Part> entry : p.getParts().entrySet()) {
+          RetrofitProcessor.Part part = entry.getValue();
+          String disposition = "form-data; name=\"" + entry.getKey() + "\"";
+          String name = part.getName();
+          if (part.isTypedFile()) {
+            code.addStatement("partsBuilder.addPart($T.of($S, $S),\n"
+                + "$T.create($T.parse($L.mimeType()), $L.file()))",
+                HEADERS, "Content-Disposition", disposition, REQUEST_BODY, MEDIA_TYPE, name, name);
+          } else if (part.isTypedString()) {
+            code.addStatement("partsBuilder.addPart($T.of($S, $S),\n"
+                + "$T.create($T.parse($L.mimeType()), $L.toString()))",
+                HEADERS, "Content-Disposition", disposition, REQUEST_BODY, MEDIA_TYPE, name, name);
+          } else if (part.isTypedByteArray()) {
+            code.addStatement("partsBuilder.addPart($T.of($S, $S),\n"
+                + "$T.create($T.parse($L.mimeType()), $L.getBytes()))",
+                HEADERS, "Content-Disposition", disposition, REQUEST_BODY, MEDIA_TYPE, name, name);
+          } else if (!part.getMimeType().equals("")) {
+            code.addStatement("partsBuilder.addPart($T.of($S, $S),\n$T.create($T.parse($S), $L))",
+                HEADERS, "Content-Disposition", disposition, REQUEST_BODY, MEDIA_TYPE,
+                part.getMimeType(), name);
+          } else {
+            code.addStatement("partsBuilder.addFormDataPart($S, $L)", entry.getKey(), name);
+          }
+        }
+        code.addStatement("requestBody = partsBuilder.build()");
+      } else {
+        code.addStatement("requestBody = $T.create($T.parse(_MIME_APP_JSON_CHARSET_UTF8), $S)",
+            REQUEST_BODY, MEDIA_TYPE, "");
+      }
+    } else if (p.isDelete()) {
+      code.addStatement("requestBuilder.delete()");
+    } else if (p.isHead()) {
+      code.addStatement("requestBuilder.head()");
+    }
+
+    String compress = p.getCompressThreshold();
+    if (compress.equals("")) {
+      compress = vars.compressThreshold;
+    }
+    if (!compress.equals("") && (p.isPost() || p.isPut())) {
+      code.beginControlFlow("if (requestBody != null)");
+      code.addStatement("$T gzipBody = $T.gzip(requestBody, $LL)",
+          REQUEST_BODY, GZIP_REQUEST_BODY, compress);
+      code.beginControlFlow("if (gzipBody != requestBody)");
+      code.addStatement("requestBuilder.header($S, $S)", "Content-Encoding", "gzip");
+      code.addStatement("requestBody = gzipBody");
+      code.endControlFlow();
+      code.endControlFlow();
+    }
+    if (p.isPost()) {
+      code.addStatement("if (requestBody != null) requestBuilder.post(requestBody)");
+    } else if (p.isPut()) {
+      code.addStatement("requestBuilder.put(requestBody)");
+    }
+    addHeaders(code, p);
+    code.addStatement("final $T request = requestBuilder.build()", REQUEST);
+
+    if (!p.getFuture().equals("")) {
+      addSendFuture(code, p);
+      return code.build();
+    }
+    addSendRequest(code, p);
+
+    TypeName result = s.resultType;
+    if (!p.isResponseType() && !p.isCallback()) {
+      TypeName obs = p.isObservable() ? s.returnType : observableOf(s.returnType);
+      code.addStatement("$T obs", obs);
+      CodeBlock.Builder read = CodeBlock.builder();
+      read.beginControlFlow("try");
+      read.addStatement("return response.body().string()");
+      read.nextControlFlow("catch ($T e)", Exception.class);
+      read.addStatement("throw $T.unexpectedError(_finalUrl, e)", RETROFIT_ERROR);
+      read.endControlFlow();
+      CodeBlock.Builder convert = CodeBlock.builder();
+      convert.addStatement("long start = $T.nanoTime()", System.class);
+      convert.beginControlFlow("try");
+      addFromBody(convert, p, result, "return ", "json");
+      convert.nextControlFlow("catch ($T e)", Exception.class);
+      convert.addStatement("throw $T.unexpectedError(_finalUrl, e)", RETROFIT_ERROR);
+      convert.nextControlFlow("finally");
+      convert.addStatement("_trace.event($T.CONVERSION, $T.nanoTime() - start)",
+          TRACER, System.class);
+      convert.endControlFlow();
+      code.add("obs = _trace.wrap(responseCachedObs.observeOn(parseScheduler)$>$>");
+      code.add("\n.map($L)", func1(RESPONSE, STRING, "response", read.build()));
+      code.add("\n.filter($L)", func1(STRING, ClassName.get(Boolean.class), "json",
+          CodeBlock.builder().addStatement("return json != null").build()));
+      code.add("\n.map($L)", func1(STRING, result, "json", convert.build()));
+      code.add("\n.filter($L));\n$<$<", func1(result, ClassName.get(Boolean.class), "object",
+          CodeBlock.builder().addStatement("return object != null").build()));
+    }
+    TypeName observableClientResponse = observableOf(CLIENT_RESPONSE);
+    if (p.isResponseType()) {
+      code.addStatement("$T retrofitResponseObs = _trace.wrap(responseCachedObs.map($L))",
+          observableClientResponse, func1(RESPONSE, CLIENT_RESPONSE, "response",
+              CodeBlock.builder().addStatement("return parseResponse(response)").build()));
+    }
+
+    CodeBlock subscribeOn = vars.virtualThreads
+        ? CodeBlock.builder()
+            .add("$T.unlessVirtual(requestScheduler)", VIRTUAL_THREADS).build()
+        : CodeBlock.builder().add("requestScheduler").build();
+    if (p.isBlocking()) {
+      if (p.isResponseType()) {
+        code.add("return retrofitResponseObs$>$>");
+        if (!vars.errorHandler.equals("")) {
+          code.add("\n.onErrorResumeNext($L)", handleError(CLIENT_RESPONSE, true));
+        }
+      } else {
+        code.add("return obs$>$>");
+        if (!vars.errorHandler.equals("")) {
+          code.add("\n.onErrorResumeNext($L)", handleError(s.returnType, false));
+        }
+      }
+      code.add("\n.subscribeOn($L).toBlocking().single();\n$<$<", subscribeOn);
+    } else if (p.isCallback()) {
+      CodeBlock failure = CodeBlock.builder()
+          .addStatement("$L.failure($T.unexpectedError(_finalUrl, e))",
+              p.getCallbackName(), RETROFIT_ERROR)
+          .build();
+      if (p.isResponseType()) {
+        code.add("retrofitResponseObs$>$>");
+        if (!vars.errorHandler.equals("")) {
+          code.add("\n.onErrorResumeNext($L)", handleError(result, false));
+        }
+        code.add("\n.subscribeOn(requestScheduler).observeOn(callbackScheduler).subscribe($L, $L);"
+            + "\n$<$<",
+            action1(result, "object", CodeBlock.builder()
+                .addStatement("$L.success(object, object)", p.getCallbackName()).build()),
+            action1(THROWABLE, "e", failure));
+      } else {
+        TypeName convertedResult = ParameterizedTypeName.get(converted, result.box());
+        CodeBlock.Builder convert = CodeBlock.builder();
+        convert.addStatement("long start = $T.nanoTime()", System.class);
+        convert.beginControlFlow("try");
+        convert.addStatement("byte[] body = response.body().bytes()");
+        convert.addStatement("$T contentType = response.body().contentType()", MEDIA_TYPE);
+        convert.addStatement("$T json = new $T(body, contentType != null\n"
+            + "? contentType.charset(UTF_8) : UTF_8)", STRING, STRING);
+        addFromBody(convert, p, result, CodeBlock.builder().add("$T object = ", result).build(),
+            "json");
+        convert.addStatement("return new $T(object, parseResponse(response, body))",
+            convertedResult);
+        convert.nextControlFlow("catch ($T e)", Exception.class);
+        convert.addStatement("throw $T.unexpectedError(_finalUrl, e)", RETROFIT_ERROR);
+        convert.nextControlFlow("finally");
+        convert.addStatement("_trace.event($T.CONVERSION, $T.nanoTime() - start)",
+            TRACER, System.class);
+        convert.endControlFlow();
+        CodeBlock success = CodeBlock.builder()
+            .beginControlFlow("if (converted.object != null)")
+            .addStatement("$L.success(converted.object, converted.response)", p.getCallbackName())
+            .endControlFlow()
+            .build();
+        code.add("// One pass: the body is read once, converted, and kept as the Response's"
+            + " body.\n");
+        code.add("_trace.wrap(responseCachedObs.observeOn(parseScheduler).map($L))$>$>",
+            func1(RESPONSE, convertedResult, "response", convert.build()));
+        if (!vars.errorHandler.equals("")) {
+          code.add("\n.onErrorResumeNext($L)", handleError(convertedResult, false));
+        }
+        code.add("\n.subscribeOn(requestScheduler).observeOn(callbackScheduler).subscribe($L, $L);"
+            + "\n$<$<",
+            action1(convertedResult, "converted", success), action1(THROWABLE, "e", failure));
+      }
+    } else if (p.isResponseType()) {
+      code.addStatement("return retrofitResponseObs");
+    } else {
+      code.add("return obs$>$>");
+      if (!vars.errorHandler.equals("")) {
+        code.add("\n.onErrorResumeNext($L)", handleError(result, false));
+      }
+      code.add(";\n$<$<");
+    }
+    return code.build();
+  }
+
+  /**
+   * Converts {@code input}, the body as a string, to the property's result and hands it to
+   * {@code target}: a {@code return} or a declaration.
+   */
+  private static void addFromBody(CodeBlock.Builder code, Property p, TypeName result,
+      Object target, String input) {
+    if (usesTypeToken(p)) {
+      code.addStatement("$T type = $L.getType()", TYPE, typeToken(result));
+      code.addStatement("$L($T) finalConverter.fromBody(new JsonTypedInput($L), type)",
+          target, result, input);
+    } else {
+      code.addStatement("$L($T) finalConverter.fromBody(new JsonTypedInput($L), $T.class)",
+          target, result, input, result);
+    }
+  }
+
+  /**
+   * An anonymous {@code Func1} for {@code onErrorResumeNext} that hands a failure of an
+   * {@code Observable<type>} to the error handler, except network errors if {@code keepNetwork}.
+   */
+  private static TypeSpec handleError(TypeName type, boolean keepNetwork) {
+    CodeBlock.Builder handle = CodeBlock.builder();
+    handle.addStatement("$T retrofitError = null", RETROFIT_ERROR);
+    handle.beginControlFlow("if (e instanceof $T)", RETROFIT_ERROR);
+    handle.addStatement("retrofitError = ($T) e", RETROFIT_ERROR);
+    handle.nextControlFlow("else");
+    handle.addStatement("retrofitError = $T.unexpectedError(_finalUrl, e)", RETROFIT_ERROR);
+    handle.endControlFlow();
+    if (keepNetwork) {
+      handle.add("// network error should be handled before\n");
+      handle.beginControlFlow("if (retrofitError.getKind() == $T.NETWORK)", RETROFIT_ERROR_KIND);
+      handle.addStatement("return $T.error(retrofitError)", OBSERVABLE);
+      handle.endControlFlow();
+    }
+    handle.addStatement("return $T.error(errorHandler.handleError(retrofitError))", OBSERVABLE);
+    return func1(THROWABLE, observableOf(type), "e", handle.build());
+  }
+
+  /**
+   * Declares what both ways of sending a call need: the body for the log, the context, the trace
+   * and the per-method interceptor.
+   */
+  private void addCallPrelude(CodeBlock.Builder code, Property p) {
+    code.addStatement("final $T finalBodyString = bodyString", STRING);
+    code.add("// The context of this call; read once so that interceptors never see another"
+        + " caller's.\n");
+    if (!p.getContextParam().equals("") && p.getBatch() == null) {
+      code.addStatement("final $T _context = $L", Object.class, p.getContextParam());
+    } else {
+      code.addStatement("final $T _context = context", Object.class);
+    }
+    code.addStatement("final $T _trace = tracer.trace(ROUTES.get($L), _context)",
+        TRACE, p.getRouteConstant());
+    if (!p.getRequestInterceptor().equals("")) {
+      code.addStatement("final $T finalRequestInterceptor = $L",
+          REQUEST_INTERCEPTOR, p.getRequestInterceptorField());
+    }
+  }
+
+  /** Runs the interceptors and authenticator on {@code request} through {@code requestFacade}. */
+  private void addInterceptRequest(CodeBlock.Builder code, Property p) {
+    code.addStatement("$T requestFacade = new $T(request)",
+        simpleRequestFacade, simpleRequestFacade);
+    addIntercept(code, "requestInterceptor");
+    if (!p.getRequestInterceptor().equals("")) {
+      addIntercept(code, "finalRequestInterceptor");
+    }
+    if (authenticates(p)) {
+      code.addStatement("$T token = requestAuthenticator.authorize(_context, $L)",
+          STRING, p.getPermissionsConstant());
+      code.beginControlFlow("if (requestAuthenticator instanceof $T)", CACHING_AUTHENTICATOR);
+      code.addStatement("(($T) requestAuthenticator).intercept(token, requestFacade)",
+          CACHING_AUTHENTICATOR);
+      code.nextControlFlow("else");
+      code.addStatement("requestAuthenticator.intercept(requestFacade)");
+      code.endControlFlow();
+    }
+  }
+
+  private static void addIntercept(CodeBlock.Builder code, String interceptor) {
+    code.beginControlFlow("if ($L instanceof $T)", interceptor, SIMPLE_REQUEST_INTERCEPTOR);
+    code.addStatement("(($T) $L).intercept(_context, requestFacade)",
+        SIMPLE_REQUEST_INTERCEPTOR, interceptor);
+    code.nextControlFlow("else");
+    code.addStatement("$L.intercept(requestFacade)", interceptor);
+    code.endControlFlow();
+  }
+
+  /** {@code OnSubscribeResponse} for {@code request}, logged if the property logs. */
+  private CodeBlock sendResponse(Property p) {
+    if (p.getLogged()) {
+      return CodeBlock.builder()
+          .add("logged($L, $T.create(new $T(okHttpClient, request)), request)",
+              p.getLogger(), OBSERVABLE, onSubscribeResponse)
+          .build();
+    }
+    return CodeBlock.builder()
+        .add("$T.create(new $T(okHttpClient, request))", OBSERVABLE, onSubscribeResponse)
+        .build();
+  }
+
+  private void addRetryHeaders(CodeBlock.Builder code) {
+    for (Map.Entry<String, String> header : vars.retryHeaders.entrySet()) {
+      code.addStatement("reqBuilder.addHeader($S, $L)", header.getKey(), header.getValue());
+    }
+  }
+
+  /**
+   * Sends the request built in {@code request} through the interceptors and the client, leaving
+   * the shared response in {@code responseCachedObs}.
+   */
+  private void addSendRequest(CodeBlock.Builder code, Property p) {
+    String tokens = tokenInterceptors(p);
+    code.addStatement("$T requestObs = $T.just(request)", OBSERVABLE_REQUEST, OBSERVABLE);
+    code.addStatement("$T.out.println($S)", System.class, "retrofit: " + p.getGetter());
+    addCallPrelude(code, p);
+
+    code.add("// Token interceptors fetch their token here, without blocking, rather than in"
+        + " prepare.\n");
+    code.addStatement("final $T whenTokensReady = $L", func1Of(REQUEST, OBSERVABLE_REQUEST),
+        func1(REQUEST, OBSERVABLE_REQUEST, "request", CodeBlock.builder()
+            .addStatement("return $T.whenReady(request, _context, $L)", TOKEN_PROVIDER, tokens)
+            .build()));
+
+    CodeBlock.Builder prepare = CodeBlock.builder();
+    addInterceptRequest(prepare, p);
+    prepare.addStatement("request = _trace.inject(requestFacade.request())");
+    if (p.getLogged()) {
+      prepare.beginControlFlow("if ($L.enabled())", p.getLogger());
+      prepare.beginControlFlow("try");
+      prepare.addStatement("return $L.logRequest(request, finalBodyString)", p.getLogger());
+      prepare.nextControlFlow("catch ($T e)", IO_EXCEPTION);
+      prepare.addStatement("throw $T.unexpectedError(request.urlString(), e)", RETROFIT_ERROR);
+      prepare.endControlFlow();
+      prepare.endControlFlow();
+    }
+    prepare.addStatement("return request");
+    code.add("// Interceptors, authenticator and log share one facade, so the request is rebuilt"
+        + " at most once.\n");
+    code.addStatement("final $T prepare = $L", func1Of(REQUEST, REQUEST),
+        func1(REQUEST, REQUEST, "request", prepare.build()));
+
+    code.addStatement("final $T send = $L", func1Of(REQUEST, OBSERVABLE_RESPONSE),
+        func1(REQUEST, OBSERVABLE_RESPONSE, "request", CodeBlock.builder()
+            .addStatement("$T.out.println($S)", System.class, "retrofit: responseCachedObs")
+            .addStatement("return $L", sendResponse(p))
+            .build()));
+
+    code.addStatement("requestObs = requestObs.flatMap(whenTokensReady).map(prepare)");
+    if (preparesOnRequestScheduler(p)) {
+      code.addStatement("requestObs = requestObs.subscribeOn(requestScheduler)");
+    }
+
+    code.add("$T responseCachedObs = requestObs.flatMap(send)$>$>", OBSERVABLE_RESPONSE);
+    if (!vars.retryHeaders.isEmpty()) {
+      CodeBlock.Builder retry = CodeBlock.builder();
+      retry.addStatement("$T.out.println($S + e)", System.class, "retrofit: exception: ");
+      retry.beginControlFlow("if (e instanceof $T)", REQUEST_EXCEPTION);
+      retry.addStatement("$T.out.println($S + e)", System.class, "retrofit: RequestException: ");
+      retry.addStatement("$T requestException = ($T) e", REQUEST_EXCEPTION, REQUEST_EXCEPTION);
+      retry.addStatement("_trace.event($T.RETRY, 0)", TRACER);
+      retry.addStatement("$T reqBuilder = requestException.request().newBuilder()",
+          REQUEST_BUILDER);
+      addRetryHeaders(retry);
+      retry.addStatement("$T request = reqBuilder.build()", REQUEST);
+      retry.addStatement("$T.out.println($S)", System.class, "retrofit: retry: log");
+      if (p.getLogged()) {
+        retry.beginControlFlow("if ($L.enabled())", p.getLogger());
+        retry.beginControlFlow("try");
+        retry.addStatement("request = $L.logRequest(request, finalBodyString)", p.getLogger());
+        retry.nextControlFlow("catch ($T e2)", IO_EXCEPTION);
+        retry.addStatement("throw $T.unexpectedError(request.urlString(), e2)", RETROFIT_ERROR);
+        retry.endControlFlow();
+        retry.endControlFlow();
+      }
+      retry.addStatement("return $L", sendResponse(p));
+      retry.endControlFlow();
+      retry.addStatement("$T.out.println($S + e)", System.class, "retrofit: !RequestException: ");
+      retry.addStatement("return $T.error(e)", OBSERVABLE);
+      code.add("\n.onErrorResumeNext($L)",
+          func1(THROWABLE, OBSERVABLE_RESPONSE, "e", retry.build()));
+    }
+
+    CodeBlock.Builder unauthorized = CodeBlock.builder();
+    unauthorized.addStatement("_trace.received(response)");
+    unauthorized.beginControlFlow("if (response.code() != 401\n"
+        + "|| !$T.unauthorized(response.request(), $L))", TOKEN_PROVIDER, tokens);
+    unauthorized.addStatement("return $T.just(response)", OBSERVABLE);
+    unauthorized.endControlFlow();
+    unauthorized.beginControlFlow("try");
+    unauthorized.addStatement("response.body().close()");
+    unauthorized.nextControlFlow("catch ($T ignored)", IO_EXCEPTION);
+    unauthorized.endControlFlow();
+    unauthorized.addStatement("_trace.event($T.RETRY, 0)", TRACER);
+    unauthorized.addStatement(
+        "$T retryObs = $T.just(request).flatMap(whenTokensReady).map(prepare)",
+        OBSERVABLE_REQUEST, OBSERVABLE);
+    if (preparesOnRequestScheduler(p)) {
+      unauthorized.add("// Not on the thread that delivered the 401, which may be OkHttp's"
+          + " dispatcher.\n");
+      unauthorized.addStatement("retryObs = retryObs.subscribeOn(requestScheduler)");
+    }
+    unauthorized.addStatement("return retryObs.flatMap(send)");
+    code.add("\n// A 401 lets token interceptors invalidate their token, then the request is sent"
+        + " once more.");
+    code.add("\n.flatMap($L)",
+        func1(RESPONSE, OBSERVABLE_RESPONSE, "response", unauthorized.build()));
+
+    if (!vars.errorHandler.equals("")) {
+      code.add("\n.onErrorResumeNext($L)", func1(THROWABLE, OBSERVABLE_RESPONSE, "e",
+          CodeBlock.builder()
+              .beginControlFlow("if (e instanceof $T)", IO_EXCEPTION)
+              .addStatement("return $T.error($T.networkError(_finalUrl, ($T) e))",
+                  OBSERVABLE, RETROFIT_ERROR, IO_EXCEPTION)
+              .endControlFlow()
+              .addStatement("return $T.error(e)", OBSERVABLE)
+              .build()));
+    }
+    // A Callback subscribes once, so only other methods share the response through cache().
+    code.add(p.isCallback() ? ";\n$<$<" : "\n.cache();\n$<$<");
+  }
+
+  /**
+   * Sends the request built in {@code request} straight to OkHttp and returns a future of the
+   * converted response, without Rx operators.
+   */
+  private void addSendFuture(CodeBlock.Builder code, Property p) {
+    Signature s = signatures.get(p);
+    TypeName result = s.resultType;
+    boolean completable = p.getFuture().equals("COMPLETABLE");
+    addCallPrelude(code, p);
+
+    TypeSpec.Builder call = TypeSpec.classBuilder("FutureCall")
+        .addModifiers(Modifier.FINAL)
+        .superclass(ParameterizedTypeName.get(ASYNC_CALL, result));
+    if (completable) {
+      TypeName future = ParameterizedTypeName.get(COMPLETABLE_FUTURE, result);
+      call.addField(FieldSpec.builder(future, "future", Modifier.FINAL)
+          .initializer("$L", TypeSpec.anonymousClassBuilder("")
+              .superclass(future)
+              .addMethod(MethodSpec.methodBuilder("cancel")
+                  .addAnnotation(Override.class)
+                  .addModifiers(Modifier.PUBLIC)
+                  .returns(TypeName.BOOLEAN)
+                  .addParameter(TypeName.BOOLEAN, "mayInterruptIfRunning")
+                  .addStatement("FutureCall.this.cancel()")
+                  .addStatement("return super.cancel(mayInterruptIfRunning)")
+                  .build())
+              .build())
+          .build());
+    } else {
+      call.addField(FieldSpec.builder(ParameterizedTypeName.get(SETTABLE_FUTURE, result),
+              "future", Modifier.FINAL)
+          .initializer("$T.create()", SETTABLE_FUTURE)
+          .build());
+    }
+
+    MethodSpec.Builder constructor = MethodSpec.constructorBuilder()
+        .addStatement("super(okHttpClient, _trace, $L, finalBodyString, _context, $L)",
+            p.getLogged() ? p.getLogger() : "null", tokenInterceptors(p));
+    if (!completable) {
+      constructor.addStatement("future.addListener(cancelWith(future), DIRECT)");
+    }
+    call.addMethod(constructor.build());
+
+    CodeBlock.Builder prepare = CodeBlock.builder();
+    addInterceptRequest(prepare, p);
+    prepare.addStatement("return requestFacade.request()");
+    call.addMethod(MethodSpec.methodBuilder("prepare")
+        .addAnnotation(Override.class)
+        .addModifiers(Modifier.PROTECTED)
+        .returns(REQUEST)
+        .addParameter(REQUEST, "request")
+        .addCode(prepare.build())
+        .build());
+
+    if (preparesOnRequestScheduler(p)) {
+      call.addMethod(MethodSpec.methodBuilder("prepareScheduler")
+          .addJavadoc("The authenticator may block, so neither the caller nor OkHttp's dispatcher"
+              + " runs it.\n")
+          .addAnnotation(Override.class)
+          .addModifiers(Modifier.PROTECTED)
+          .returns(SCHEDULER)
+          .addStatement("return requestScheduler")
+          .build());
+    }
+
+    if (!vars.retryHeaders.isEmpty()) {
+      CodeBlock.Builder retry = CodeBlock.builder();
+      retry.addStatement("$T reqBuilder = failed.newBuilder()", REQUEST_BUILDER);
+      addRetryHeaders(retry);
+      retry.addStatement("return reqBuilder.build()");
+      call.addMethod(MethodSpec.methodBuilder("retry")
+          .addAnnotation(Override.class)
+          .addModifiers(Modifier.PROTECTED)
+          .returns(REQUEST)
+          .addParameter(REQUEST, "failed")
+          .addCode(retry.build())
+          .build());
+    }
+
+    CodeBlock.Builder convert = CodeBlock.builder();
+    if (p.isResponseType()) {
+      convert.addStatement("return parseResponse(response)");
+    } else {
+      addFromBody(convert, p, result, "return ", "response.body().string()");
+    }
+    call.addMethod(MethodSpec.methodBuilder("convert")
+        .addAnnotation(Override.class)
+        .addModifiers(Modifier.PROTECTED)
+        .returns(result)
+        .addParameter(RESPONSE, "response")
+        .addException(Exception.class)
+        .addCode(convert.build())
+        .build());
+
+    call.addMethod(MethodSpec.methodBuilder("success")
+        .addAnnotation(Override.class)
+        .addModifiers(Modifier.PROTECTED)
+        .addParameter(result, "value")
+        .addStatement(completable ? "future.complete(value)" : "future.set(value)")
+        .build());
+
+    CodeBlock.Builder failure = CodeBlock.builder();
+    failure.addStatement("$T retrofitError", RETROFIT_ERROR);
+    failure.beginControlFlow("if (e instanceof $T)", RETROFIT_ERROR);
+    failure.addStatement("retrofitError = ($T) e", RETROFIT_ERROR);
+    failure.nextControlFlow("else if (e instanceof $T && e.getCause() instanceof $T)",
+        REQUEST_EXCEPTION, IO_EXCEPTION);
+    failure.addStatement("retrofitError = $T.networkError(_finalUrl, ($T) e.getCause())",
+        RETROFIT_ERROR, IO_EXCEPTION);
+    failure.nextControlFlow("else");
+    failure.addStatement("retrofitError = $T.unexpectedError(_finalUrl, e)", RETROFIT_ERROR);
+    failure.endControlFlow();
+    if (!vars.errorHandler.equals("")) {
+      failure.addStatement("$T error = errorHandler.handleError(retrofitError)", THROWABLE);
+    } else {
+      failure.addStatement("$T error = retrofitError", THROWABLE);
+    }
+    failure.addStatement(completable
+        ? "future.completeExceptionally(error)" : "future.setException(error)");
+    call.addMethod(MethodSpec.methodBuilder("failure")
+        .addAnnotation(Override.class)
+        .addModifiers(Modifier.PROTECTED)
+        .addParameter(THROWABLE, "e")
+        .addCode(failure.build())
+        .build());
+
+    code.add("$L\n", call.build());
+    code.addStatement("FutureCall call = new FutureCall()");
+    code.addStatement("call.start(request)");
+    code.addStatement("return call.future");
+  }
+
+  /**
+   * Adds a {@code @Batch} property: the {@code Batcher} that gathers its keys, the method that
+   * hands it a key, and the loader that fetches one batch of keys with a single request.
+   */
+  private void addBatch(TypeSpec.Builder type, Property p) {
+    Signature s = signatures.get(p);
+    RetrofitProcessor.Batch batch = p.getBatch();
+    TypeName key = s.parameters.get(0).type.box();
+    TypeName result = s.resultType;
+    TypeName list = ParameterizedTypeName.get(LIST, result);
+    TypeName observableList = ParameterizedTypeName.get(OBSERVABLE, list);
+    TypeName batcher = ParameterizedTypeName.get(BATCHER, key, result);
+    String batcherField = "_" + p.getGetter() + "Batcher";
+    String batchMethod = "_" + p.getGetter() + "Batch";
+
+    TypeSpec loader = TypeSpec.anonymousClassBuilder("")
+        .addSuperinterface(ParameterizedTypeName.get(BATCHER_LOADER, key, result))
+        .addMethod(MethodSpec.methodBuilder("load")
+            .addAnnotation(Override.class)
+            .addModifiers(Modifier.PUBLIC)
+            .returns(observableList)
+            .addParameter(ParameterizedTypeName.get(LIST, key), "keys")
+            .addStatement("return $L(keys)", batchMethod)
+            .build())
+        .build();
+    type.addField(FieldSpec.builder(batcher, batcherField, Modifier.FINAL)
+        .initializer("new $T($L, $L, $LL)", batcher, loader, batch.getMaxSize(),
+            batch.getMaxDelayMs())
+        .build());
+    type.addMethod(overriding(p)
+        .addStatement("return $L.get($L)", batcherField, batch.getKey())
+        .build());
+
+    CodeBlock.Builder code = CodeBlock.builder();
+    addConverter(code, p);
+    addUrl(code, batch.getEndpoint());
+    code.addStatement("$T httpUrlBuilder = $T.parse(_url).newBuilder()",
+        HTTP_URL_BUILDER, HTTP_URL);
+    code.beginControlFlow("for ($T _key : _keys)", key);
+    code.addStatement("httpUrlBuilder.addQueryParameter($L, $T.valueOf(_key))",
+        quoted(batch.getParam()), STRING);
+    code.endControlFlow();
+    code.addStatement("$T httpUrl = httpUrlBuilder.build()", HTTP_URL);
+    code.addStatement("$T requestBuilder = new $T().url(httpUrl)",
+        REQUEST_BUILDER, REQUEST_BUILDER);
+    code.addStatement("final $T _finalUrl = httpUrl.toString()", STRING);
+    code.addStatement("$T bodyString = null", STRING);
+    addHeaders(code, p);
+    code.addStatement("final $T request = requestBuilder.build()", REQUEST);
+    addSendRequest(code, p);
+
+    CodeBlock.Builder convert = CodeBlock.builder();
+    convert.beginControlFlow("try");
+    convert.addStatement("$T json = response.body().string()", STRING);
+    convert.addStatement("$T type = $L.getType()", TYPE, typeToken(list));
+    convert.addStatement("long start = $T.nanoTime()", System.class);
+    convert.addStatement("$T list = ($T) finalConverter.fromBody(new JsonTypedInput(json), type)",
+        list, list);
+    convert.addStatement("_trace.event($T.CONVERSION, $T.nanoTime() - start)",
+        TRACER, System.class);
+    convert.addStatement("return list");
+    convert.nextControlFlow("catch ($T e)", Exception.class);
+    convert.addStatement("throw $T.unexpectedError(_finalUrl, e)", RETROFIT_ERROR);
+    convert.endControlFlow();
+    code.addStatement("return _trace.wrap(responseCachedObs.observeOn(parseScheduler).map($L))",
+        func1(RESPONSE, list, "response", convert.build()));
+
+    type.addMethod(MethodSpec.methodBuilder(batchMethod)
+        .addJavadoc("Loads one batch of {@link #$L} keys with a single request.\n", p.getGetter())
+        .returns(observableList)
+        .addParameter(ParameterizedTypeName.get(LIST, key), "_keys", Modifier.FINAL)
+        .addCode(code.build())
+        .build());
+  }
+
+  /**
+   * Adds the nested classes and static helpers that every generated class has: the
+   * {@code OnSubscribe} that runs a call, the request facade, and response parsing.
+   */
+  private void addSupport(TypeSpec.Builder type) {
+    TypeSpec support = vars.virtualThreads ? VIRTUAL_THREAD_SUPPORT : SUPPORT;
+    type.addFields(support.fieldSpecs);
+    type.addMethods(support.methodSpecs);
+    type.addTypes(support.typeSpecs);
+  }
+
+  private static TypeSpec support(boolean virtualThreads) {
+    TypeSpec.Builder type = TypeSpec.classBuilder("Support");
+    type.addType(onSubscribeResponseType(virtualThreads));
+    type.addType(jsonTypedInputType());
+
+    type.addMethod(MethodSpec.methodBuilder("toString")
+        .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+        .returns(STRING)
+        .addParameter(TYPED_OUTPUT, "typedOutput")
+        .addStatement("$T string = null", STRING)
+        .beginControlFlow("try")
+        .addStatement("$T bytesOutputStream = new $T()",
+            BYTE_ARRAY_OUTPUT_STREAM, BYTE_ARRAY_OUTPUT_STREAM)
+        .addStatement("typedOutput.writeTo(bytesOutputStream)")
+        .addStatement("string = bytesOutputStream.toString()")
+        .nextControlFlow("catch ($T e)", Exception.class)
+        .addStatement("throw new $T(e)", RuntimeException.class)
+        .endControlFlow()
+        .addStatement("return string")
+        .build());
+
+    type.addType(simpleRequestFacadeType());
+
+    type.addMethod(MethodSpec.methodBuilder("parseResponse")
+        .addModifiers(Modifier.STATIC)
+        .returns(CLIENT_RESPONSE)
+        .addParameter(RESPONSE, "response")
+        .addStatement("return new $T(response.request().urlString(), response.code(),"
+            + " response.message(),\ncreateHeaders(response.headers()),"
+            + " createResponseBody(response.body()))", CLIENT_RESPONSE)
+        .build());
+
+    type.addField(FieldSpec.builder(CHARSET, "UTF_8",
+            Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+        .initializer("$T.forName($S)", CHARSET, "UTF-8")
+        .build());
+
+    type.addMethod(MethodSpec.methodBuilder("parseResponse")
+        .addJavadoc("A response whose body has already been read into {@code body}, which can be"
+            + " read again.\n")
+        .addModifiers(Modifier.STATIC)
+        .returns(CLIENT_RESPONSE)
+        .addParameter(RESPONSE, "response")
+        .addParameter(byte[].class, "body")
+        .addStatement("$T contentType = response.body().contentType()", MEDIA_TYPE)
+        .addStatement("return new $T(response.request().urlString(), response.code(),"
+            + " response.message(),\ncreateHeaders(response.headers()),\nbody.length == 0 ? null"
+            + " : new $T(contentType == null ? null : contentType.toString(), body))",
+            CLIENT_RESPONSE, TYPED_BYTE_ARRAY)
+        .build());
+
+    TypeVariableName t = TypeVariableName.get("T");
+    type.addType(TypeSpec.classBuilder("Converted")
+        .addJavadoc("A converted body and its response, handed together to a"
+            + " {@code Callback}.\n")
+        .addModifiers(Modifier.STATIC, Modifier.FINAL)
+        .addTypeVariable(t)
+        .addField(t, "object", Modifier.FINAL)
+        .addField(CLIENT_RESPONSE, "response", Modifier.FINAL)
+        .addMethod(MethodSpec.constructorBuilder()
+            .addParameter(t, "object")
+            .addParameter(CLIENT_RESPONSE, "response")
+            .addStatement("this.object = object")
+            .addStatement("this.response = response")
+            .build())
+        .build());
+
+    TypeSpec typedInput = TypeSpec.anonymousClassBuilder("")
+        .addSuperinterface(TYPED_INPUT)
+        .addMethod(MethodSpec.methodBuilder("mimeType")
+            .addAnnotation(Override.class)
+            .addModifiers(Modifier.PUBLIC)
+            .returns(STRING)
+            .addStatement("$T mediaType = body.contentType()", MEDIA_TYPE)
+            .addStatement("return mediaType == null ? null : mediaType.toString()")
+            .build())
+        .addMethod(MethodSpec.methodBuilder("length")
+            .addAnnotation(Override.class)
+            .addModifiers(Modifier.PUBLIC)
+            .returns(TypeName.LONG)
+            .beginControlFlow("try")
+            .addStatement("return body.contentLength()")
+            .nextControlFlow("catch ($T e)", IO_EXCEPTION)
+            .addStatement("return 0L")
+            .endControlFlow()
+            .build())
+        .addMethod(MethodSpec.methodBuilder("in")
+            .addAnnotation(Override.class)
+            .addModifiers(Modifier.PUBLIC)
+            .returns(INPUT_STREAM)
+            .addException(IO_EXCEPTION)
+            .addStatement("return body.byteStream()")
+            .build())
+        .build();
+    type.addMethod(MethodSpec.methodBuilder("createResponseBody")
+        .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+        .returns(TYPED_INPUT)
+        .addParameter(RESPONSE_BODY, "body", Modifier.FINAL)
+        .beginControlFlow("try")
+        .beginControlFlow("if (body.contentLength() == 0)")
+        .addStatement("return null")
+        .endControlFlow()
+        .nextControlFlow("catch ($T e)", IO_EXCEPTION)
+        .addStatement("return null")
+        .endControlFlow()
+        .addStatement("return $L", typedInput)
+        .build());
+
+    TypeName headerList = ParameterizedTypeName.get(LIST, CLIENT_HEADER);
+    type.addMethod(MethodSpec.methodBuilder("createHeaders")
+        .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+        .returns(headerList)
+        .addParameter(HEADERS, "headers")
+        .addStatement("int size = headers.size()")
+        .addStatement("$T headerList = new $T(size)", headerList,
+            ParameterizedTypeName.get(ARRAY_LIST, CLIENT_HEADER))
+        .beginControlFlow("for (int i = 0; i < size; i++)")
+        .addStatement("headerList.add(new $T(headers.name(i), headers.value(i)))", CLIENT_HEADER)
+        .endControlFlow()
+        .addStatement("return headerList")
+        .build());
+
+    CodeBlock logResponse = CodeBlock.builder()
+        .beginControlFlow("try")
+        .addStatement("return httpLogger.logResponse(response, $T.nanoTime() - start)",
+            System.class)
+        .nextControlFlow("catch ($T e)", IO_EXCEPTION)
+        .addStatement("throw $T.networkError(request.urlString(), e)", RETROFIT_ERROR)
+        .endControlFlow()
+        .build();
+    CodeBlock logError = CodeBlock.builder()
+        .addStatement("httpLogger.logError(request.method(), request.urlString(), e)")
+        .build();
+    type.addMethod(MethodSpec.methodBuilder("logged")
+        .addJavadoc("Logs the response and its timing, or a failure, when logging is enabled.\n")
+        .addModifiers(Modifier.STATIC)
+        .returns(OBSERVABLE_RESPONSE)
+        .addParameter(HTTP_LOGGER, "httpLogger", Modifier.FINAL)
+        .addParameter(OBSERVABLE_RESPONSE, "responseObs")
+        .addParameter(REQUEST, "request", Modifier.FINAL)
+        .beginControlFlow("if (!httpLogger.enabled())")
+        .addStatement("return responseObs")
+        .endControlFlow()
+        .addStatement("final long start = $T.nanoTime()", System.class)
+        .addStatement("return responseObs.map($L).doOnError($L)",
+            func1(RESPONSE, RESPONSE, "response", logResponse),
+            action1(THROWABLE, "e", logError))
+        .build());
+    return type.build();
+  }
+
+  private static TypeSpec onSubscribeResponseType(boolean virtualThreads) {
+    TypeName subscriber =
+        ParameterizedTypeName.get(SUBSCRIBER, WildcardTypeName.supertypeOf(RESPONSE));
+    MethodSpec.Builder call = MethodSpec.methodBuilder("call")
+        .addAnnotation(Override.class)
+        .addModifiers(Modifier.PUBLIC)
+        .addParameter(subscriber, "sub", Modifier.FINAL);
+    if (virtualThreads) {
+      call.beginControlFlow("if ($T.isVirtual($T.currentThread()))", VIRTUAL_THREADS, Thread.class)
+          .addCode("// A blocked virtual thread costs no platform thread, so skip the"
+              + " dispatcher.\n")
+          .addStatement("$T response", RESPONSE)
+          .beginControlFlow("try")
+          .addStatement("response = okHttpClient.newCall(request).execute()")
+          .nextControlFlow("catch ($T e)", IO_EXCEPTION)
+          .addStatement("sub.onError(new $T(request, e))", REQUEST_EXCEPTION)
+          .addStatement("return")
+          .nextControlFlow("catch ($T e)", Exception.class)
+          .addStatement("sub.onError(e)")
+          .addStatement("return")
+          .endControlFlow()
+          .addStatement("sub.onNext(response)")
+          .addStatement("sub.onCompleted()")
+          .addStatement("return")
+          .endControlFlow();
+    }
+    TypeSpec callback = TypeSpec.anonymousClassBuilder("")
+        .addSuperinterface(OK_HTTP_CALLBACK)
+        .addMethod(MethodSpec.methodBuilder("onFailure")
+            .addAnnotation(Override.class)
+            .addModifiers(Modifier.PUBLIC)
+            .addParameter(REQUEST, "r")
+            .addParameter(IO_EXCEPTION, "e")
+            .addStatement("$T.out.println($S + r)", System.class, "retrofit: Request: ")
+            .addStatement("$T.out.println($S + e)", System.class, "retrofit: IOException: ")
+            .addStatement("sub.onError(new $T(r, e))", REQUEST_EXCEPTION)
+            .build())
+        .addMethod(MethodSpec.methodBuilder("onResponse")
+            .addAnnotation(Override.class)
+            .addModifiers(Modifier.PUBLIC)
+            .addParameter(RESPONSE, "response")
+            .addStatement("sub.onNext(response)")
+            .addStatement("sub.onCompleted()")
+            .build())
+        .build();
+    call.beginControlFlow("try")
+        .addStatement("okHttpClient.newCall(request).enqueue($L)", callback)
+        .nextControlFlow("catch ($T e)", Exception.class)
+        .addStatement("sub.onError(e)")
+        .endControlFlow();
+    return TypeSpec.classBuilder("OnSubscribeResponse")
+        .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+        .addSuperinterface(ParameterizedTypeName.get(ON_SUBSCRIBE, RESPONSE))
+        .addField(REQUEST, "request", Modifier.FINAL)
+        .addField(OK_HTTP_CLIENT, "okHttpClient", Modifier.FINAL)
+        .addMethod(MethodSpec.constructorBuilder()
+            .addModifiers(Modifier.PUBLIC)
+            .addParameter(OK_HTTP_CLIENT, "okHttpClient")
+            .addParameter(REQUEST, "request")
+            .addStatement("this.request = request")
+            .addStatement("this.okHttpClient = okHttpClient")
+            .build())
+        .addMethod(call.build())
+        .build();
+  }
+
+  private static TypeSpec jsonTypedInputType() {
+    return TypeSpec.classBuilder("JsonTypedInput")
+        .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+        .addSuperinterface(TYPED_INPUT)
+        .addField(FieldSpec.builder(STRING, "MIME_APP_JSON",
+                Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+            .initializer("$S", "applications/json")
+            .build())
+        .addField(FieldSpec.builder(STRING, "CHARSET_UTF8",
+                Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+            .initializer("$S", "charset=utf-8")
+            .build())
+        .addField(FieldSpec.builder(STRING, "MIME_APP_JSON_CHARSET_UTF8",
+                Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+            .initializer("MIME_APP_JSON + $S + _CHARSET_UTF8", "; ")
+            .build())
+        .addField(byte[].class, "bytes", Modifier.PRIVATE, Modifier.FINAL)
+        .addField(INPUT_STREAM, "in", Modifier.PRIVATE, Modifier.FINAL)
+        .addMethod(MethodSpec.constructorBuilder()
+            .addModifiers(Modifier.PUBLIC)
+            .addParameter(STRING, "json")
+            .addStatement("bytes = json.getBytes()")
+            .addStatement("in = new $T(json.getBytes())", BYTE_ARRAY_INPUT_STREAM)
+            .build())
+        .addMethod(MethodSpec.methodBuilder("in")
+            .addAnnotation(Override.class)
+            .addModifiers(Modifier.PUBLIC)
+            .returns(INPUT_STREAM)
+            .addStatement("return in")
+            .build())
+        .addMethod(MethodSpec.methodBuilder("length")
+            .addAnnotation(Override.class)
+            .addModifiers(Modifier.PUBLIC)
+            .returns(TypeName.LONG)
+            .addStatement("return bytes.length")
+            .build())
+        .addMethod(MethodSpec.methodBuilder("mimeType")
+            .addAnnotation(Override.class)
+            .addModifiers(Modifier.PUBLIC)
+            .returns(STRING)
+            .addStatement("return MIME_APP_JSON_CHARSET_UTF8")
+            .build())
+        .build();
+  }
+
+  private static TypeSpec simpleRequestFacadeType() {
+    MethodSpec.Builder addEncodedPathParam = MethodSpec.methodBuilder("addEncodedPathParam")
+        .addAnnotation(Override.class)
+        .addModifiers(Modifier.PUBLIC)
+        .addParameter(STRING, "name")
+        .addParameter(STRING, "value")
+        .beginControlFlow("if (path == null)")
+        .addStatement("httpUrlBuilder()")
+        .addStatement("path = $T.decode(original.httpUrl().encodedPath())", URL_DECODER)
+        .endControlFlow()
+        .beginControlFlow("if (name == null || $S.equals(name))", "")
+        .addStatement("path += $S + value", "/")
+        .nextControlFlow("else")
+        .addStatement("path = path.replace($S + name + $S, value)", "{", "}")
+        .endControlFlow();
+    return TypeSpec.classBuilder("SimpleRequestFacade")
+        .addJavadoc("Applies RequestInterceptor edits to a request. The builders are created on the"
+            + " first edit\nof their kind, and request() returns the original request if nothing"
+            + " was edited.\n")
+        .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+        .addSuperinterface(REQUEST_FACADE)
+        .addField(REQUEST, "original", Modifier.FINAL)
+        .addField(REQUEST_BUILDER, "requestBuilder")
+        .addField(HTTP_URL_BUILDER, "httpUrlBuilder")
+        .addField(STRING, "path")
+        .addMethod(MethodSpec.constructorBuilder()
+            .addModifiers(Modifier.PUBLIC)
+            .addParameter(REQUEST, "request")
+            .addStatement("this.original = request")
+            .build())
+        .addMethod(MethodSpec.methodBuilder("requestBuilder")
+            .addModifiers(Modifier.PUBLIC)
+            .returns(REQUEST_BUILDER)
+            .beginControlFlow("if (requestBuilder == null)")
+            .addStatement("requestBuilder = original.newBuilder()")
+            .endControlFlow()
+            .addStatement("return requestBuilder")
+            .build())
+        .addMethod(MethodSpec.methodBuilder("httpUrlBuilder")
+            .returns(HTTP_URL_BUILDER)
+            .beginControlFlow("if (httpUrlBuilder == null)")
+            .addStatement("httpUrlBuilder = original.httpUrl().newBuilder()")
+            .endControlFlow()
+            .addStatement("return httpUrlBuilder")
+            .build())
+        .addMethod(MethodSpec.methodBuilder("request")
+            .addModifiers(Modifier.PUBLIC)
+            .returns(REQUEST)
+            .beginControlFlow("if (requestBuilder == null && httpUrlBuilder == null)")
+            .addStatement("return original")
+            .endControlFlow()
+            .beginControlFlow("if (httpUrlBuilder != null)")
+            .beginControlFlow("if (path != null)")
+            .addStatement("httpUrlBuilder.encodedPath(path)")
+            .endControlFlow()
+            .addStatement("requestBuilder().url(httpUrlBuilder.build())")
+            .endControlFlow()
+            .addStatement("return requestBuilder.build()")
+            .build())
+        .addMethod(addEncodedPathParam.build())
+        .addMethod(facadeMethod("addEncodedQueryParam",
+            "httpUrlBuilder().addEncodedQueryParameter(name, value)"))
+        .addMethod(facadeMethod("addHeader", "requestBuilder().addHeader(name, value)"))
+        .addMethod(MethodSpec.methodBuilder("addPathParam")
+            .addAnnotation(Override.class)
+            .addModifiers(Modifier.PUBLIC)
+            .addParameter(STRING, "name")
+            .addParameter(STRING, "value")
+            .addStatement("addEncodedPathParam($T.decode(name), $T.decode(value))",
+                URL_DECODER, URL_DECODER)
+            .build())
+        .addMethod(facadeMethod("addQueryParam", "httpUrlBuilder().addQueryParameter(name, value)"))
+        .build();
+  }
+
+  /** A {@code RequestFacade} method that runs {@code statement} with its name and value. */
+  private static MethodSpec facadeMethod(String name, String statement) {
+    return MethodSpec.methodBuilder(name)
+        .addAnnotation(Override.class)
+        .addModifiers(Modifier.PUBLIC)
+        .addParameter(STRING, "name")
+        .addParameter(STRING, "value")
+        .addStatement(statement)
+        .build();
+  }
+
+  /** Adds the {@code Builder} that implements the class's {@code @Retrofit.Builder}. */
+  private void addBuilder(TypeSpec.Builder type) {
+    List<TypeVariableName> variables = builderTypeVariables;
+    ClassName builderClass = subclass.nestedClass("Builder");
+    TypeName builder = variables.isEmpty()
+        ? builderClass
+        : ParameterizedTypeName.get(builderClass,
+            variables.toArray(new TypeName[variables.size()]));
+    for (String toBuilder : vars.toBuilderMethods) {
+      type.addMethod(MethodSpec.methodBuilder(toBuilder)
+          .addAnnotation(Override.class)
+          .addModifiers(Modifier.PUBLIC)
+          .returns(builderType)
+          .addStatement("return new $T(this)", builder)
+          .build());
+    }
+
+    TypeSpec.Builder spec = TypeSpec.classBuilder("Builder")
+        .addModifiers(Modifier.STATIC, Modifier.FINAL)
+        .addTypeVariables(variables);
+    if (vars.builderIsInterface) {
+      spec.addSuperinterface(builderType);
+    } else {
+      spec.superclass(builderType);
+    }
+    spec.addField(FieldSpec.builder(BIT_SET, "set$", Modifier.PRIVATE, Modifier.FINAL)
+        .initializer("new $T()", BIT_SET)
+        .build());
+    for (Property p : vars.builderProps) {
+      spec.addField(signatures.get(p).parameters.get(0).type, p.toString(), Modifier.PRIVATE);
+    }
+    spec.addMethod(MethodSpec.constructorBuilder().build());
+    for (Property p : vars.builderProps) {
+      MethodSpec.Builder setter = MethodSpec.methodBuilder(p.getName())
+          .addAnnotation(Override.class)
+          .addModifiers(Modifier.PUBLIC)
+          .returns(builderType)
+          .addParameter(signatures.get(p).parameters.get(0).type, p.toString());
+      if (p.getKind() == TypeKind.ARRAY) {
+        setter.addStatement("this.$L = ($L == null) ? null : $L.clone()", p, p, p);
+      } else {
+        setter.addStatement("this.$L = $L", p, p);
+      }
+      spec.addMethod(setter.addStatement("return this").build());
+    }
+    List<String> arguments = new ArrayList<String>();
+    for (Property p : vars.builderProps) {
+      arguments.add("this." + p);
+    }
+    TypeName generated = typeVariables.isEmpty()
+        ? subclass
+        : ParameterizedTypeName.get(subclass,
+            typeVariables.toArray(new TypeName[typeVariables.size()]));
+    MethodSpec.Builder build = MethodSpec.methodBuilder(vars.buildMethodName)
+        .addAnnotation(Override.class)
+        .addModifiers(Modifier.PUBLIC)
+        .returns(superclass)
+        .addStatement("$T result = new $T($L)", superclass, generated,
+            Joiner.on(", ").join(arguments));
+    for (String validator : vars.validators) {
+      build.addStatement("result.$L()", validator);
+    }
+    spec.addMethod(build.addStatement("return result").build());
+    type.addType(spec.build());
+  }
+}
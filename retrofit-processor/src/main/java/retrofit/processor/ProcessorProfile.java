@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrofit.processor;
+
+import com.google.common.base.Ticker;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.processing.Messager;
+import javax.tools.Diagnostic;
+
+/**
+ * Per-type, per-phase timings of {@link RetrofitProcessor}, turned on with
+ * {@code -Aretrofit.profile=true}. The summary is printed as a compiler note when processing is
+ * over, and written as JSON to the file named by {@code -Aretrofit.profile.output} if given.
+ *
+ * <p>The JSON goes through plain file IO rather than the Filer, so that profiling doesn't add
+ * outputs Gradle would have to tie to an originating element.
+ *
+ * <p>Rendering and reformatting may run on several threads at once, so their times are charged
+ * with {@link #charge} and add up to more than the wall-clock time when they do.
+ */
+class ProcessorProfile {
+  static final String OPTION = "retrofit.profile";
+  static final String OUTPUT_OPTION = "retrofit.profile.output";
+
+  /** How many of the slowest types the note lists. */
+  private static final int SLOWEST = 10;
+
+  enum Phase {
+    DISCOVERY, PROPERTIES, RENDER, REFORMAT, WRITE;
+
+    String key() {
+      return name().toLowerCase(Locale.US);
+    }
+  }
+
+  private final boolean enabled;
+  private final Ticker ticker;
+  private final Map<String, long[]> types = new LinkedHashMap<String, long[]>();
+  private long[] current;
+  private long last;
+
+  ProcessorProfile(boolean enabled, Ticker ticker) {
+    this.enabled = enabled;
+    this.ticker = ticker;
+  }
+
+  static ProcessorProfile fromOptions(Map<String, String> options) {
+    return new ProcessorProfile(Boolean.parseBoolean(options.get(OPTION)), Ticker.systemTicker());
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Starts timing {@code type} on the compiler thread. Time spent on a type in several phases or
+   * rounds is added up.
+   */
+  synchronized void startType(String type) {
+    if (!enabled) return;
+    current = nanos(type);
+    last = ticker.read();
+  }
+
+  /** Charges the time since the previous mark to {@code phase} of the current type. */
+  synchronized void endPhase(Phase phase) {
+    if (!enabled || current == null) return;
+    long now = ticker.read();
+    current[phase.ordinal()] += now - last;
+    last = now;
+  }
+
+  /** Returns the time now, for a later {@link #charge}. */
+  long mark() {
+    return enabled ? ticker.read() : 0;
+  }
+
+  /**
+   * Charges the time since {@code mark} to {@code phase} of {@code type}, from any thread, and
+   * returns the time now.
+   */
+  synchronized long charge(String type, Phase phase, long mark) {
+    if (!enabled) return 0;
+    long now = ticker.read();
+    nanos(type)[phase.ordinal()] += now - mark;
+    return now;
+  }
+
+  private long[] nanos(String type) {
+    long[] nanos = types.get(type);
+    if (nanos == null) {
+      nanos = new long[Phase.values().length];
+      types.put(type, nanos);
+    }
+    return nanos;
+  }
+
+  /** Prints the summary note, and writes the JSON report if an output file was given. */
+  synchronized void report(Messager messager, Map<String, String> options) {
+    if (!enabled || types.isEmpty()) return;
+    messager.printMessage(Diagnostic.Kind.NOTE, summary());
+    String output = options.get(OUTPUT_OPTION);
+    if (output == null || output.isEmpty()) return;
+    try {
+      Writer writer = new OutputStreamWriter(new FileOutputStream(new File(output)), "UTF-8");
+      try {
+        writer.write(toJson());
+      } finally {
+        writer.close();
+      }
+    } catch (IOException e) {
+      messager.printMessage(Diagnostic.Kind.WARNING,
+          "Could not write @Retrofit profile to " + output + ": " + e);
+    }
+  }
+
+  synchronized String summary() {
+    long[] totals = totals();
+    StringBuilder sb = new StringBuilder("@Retrofit processor profile: ")
+        .append(types.size()).append(" types in ").append(ms(sum(totals))).append(" ms (");
+    for (Phase phase : Phase.values()) {
+      if (phase.ordinal() > 0) sb.append(", ");
+      sb.append(phase.key()).append(' ').append(ms(totals[phase.ordinal()]));
+    }
+    sb.append(')');
+    List<Map.Entry<String, long[]>> slowest = slowest();
+    for (Map.Entry<String, long[]> entry : slowest.subList(0, Math.min(SLOWEST, slowest.size()))) {
+      sb.append("\n  ").append(ms(sum(entry.getValue()))).append(" ms ").append(entry.getKey());
+    }
+    return sb.toString();
+  }
+
+  synchronized String toJson() {
+    long[] totals = totals();
+    StringBuilder sb = new StringBuilder("{\n  \"totalMs\": ").append(ms(sum(totals)));
+    sb.append(",\n  \"phases\": ");
+    appendPhases(sb, totals);
+    sb.append(",\n  \"types\": [");
+    boolean first = true;
+    for (Map.Entry<String, long[]> entry : slowest()) {
+      sb.append(first ? "\n" : ",\n");
+      first = false;
+      sb.append("    {\"type\": \"").append(entry.getKey()).append("\", \"totalMs\": ")
+          .append(ms(sum(entry.getValue()))).append(", \"phases\": ");
+      appendPhases(sb, entry.getValue());
+      sb.append('}');
+    }
+    return sb.append("\n  ]\n}\n").toString();
+  }
+
+  private static void appendPhases(StringBuilder sb, long[] nanos) {
+    sb.append('{');
+    for (Phase phase : Phase.values()) {
+      if (phase.ordinal() > 0) sb.append(", ");
+      sb.append('"').append(phase.key()).append("\": ").append(ms(nanos[phase.ordinal()]));
+    }
+    sb.append('}');
+  }
+
+  private long[] totals() {
+    long[] totals = new long[Phase.values().length];
+    for (long[] nanos : types.values()) {
+      for (int i = 0; i < totals.length; i++) {
+        totals[i] += nanos[i];
+      }
+    }
+    return totals;
+  }
+
+  private List<Map.Entry<String, long[]>> slowest() {
+    List<Map.Entry<String, long[]>> entries =
+        new ArrayList<Map.Entry<String, long[]>>(types.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<String, long[]>>() {
+      @Override public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+        long x = sum(a.getValue());
+        long y = sum(b.getValue());
+        return x < y ? 1 : x > y ? -1 : 0;
+      }
+    });
+    return entries;
+  }
+
+  private static long sum(long[] nanos) {
+    long sum = 0;
+    for (long n : nanos) {
+      sum += n;
+    }
+    return sum;
+  }
+
+  private static String ms(long nanos) {
+    return String.format(Locale.US, "%.3f", nanos / 1e6);
+  }
+}
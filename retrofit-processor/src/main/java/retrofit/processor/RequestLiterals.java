@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrofit.processor;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses the string literals of the HTTP annotations: the URL of {@code @GET} and friends, with
+ * its {@code {name}} placeholders and query string, and the {@code "Name: value"} lines of
+ * {@code @Headers}. Each literal is scanned once. Problems are added to a list of messages instead
+ * of thrown, so that the processor can report them against the annotated element, and the parsed
+ * parts are escaped so that they can be pasted inside Java string literals in the template.
+ */
+final class RequestLiterals {
+  private RequestLiterals() {}
+
+  /**
+   * Returns the path of {@code url}, the part before any {@code ?}, as the body of a Java string
+   * literal. Each {@code {name}} is replaced by a concatenation of the parameter that
+   * {@code placeholders} maps {@code name} to, giving for example {@code /users/" + id + "/repos}.
+   */
+  static String path(String url, Map<String, String> placeholders, List<String> errors) {
+    StringBuilder sb = new StringBuilder(url.length() + 16);
+    int len = url.length();
+    for (int i = 0; i < len; i++) {
+      char c = url.charAt(i);
+      if (c == '?') {
+        break;
+      }
+      if (c == '{') {
+        int close = url.indexOf('}', i + 1);
+        if (close < 0) {
+          errors.add("URL has an unclosed '{': " + url);
+          escape(url.substring(i), sb);
+          break;
+        }
+        String name = url.substring(i + 1, close);
+        String parameter = placeholders.get(name);
+        if (parameter != null) {
+          sb.append("\" + ").append(parameter).append(" + \"");
+        } else {
+          errors.add("URL has {" + name + "} but no parameter named " + name + ": " + url);
+          escape(url.substring(i, close + 1), sb);
+        }
+        i = close;
+      } else {
+        escape(c, sb);
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Adds the parameters of the query string of {@code url}, if it has one, to {@code queries}. The
+   * keys are escaped for use inside a Java string literal and the values are Java string literals.
+   * A parameter without {@code =} gets an empty value.
+   */
+  static void queries(String url, Map<String, String> queries, List<String> errors) {
+    int start = url.indexOf('?') + 1;
+    if (start == 0) {
+      return;
+    }
+    int len = url.length();
+    while (start < len) {
+      int end = url.indexOf('&', start);
+      if (end < 0) {
+        end = len;
+      }
+      if (end > start) {
+        int equals = url.indexOf('=', start);
+        if (equals < 0 || equals > end) {
+          equals = end;
+        }
+        if (equals == start) {
+          errors.add("URL query has a parameter without a name: " + url);
+        } else {
+          String value = equals < end ? url.substring(equals + 1, end) : "";
+          queries.put(escape(url.substring(start, equals)), javaString(value));
+        }
+      }
+      start = end + 1;
+    }
+  }
+
+  /**
+   * Adds a {@code "Name: value"} header line to {@code headers}, mapping the name to the value as a
+   * Java string literal. The line is split at its first colon, so values such as URLs may contain
+   * colons of their own.
+   */
+  static void header(String line, Map<String, String> headers, List<String> errors) {
+    int colon = line.indexOf(':');
+    if (colon < 0) {
+      errors.add("Header must be in the form \"Name: value\": " + line);
+      return;
+    }
+    String name = line.substring(0, colon).trim();
+    String value = line.substring(colon + 1).trim();
+    if (name.isEmpty() || !isToken(name)) {
+      errors.add("Header has an invalid name: " + line);
+      return;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if ((c < ' ' && c != '\t') || c == '\u007f') {
+        errors.add("Header value may not contain control characters: " + name);
+        return;
+      }
+    }
+    headers.put(name, javaString(value));
+  }
+
+  /** Returns {@code s} as a Java string literal, quotes included. */
+  static String javaString(String s) {
+    StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+    escape(s, sb);
+    return sb.append('"').toString();
+  }
+
+  /** Returns {@code s} escaped for use inside a Java string literal. */
+  static String escape(String s) {
+    StringBuilder sb = new StringBuilder(s.length());
+    escape(s, sb);
+    return sb.toString();
+  }
+
+  private static void escape(String s, StringBuilder sb) {
+    for (int i = 0; i < s.length(); i++) {
+      escape(s.charAt(i), sb);
+    }
+  }
+
+  private static void escape(char c, StringBuilder sb) {
+    switch (c) {
+      case '"':
+        sb.append("\\\"");
+        break;
+      case '\\':
+        sb.append("\\\\");
+        break;
+      case '\n':
+        sb.append("\\n");
+        break;
+      case '\r':
+        sb.append("\\r");
+        break;
+      case '\t':
+        sb.append("\\t");
+        break;
+      default:
+        if (c < ' ') {
+          sb.append(String.format("\\u%04x", (int) c));
+        } else {
+          sb.append(c);
+        }
+        break;
+    }
+  }
+
+  /** Whether {@code s} only has the characters that RFC 7230 allows in a header name. */
+  private static boolean isToken(String s) {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      boolean ok = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+          || "!#$%&'*+-.^_`|~".indexOf(c) >= 0;
+      if (!ok) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrofit.processor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+
+/**
+ * The mirrors of the library types that every {@link RetrofitProcessor.Property} is compared
+ * against, such as {@code Observable}, {@code Callback} and {@code Response}, each looked up once.
+ * Elements are not guaranteed to be the same objects from one round to the next, so the processor
+ * makes a new instance for every round.
+ */
+class ResolvedTypes {
+  private final Elements elementUtils;
+  private final Map<String, TypeMirror> mirrors = new HashMap<String, TypeMirror>();
+
+  ResolvedTypes(Elements elementUtils) {
+    this.elementUtils = elementUtils;
+  }
+
+  TypeMirror of(Class<?> c) {
+    String name = c.getCanonicalName();
+    TypeMirror mirror = mirrors.get(name);
+    if (mirror == null) {
+      mirror = elementUtils.getTypeElement(name).asType();
+      mirrors.put(name, mirror);
+    }
+    return mirror;
+  }
+}
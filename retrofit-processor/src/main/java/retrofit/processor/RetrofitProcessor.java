@@ -20,6 +20,7 @@ import retrofit.http.Retrofit;
 import retrofit.RetrofitError;
 import retrofit.Callback;
 import com.google.auto.service.AutoService;
+import com.google.common.base.CaseFormat;
 import com.google.common.base.Functions;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
@@ -31,6 +32,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.beans.Introspector;
 import java.io.IOException;
@@ -43,12 +45,19 @@ import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.annotation.Generated;
 import javax.annotation.processing.AbstractProcessor;
@@ -66,6 +75,7 @@ import javax.lang.model.element.TypeParameterElement;
 import javax.lang.model.element.VariableElement;
 import javax.lang.model.type.ArrayType;
 import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
 import javax.lang.model.util.ElementFilter;
@@ -92,12 +102,34 @@ public class RetrofitProcessor extends AbstractProcessor {
     return ImmutableSet.of(Retrofit.class.getName());
   }
 
+  @Override
+  public Set<String> getSupportedOptions() {
+    return ImmutableSet.of(
+        ProcessorProfile.OPTION, ProcessorProfile.OUTPUT_OPTION, THREADS_OPTION, BACKEND_OPTION);
+  }
+
   @Override
   public SourceVersion getSupportedSourceVersion() {
     return SourceVersion.latestSupported();
   }
 
+  /**
+   * How many threads render and reformat the generated classes of a round. The default is the
+   * number of processors; {@code 1} does everything on the compiler thread.
+   */
+  static final String THREADS_OPTION = "retrofit.threads";
+
+  /**
+   * How generated classes are written: {@code velocity}, the default, renders {@code retrofit.vm}
+   * and reformats it; {@code javapoet} builds the same classes with {@link JavaPoetGenerator}.
+   */
+  static final String BACKEND_OPTION = "retrofit.backend";
+
   private ErrorReporter errorReporter;
+  private ProcessorProfile profile;
+  private ResolvedTypes resolvedTypes;
+  private int renderThreads;
+  private boolean javaPoet;
 
   /**
    * Qualified names of {@code @Retrofit} classes that we attempted to process but had to abandon
@@ -109,10 +141,30 @@ public class RetrofitProcessor extends AbstractProcessor {
   public synchronized void init(ProcessingEnvironment processingEnv) {
     super.init(processingEnv);
     errorReporter = new ErrorReporter(processingEnv);
+    profile = ProcessorProfile.fromOptions(processingEnv.getOptions());
+    renderThreads = Runtime.getRuntime().availableProcessors();
+    String threads = processingEnv.getOptions().get(THREADS_OPTION);
+    if (threads != null) {
+      try {
+        renderThreads = Math.max(1, Integer.parseInt(threads.trim()));
+      } catch (NumberFormatException e) {
+        errorReporter.reportWarning("Ignoring -A" + THREADS_OPTION + "=" + threads
+            + ", which is not a number", null);
+      }
+    }
+    String backend = processingEnv.getOptions().get(BACKEND_OPTION);
+    if (backend != null) {
+      javaPoet = backend.trim().equals(JavaPoetGenerator.BACKEND);
+      if (!javaPoet && !backend.trim().equals("velocity")) {
+        errorReporter.reportWarning("Ignoring -A" + BACKEND_OPTION + "=" + backend
+            + ", which is neither velocity nor " + JavaPoetGenerator.BACKEND, null);
+      }
+    }
   }
 
   @Override
   public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    resolvedTypes = new ResolvedTypes(processingEnv.getElementUtils());
     List<TypeElement> deferredTypes = new ArrayList<TypeElement>();
     for (String deferred : deferredTypeNames) {
       deferredTypes.add(processingEnv.getElementUtils().getTypeElement(deferred));
@@ -125,6 +177,7 @@ public class RetrofitProcessor extends AbstractProcessor {
         errorReporter.reportError("Did not generate @Retrofit class for " + type.getQualifiedName()
             + " because it references undefined types", type);
       }
+      profile.report(processingEnv.getMessager(), processingEnv.getOptions());
       return false;
     }
     Collection<? extends Element> annotatedElements =
@@ -134,9 +187,12 @@ public class RetrofitProcessor extends AbstractProcessor {
         .addAll(ElementFilter.typesIn(annotatedElements))
         .build();
     deferredTypeNames.clear();
+    // Everything that reads the compiler's model happens here, on the compiler thread. Rendering
+    // and reformatting only need the template variables, so they can run in parallel.
+    List<PendingType> pendingTypes = new ArrayList<PendingType>();
     for (TypeElement type : types) {
       try {
-        processType(type);
+        pendingTypes.add(prepareType(type));
       } catch (AbortProcessingException e) {
         // We abandoned this type; continue with the next.
       } catch (MissingTypeException e) {
@@ -150,13 +206,59 @@ public class RetrofitProcessor extends AbstractProcessor {
       } catch (RuntimeException e) {
         // Don't propagate this exception, which will confusingly crash the compiler.
         // Instead, report a compiler error with the stack trace.
-        String trace = Throwables.getStackTraceAsString(e);
-        errorReporter.reportError("@Retrofit processor threw an exception: " + trace, type);
+        reportException(e, type);
       }
     }
+    renderAndWrite(pendingTypes);
     return false;  // never claim annotation, because who knows what other processors want?
   }
 
+  /**
+   * Renders the pending types, on a thread pool if there is more than one, and writes them in the
+   * order they were found so that the output doesn't depend on scheduling.
+   */
+  private void renderAndWrite(List<PendingType> pendingTypes) {
+    int threads = Math.min(renderThreads, pendingTypes.size());
+    ExecutorService executor = null;
+    if (threads > 1) {
+      executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+          .setNameFormat("retrofit-processor-%d")
+          .setDaemon(true)
+          .build());
+    }
+    try {
+      for (PendingType pending : pendingTypes) {
+        if (executor != null) {
+          pending.text = executor.submit(renderTask(pending));
+        } else {
+          FutureTask<String> task = new FutureTask<String>(renderTask(pending));
+          task.run();
+          pending.text = task;
+        }
+      }
+      for (PendingType pending : pendingTypes) {
+        try {
+          writeType(pending);
+        } catch (AbortProcessingException e) {
+          // We abandoned this type; continue with the next.
+        } catch (RuntimeException e) {
+          reportException(e, pending.type);
+        }
+      }
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  private void reportException(RuntimeException e, TypeElement type) {
+    // Don't propagate this exception, which will confusingly crash the compiler.
+    // Instead, report a compiler error with the stack trace.
+    String trace = Throwables.getStackTraceAsString(e);
+    errorReporter.reportError("@Retrofit processor threw an exception: " + trace, type);
+  }
+
   private String generatedClassName(TypeElement type, String prefix) {
     String name = type.getSimpleName().toString();
     while (type.getEnclosingElement() instanceof TypeElement) {
@@ -186,6 +288,83 @@ public class RetrofitProcessor extends AbstractProcessor {
       this.onAnnotationForProperty = onAnnotationForProperty;
   }
 
+  /** A parameter's entry in the generated {@code ROUTES} table. */
+  public static class RouteParam {
+    private final String binding;
+    private final String name;
+    private final String key;
+
+    public RouteParam(String binding, String name, String key) {
+      this.binding = binding;
+      this.name = name;
+      this.key = key;
+    }
+
+    /** The name of a {@code retrofit.http.Route.Binding} constant. */
+    public String getBinding() {
+      return binding;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /** The key, escaped for use inside a Java string literal. */
+    public String getKey() {
+      return key;
+    }
+  }
+
+  /**
+   * A query parameter or form field of a property: a literal from the URL's query string, a
+   * {@code @Query} or {@code @Field} parameter, or a {@code @QueryMap} or {@code @FieldMap}
+   * parameter. The kind is worked out from the parameter's type, so that the template can add each
+   * value without boxing a primitive or inspecting the value at run time.
+   */
+  public static class ValueParam {
+    /** A literal value from the URL. */
+    static final String LITERAL = "LITERAL";
+    static final String PRIMITIVE = "PRIMITIVE";
+    static final String STRING = "STRING";
+    /** Any other single value, added with {@code toString()}. */
+    static final String OBJECT = "OBJECT";
+    static final String PRIMITIVE_ARRAY = "PRIMITIVE_ARRAY";
+    /** An {@code Iterable} or object array, adding the key once per non-null element. */
+    static final String ITERABLE = "ITERABLE";
+    static final String MAP = "MAP";
+
+    private final String kind;
+    private final String key;
+    private final String value;
+    private final String elementType;
+
+    public ValueParam(String kind, String key, String value, String elementType) {
+      this.kind = kind;
+      this.key = key;
+      this.value = value;
+      this.elementType = elementType;
+    }
+
+    public String getKind() {
+      return kind;
+    }
+
+    /** The key, escaped for use inside a Java string literal; empty for a map. */
+    public String getKey() {
+      return key;
+    }
+
+    /** The parameter name, or a Java string literal for {@link #LITERAL}. */
+    public String getValue() {
+      return value;
+    }
+
+    /** The component type of a {@link #PRIMITIVE_ARRAY}; empty otherwise. */
+    public String getElementType() {
+      return elementType;
+    }
+  }
+
   public static class Part {
     private final String name;
     private final String mimeType;
@@ -224,6 +403,47 @@ public class RetrofitProcessor extends AbstractProcessor {
     }
   }
 
+  /**
+   * The {@code @Batch} settings of a property, plus the single parameter that serves as its key.
+   * The endpoint and param are escaped for use inside Java string literals.
+   */
+  public static class Batch {
+    private final String endpoint;
+    private final String param;
+    private final int maxSize;
+    private final long maxDelayMs;
+    private final String key;
+    private final String keyType;
+
+    public Batch(String endpoint, String param, int maxSize, long maxDelayMs, String key, String keyType) {
+      this.endpoint = endpoint;
+      this.param = param;
+      this.maxSize = maxSize;
+      this.maxDelayMs = maxDelayMs;
+      this.key = key;
+      this.keyType = keyType;
+    }
+
+    public String getEndpoint() {
+      return endpoint;
+    }
+    public String getParam() {
+      return param;
+    }
+    public int getMaxSize() {
+      return maxSize;
+    }
+    public long getMaxDelayMs() {
+      return maxDelayMs;
+    }
+    public String getKey() {
+      return key;
+    }
+    public String getKeyType() {
+      return keyType;
+    }
+  }
+
   /**
    * A property of an {@code @Retrofit} class, defined by one of its abstract methods.
    * An instance of this class is made available to the Velocity template engine for
@@ -241,7 +461,7 @@ public class RetrofitProcessor extends AbstractProcessor {
     private final ImmutableList<String> annotations;
     private final String args;
     private final String path;
-    private final Map<String, String> queries;
+    private final List<ValueParam> queries;
     private final List<String> queryMaps;
     private final List<String> queryBundles;
     private final boolean isGet;
@@ -250,20 +470,22 @@ public class RetrofitProcessor extends AbstractProcessor {
     private final boolean isDelete;
     private final boolean isHead;
     private final boolean isObservable; // returnType Observable
+    private final String future; // COMPLETABLE, LISTENABLE or ""
     private final boolean isResponseType; // returnType == Response || returnType<Response>
     private final boolean isVoid;
     private final boolean isBlocking;
     private final String body;
-    private final String callbackType;
-    private final TypeMirror callbackTypeMirror;
+    private String callbackType = "";
+    private TypeMirror callbackTypeMirror;
     private final String callbackArg;
     private final ProcessingEnvironment processingEnv;
+    private final ResolvedTypes resolvedTypes;
     private final TypeSimplifier typeSimplifier;
     private final List<String> permissions;
     private final boolean isAuthenticated;
     private final boolean isSingletonRequestInterceptor;
     private final Map<String, String> headers;
-    private final Map<String, String> fields;
+    private final List<ValueParam> fields;
     private final Map<String, Part> parts;
     private String callbackName;
     public final String converter;
@@ -271,6 +493,31 @@ public class RetrofitProcessor extends AbstractProcessor {
     public final String errorHandler;
     public final String logLevel;
     public final String requestInterceptor;
+    /** The generated field holding this method's {@code @RequestInterceptor}, set per type. */
+    String requestInterceptorField = "";
+    public final String compressThreshold;
+    private final Batch batch;
+    private final boolean isConnectionStats;
+    private final List<String> literalErrors = new ArrayList<String>();
+    // Read from the model up front, since the template may be rendered off the compiler thread.
+    private final String getter;
+    private final TypeKind kind;
+    private final String access;
+    private final String httpMethod;
+    private final String url;
+    private final String routeResultType;
+    private final List<RouteParam> routeParams;
+    private final String contextParam;
+    /** This method's index in the generated {@code ROUTES} table, set per type. */
+    Integer routeId = -1;
+    /** The name of the generated constant holding {@link #routeId}, set per type. */
+    String routeConstant = "";
+    /** The generated {@code PERMISSIONS_} constant this method authorizes with, set per type. */
+    String permissionsConstant = "";
+    /** The generated {@code HttpLogger} field this method logs with, set per type. */
+    String logger = "httpLogger";
+    /** Whether this method has any logging code, that is its level is not fixed at NONE. */
+    Boolean logged = true;
 
     Property(
         String name,
@@ -278,7 +525,8 @@ public class RetrofitProcessor extends AbstractProcessor {
         ExecutableElement method,
         String type,
         TypeSimplifier typeSimplifier,
-        ProcessingEnvironment processingEnv
+        ProcessingEnvironment processingEnv,
+        ResolvedTypes resolvedTypes
         ) {
       this.name = name;
       this.identifier = identifier;
@@ -286,6 +534,10 @@ public class RetrofitProcessor extends AbstractProcessor {
       this.type = type;
       this.typeSimplifier = typeSimplifier;
       this.processingEnv = processingEnv;
+      this.resolvedTypes = resolvedTypes;
+      this.getter = method.getSimpleName().toString();
+      this.kind = method.getReturnType().getKind();
+      this.access = buildAccess(method);
       this.annotations = buildAnnotations(typeSimplifier);
       this.args = formalTypeArgsString(method);
       this.path = buildPath(method);
@@ -299,19 +551,22 @@ public class RetrofitProcessor extends AbstractProcessor {
       this.isHead = buildIsHead(method);
       this.isAuthenticated = buildIsAuthenticated(method);
       this.isObservable = buildIsObservable(method);
+      this.future = buildFuture(method);
       this.body = buildBody(method);
-      this.callbackTypeMirror = buildCallbackTypeMirror(method);
-      //this.callbackType = buildTypeArgument(callbackTypeMirror);
-      this.callbackType = buildCallbackTypeArgument(method);
-      this.callbackArg = buildTypeArguments(callbackType);
-      this.isBlocking = !isCallback() && !isObservable();
+      classifyCallbackParameter(method);
+      TypeMirror callbackArgument = firstTypeArgument(callbackTypeMirror);
+      TypeMirror observableArgument = firstTypeArgument(method.getReturnType());
+      this.callbackArg = typeArgumentString(firstTypeArgument(callbackArgument));
+      this.isBlocking = !isCallback() && !isObservable() && future.equals("");
       this.isResponseType = buildIsResponseType(method);
-      if (isObservable()) {
-        this.typeArgs = buildTypeArguments(type); // Observable<List<String>> -> List<String>
-        this.typeArgs2 = buildTypeArguments(typeArgs); // Observable<List<String>> -> String
+      if (isObservable() || !future.equals("")) {
+        // Observable<List<String>> -> List<String>, String
+        this.typeArgs = typeArgumentString(observableArgument);
+        this.typeArgs2 = typeArgumentString(firstTypeArgument(observableArgument));
       } else if (isCallback()) {
-        this.typeArgs = callbackType;  // Callback<List<String>> -> List<String>
-        this.typeArgs2 = buildTypeArguments(typeArgs); // Callback<List<String>> -> String
+        // Callback<List<String>> -> List<String>, String
+        this.typeArgs = callbackType;
+        this.typeArgs2 = typeArgumentString(firstTypeArgument(callbackArgument));
       } else { // isBlocking
         this.typeArgs = type;
       }
@@ -326,6 +581,149 @@ public class RetrofitProcessor extends AbstractProcessor {
       this.logLevel = buildLogLevel(method);
       this.requestInterceptor = buildRequestInterceptor(method);
       this.isSingletonRequestInterceptor = buildIsSingletonRequestInterceptor(method);
+      this.compressThreshold = buildCompressThreshold(method);
+      this.batch = buildBatch(method);
+      this.isConnectionStats = buildIsConnectionStats(method);
+      this.httpMethod = buildHttpMethod(method);
+      String rawPath = buildRawPath(method);
+      this.url = rawPath == null ? "" : RequestLiterals.escape(rawPath);
+      TypeMirror resultMirror = isObservable || !future.equals("") ? observableArgument
+          : isCallback() ? callbackArgument
+          : method.getReturnType();
+      this.routeResultType =
+          resultMirror == null ? "" : RequestLiterals.escape(resultMirror.toString());
+      this.routeParams = buildRouteParams(method);
+      this.contextParam = buildContextParam(method);
+    }
+
+    /** Returns the name of the {@code @Context} parameter, or an empty string if there is none. */
+    private String buildContextParam(ExecutableElement method) {
+      String contextParam = "";
+      for (VariableElement parameter : method.getParameters()) {
+        if (parameter.getAnnotation(Retrofit.Context.class) == null) continue;
+        if (!contextParam.equals("")) {
+          literalErrors.add("Only one parameter may be annotated with @Context");
+          break;
+        }
+        contextParam = parameter.getSimpleName().toString();
+      }
+      return contextParam;
+    }
+
+    private static String buildHttpMethod(ExecutableElement method) {
+      if (method.getAnnotation(Retrofit.GET.class) != null
+          || method.getAnnotation(retrofit.http.GET.class) != null) return "GET";
+      if (method.getAnnotation(Retrofit.POST.class) != null
+          || method.getAnnotation(retrofit.http.POST.class) != null) return "POST";
+      if (method.getAnnotation(Retrofit.PUT.class) != null
+          || method.getAnnotation(retrofit.http.PUT.class) != null) return "PUT";
+      if (method.getAnnotation(Retrofit.DELETE.class) != null
+          || method.getAnnotation(retrofit.http.DELETE.class) != null) return "DELETE";
+      if (method.getAnnotation(Retrofit.HEAD.class) != null
+          || method.getAnnotation(retrofit.http.HEAD.class) != null) return "HEAD";
+      return "";
+    }
+
+    private List<RouteParam> buildRouteParams(ExecutableElement method) {
+      List<RouteParam> params = new ArrayList<RouteParam>();
+      for (VariableElement parameter : method.getParameters()) {
+        String name = parameter.getSimpleName().toString();
+        String binding = "NONE";
+        String key = "";
+        Retrofit.Path path = parameter.getAnnotation(Retrofit.Path.class);
+        retrofit.http.Path path1 = parameter.getAnnotation(retrofit.http.Path.class);
+        Retrofit.Query query = parameter.getAnnotation(Retrofit.Query.class);
+        retrofit.http.Query query1 = parameter.getAnnotation(retrofit.http.Query.class);
+        Retrofit.Header header = parameter.getAnnotation(Retrofit.Header.class);
+        retrofit.http.Header header1 = parameter.getAnnotation(retrofit.http.Header.class);
+        Retrofit.Field field = parameter.getAnnotation(Retrofit.Field.class);
+        retrofit.http.Field field1 = parameter.getAnnotation(retrofit.http.Field.class);
+        Retrofit.Part part = parameter.getAnnotation(Retrofit.Part.class);
+        retrofit.http.Part part1 = parameter.getAnnotation(retrofit.http.Part.class);
+        if (path != null || path1 != null) {
+          binding = "PATH";
+          key = path != null ? path.value() : path1.value();
+        } else if (query != null || query1 != null) {
+          binding = "QUERY";
+          key = query != null ? query.value() : query1.value();
+        } else if (parameter.getAnnotation(Retrofit.QueryMap.class) != null
+            || parameter.getAnnotation(retrofit.http.QueryMap.class) != null) {
+          binding = "QUERY_MAP";
+        } else if (header != null || header1 != null) {
+          binding = "HEADER";
+          key = header != null ? header.value() : header1.value();
+        } else if (field != null || field1 != null) {
+          binding = "FIELD";
+          key = field != null ? field.value() : field1.value();
+        } else if (parameter.getAnnotation(Retrofit.FieldMap.class) != null
+            || parameter.getAnnotation(retrofit.http.FieldMap.class) != null) {
+          binding = "FIELD_MAP";
+        } else if (part != null || part1 != null) {
+          binding = "PART";
+          key = part != null ? part.value() : part1.value();
+        } else if (parameter.getAnnotation(Retrofit.Body.class) != null
+            || parameter.getAnnotation(retrofit.http.Body.class) != null) {
+          binding = "BODY";
+        } else if (name.equals(callbackName)) {
+          binding = "CALLBACK";
+        } else if (parameter.getAnnotation(Retrofit.Context.class) != null) {
+          binding = "CONTEXT";
+        }
+        if (key.equals("") && !binding.equals("NONE") && !binding.endsWith("_MAP")
+            && !binding.equals("BODY") && !binding.equals("CALLBACK")
+            && !binding.equals("CONTEXT")) {
+          key = name;
+        }
+        params.add(new RouteParam(binding, name, RequestLiterals.escape(key)));
+      }
+      return params;
+    }
+
+    private boolean buildIsConnectionStats(ExecutableElement method) {
+      TypeMirror connectionStatsType = resolvedTypes.of(retrofit.http.ConnectionStats.class);
+      return method.getParameters().isEmpty()
+          && processingEnv.getTypeUtils().isSameType(method.getReturnType(), connectionStatsType);
+    }
+
+    private Batch buildBatch(ExecutableElement method) {
+      Retrofit.Batch batchAnnotation = method.getAnnotation(Retrofit.Batch.class);
+      if (batchAnnotation == null) return null;
+
+      String key = "";
+      String keyType = "";
+      String param = batchAnnotation.param();
+      List<? extends VariableElement> parameters = method.getParameters();
+      if (parameters.size() == 1) {
+        VariableElement parameter = parameters.get(0);
+        key = parameter.getSimpleName().toString();
+        TypeMirror type = parameter.asType();
+        if (type.getKind().isPrimitive()) {
+          type = processingEnv.getTypeUtils().boxedClass((PrimitiveType) type).asType();
+        }
+        keyType = typeSimplifier.simplify(type);
+        if (param.equals("")) {
+          Retrofit.Path path = parameter.getAnnotation(Retrofit.Path.class);
+          Retrofit.Query query = parameter.getAnnotation(Retrofit.Query.class);
+          if (path != null && !path.value().equals("")) {
+            param = path.value();
+          } else if (query != null && !query.value().equals("")) {
+            param = query.value();
+          } else {
+            param = key;
+          }
+        }
+      }
+      return new Batch(RequestLiterals.escape(batchAnnotation.value()),
+          RequestLiterals.escape(param), batchAnnotation.maxSize(),
+          batchAnnotation.maxDelayMs(), key, keyType);
+    }
+
+    private String buildCompressThreshold(ExecutableElement method) {
+      Retrofit.Compress compressAnnotation = method.getAnnotation(Retrofit.Compress.class);
+      if (compressAnnotation != null) {
+        return String.valueOf(compressAnnotation.threshold());
+      }
+      return "";
     }
 
     private String buildRequestInterceptor(ExecutableElement method) {
@@ -356,7 +754,7 @@ public class RetrofitProcessor extends AbstractProcessor {
           converter = mte.getTypeMirror();
         }
         converterName = typeSimplifier.simplify(converter);
-        TypeMirror gsonConverterType = getTypeMirror(processingEnv, retrofit.converter.GsonConverter.class);
+        TypeMirror gsonConverterType = resolvedTypes.of(retrofit.converter.GsonConverter.class);
         Types typeUtils = processingEnv.getTypeUtils();
         if (typeUtils.isSubtype(gsonConverterType, converter)) {
           this.gsonConverter = converterName;
@@ -384,14 +782,14 @@ public class RetrofitProcessor extends AbstractProcessor {
     private String buildLogLevel(ExecutableElement method) {
       Retrofit.LogLevel logLevelAnnotation = method.getAnnotation(Retrofit.LogLevel.class);
       if (logLevelAnnotation != null) {
-        return ""; // TODO
+        return logLevelAnnotation.value().name();
       }
       return "";
     }
 
     private boolean buildIsObservable(ExecutableElement method) {
       Types typeUtils = processingEnv.getTypeUtils();
-      TypeMirror obsType = getTypeMirror(processingEnv, rx.Observable.class);
+      TypeMirror obsType = resolvedTypes.of(rx.Observable.class);
       TypeMirror returnType = method.getReturnType();
 
       if (returnType instanceof DeclaredType) {
@@ -406,16 +804,34 @@ public class RetrofitProcessor extends AbstractProcessor {
       return false;
     }
 
+    /**
+     * Returns COMPLETABLE for a {@code CompletableFuture<T>} and LISTENABLE for a Guava
+     * {@code ListenableFuture<T>}, matched by name since neither need be on the processor's
+     * classpath, or "" for any other return type.
+     */
+    private static String buildFuture(ExecutableElement method) {
+      TypeMirror returnType = method.getReturnType();
+      if (!(returnType instanceof DeclaredType)
+          || ((DeclaredType) returnType).getTypeArguments().size() != 1) {
+        return "";
+      }
+      String name = ((TypeElement) ((DeclaredType) returnType).asElement())
+          .getQualifiedName().toString();
+      if (name.equals("java.util.concurrent.CompletableFuture")) return "COMPLETABLE";
+      if (name.equals("com.google.common.util.concurrent.ListenableFuture")) return "LISTENABLE";
+      return "";
+    }
+
     private boolean buildIsVoid(ExecutableElement method) {
       return method.getReturnType().getKind() == TypeKind.VOID;
     }
 
     private boolean buildIsResponseType(ExecutableElement method) {
       Types typeUtils = processingEnv.getTypeUtils();
-      TypeMirror responseType = getTypeMirror(processingEnv, retrofit.client.Response.class);
+      TypeMirror responseType = resolvedTypes.of(retrofit.client.Response.class);
       TypeMirror returnType = method.getReturnType();
 
-      if (isObservable()) {
+      if (isObservable() || !future.equals("")) {
         List<? extends TypeMirror> params = ((DeclaredType) returnType).getTypeArguments();
         if (params.size() == 1) { // Observable<Response>
           returnType = params.get(0); // Response
@@ -432,54 +848,45 @@ public class RetrofitProcessor extends AbstractProcessor {
       return typeUtils.isSubtype(returnType, responseType); // isBlocking()
     }
 
-    private String buildTypeArguments(String type) {
-      Pattern pattern = Pattern.compile( "<(.*)>" );
-      Matcher m = pattern.matcher(type);
-      if (m.find()) return m.group(1);
-      return "";
-    }
-
-    private TypeMirror buildCallbackTypeMirror(ExecutableElement method) {
-      Types typeUtils = processingEnv.getTypeUtils();
-      TypeMirror callback = getTypeMirror(processingEnv, Callback.class);
-
-      List<? extends VariableElement> parameters = method.getParameters();
-      for (VariableElement parameter : parameters) {
-        TypeMirror type = parameter.asType();
-        if (type instanceof DeclaredType) {
-          List<? extends TypeMirror> params = ((DeclaredType) type).getTypeArguments();
-          if (params.size() == 1) {
-            callback = typeUtils.getDeclaredType((TypeElement) typeUtils.asElement(callback), new TypeMirror[] {params.get(0)});
-
-            if (typeUtils.isSubtype(type, callback)) {
-              this.callbackName = parameter.getSimpleName().toString();
-              return callback;
-            }
-          }
+    /** Returns the first type argument of {@code type}, or null if it has none. */
+    private static TypeMirror firstTypeArgument(TypeMirror type) {
+      if (type instanceof DeclaredType) {
+        List<? extends TypeMirror> arguments = ((DeclaredType) type).getTypeArguments();
+        if (!arguments.isEmpty()) {
+          return arguments.get(0);
         }
       }
       return null;
     }
 
-    private String buildCallbackTypeArgument(ExecutableElement method) {
+    private String typeArgumentString(TypeMirror type) {
+      return type == null ? "" : typeSimplifier.simplify(type);
+    }
+
+    /**
+     * Finds the {@code Callback<T>} parameter, if any, in one pass over the parameters and records
+     * its type, its name and the spelling of {@code T}.
+     */
+    private void classifyCallbackParameter(ExecutableElement method) {
       Types typeUtils = processingEnv.getTypeUtils();
-      TypeMirror callback = getTypeMirror(processingEnv, Callback.class);
+      TypeElement callbackElement = (TypeElement) typeUtils.asElement(resolvedTypes.of(Callback.class));
 
-      List<? extends VariableElement> parameters = method.getParameters();
-      for (VariableElement parameter : parameters) {
+      for (VariableElement parameter : method.getParameters()) {
         TypeMirror type = parameter.asType();
         if (type instanceof DeclaredType) {
           List<? extends TypeMirror> params = ((DeclaredType) type).getTypeArguments();
           if (params.size() == 1) {
-            callback = typeUtils.getDeclaredType((TypeElement) typeUtils.asElement(callback), new TypeMirror[] {params.get(0)});
+            TypeMirror callback = typeUtils.getDeclaredType(callbackElement, params.get(0));
 
             if (typeUtils.isSubtype(type, callback)) {
-              return typeSimplifier.simplify(params.get(0));
+              this.callbackTypeMirror = callback;
+              this.callbackName = parameter.getSimpleName().toString();
+              this.callbackType = typeSimplifier.simplify(params.get(0));
+              return;
             }
           }
         }
       }
-      return "";
     }
 
     private String buildTypeArgument(TypeMirror type) {
@@ -581,8 +988,7 @@ public class RetrofitProcessor extends AbstractProcessor {
       }
 
       for (String header : headers) {
-        String[] tokens = header.split(":");
-        map.put(tokens[0].trim(), "\"" + tokens[1].trim() + "\"");
+        RequestLiterals.header(header, map, literalErrors);
       }
 
       List<? extends VariableElement> parameters = method.getParameters();
@@ -603,35 +1009,38 @@ public class RetrofitProcessor extends AbstractProcessor {
       return map;
     }
 
-    public Map<String, String> buildFields(ExecutableElement method) {
-      Map<String, String> map = new HashMap<String, String>();
-      // TODO FieldMap
-
+    /** Returns the {@code @Field} and {@code @FieldMap} parameters in declaration order. */
+    public List<ValueParam> buildFields(ExecutableElement method) {
+      List<ValueParam> fields = new ArrayList<ValueParam>();
       List<? extends VariableElement> parameters = method.getParameters();
       for (VariableElement parameter : parameters) {
+        String name = parameter.getSimpleName().toString();
         Retrofit.Field field = parameter.getAnnotation(Retrofit.Field.class);
         retrofit.http.Field field1 = parameter.getAnnotation(retrofit.http.Field.class);
         String key = null;
         if (field != null) {
-          key = field.value().equals("") ? parameter.getSimpleName().toString() : field.value();
+          key = field.value().equals("") ? name : field.value();
         } else if (field1 != null) {
-          key = field1.value().equals("") ? parameter.getSimpleName().toString() : field1.value();
+          key = field1.value().equals("") ? name : field1.value();
+        } else if (parameter.getAnnotation(Retrofit.FieldMap.class) != null
+            || parameter.getAnnotation(retrofit.http.FieldMap.class) != null) {
+          fields.add(buildMapParam(parameter, "@FieldMap"));
+          continue;
         } else {
           continue;
         }
-        map.put(key, parameter.getSimpleName().toString());
+        fields.add(buildValueParam(RequestLiterals.escape(key), parameter));
       }
-
-      return map;
+      return fields;
     }
 
     public Map<String, Part> buildParts(ExecutableElement method) {
       Map<String, Part> map = new HashMap<String, Part>();
       Types typeUtils = processingEnv.getTypeUtils();
-      TypeMirror fileType = getTypeMirror(processingEnv, java.io.File.class);
-      TypeMirror typedFileType = getTypeMirror(processingEnv, retrofit.mime.TypedFile.class);
-      TypeMirror typedStringType = getTypeMirror(processingEnv, retrofit.mime.TypedString.class);
-      TypeMirror typedByteArrayType = getTypeMirror(processingEnv, retrofit.mime.TypedByteArray.class);
+      TypeMirror fileType = resolvedTypes.of(java.io.File.class);
+      TypeMirror typedFileType = resolvedTypes.of(retrofit.mime.TypedFile.class);
+      TypeMirror typedStringType = resolvedTypes.of(retrofit.mime.TypedString.class);
+      TypeMirror typedByteArrayType = resolvedTypes.of(retrofit.mime.TypedByteArray.class);
 
       List<? extends VariableElement> parameters = method.getParameters();
       for (VariableElement parameter : parameters) {
@@ -668,23 +1077,25 @@ public class RetrofitProcessor extends AbstractProcessor {
       String fullPath = buildRawPath(method);
       if (fullPath == null) return null;
 
+      // The first parameter to claim a placeholder gets it: by its @Path name, or else its own.
+      Map<String, String> placeholders = new HashMap<String, String>();
       List<? extends VariableElement> parameters = method.getParameters();
       for (VariableElement parameter : parameters) {
         Retrofit.Path path = parameter.getAnnotation(Retrofit.Path.class);
         retrofit.http.Path path1 = parameter.getAnnotation(retrofit.http.Path.class);
+        String name = parameter.getSimpleName().toString();
+        String placeholder = name;
         if ((path != null) && (!path.value().equals(""))) {
-          fullPath = fullPath.replace("{" + path.value() + "}", "\" + " +
-              parameter.getSimpleName().toString() + " + \"");
+          placeholder = path.value();
         } else if ((path1 != null) && (!path1.value().equals(""))) {
-          fullPath = fullPath.replace("{" + path1.value() + "}", "\" + " +
-              parameter.getSimpleName().toString() + " + \"");
-        } else {
-          fullPath = fullPath.replace("{" + parameter.getSimpleName().toString() + "}", "\" + " +
-              parameter.getSimpleName().toString() + " + \"");
+          placeholder = path1.value();
+        }
+        if (!placeholders.containsKey(placeholder)) {
+          placeholders.put(placeholder, name);
         }
       }
 
-      return fullPath.replaceAll("\\?.+", "");
+      return RequestLiterals.path(fullPath, placeholders, literalErrors);
     }
 
     public String buildRawPath(ExecutableElement method) {
@@ -713,24 +1124,23 @@ public class RetrofitProcessor extends AbstractProcessor {
       return rawPath;
     }
 
-    public Map<String, String> buildQueries(ExecutableElement method) {
-      Map<String, String> map = new HashMap<String, String>();
-
+    /**
+     * Returns the literal query parameters of the URL followed by the {@code @Query} and
+     * {@code @QueryMap} parameters in declaration order. A {@code @Query} replaces a literal of the
+     * same name.
+     */
+    public List<ValueParam> buildQueries(ExecutableElement method) {
+      List<ValueParam> queries = new ArrayList<ValueParam>();
       String fullPath = buildRawPath(method);
-      if (fullPath == null) return map;
-
-      if (fullPath.indexOf("?") != -1) {
-        fullPath = fullPath.replaceAll("^.*\\?", "");
-        String[] queries = fullPath.split("&");
-        for (String query : queries) {
-          String[] keyValue = query.split("=");
-          map.put(keyValue[0], "\"" + keyValue[1] + "\"");
-        }
-      }
+      if (fullPath == null) return queries;
+
+      Map<String, String> literals = new LinkedHashMap<String, String>();
+      RequestLiterals.queries(fullPath, literals, literalErrors);
 
       List<? extends VariableElement> parameters = method.getParameters();
       for (VariableElement parameter : parameters) {
-        String value = "";
+        String name = parameter.getSimpleName().toString();
+        String value;
         Retrofit.Query query = parameter.getAnnotation(Retrofit.Query.class);
         retrofit.http.Query query1 = parameter.getAnnotation(retrofit.http.Query.class);
         if (query != null) {
@@ -738,14 +1148,58 @@ public class RetrofitProcessor extends AbstractProcessor {
         } else if (query1 != null) {
           value = query1.value();
         } else {
+          if (parameter.getAnnotation(Retrofit.QueryMap.class) != null
+              || parameter.getAnnotation(retrofit.http.QueryMap.class) != null) {
+            queries.add(buildMapParam(parameter, "@QueryMap"));
+          }
           continue;
         }
 
-        String key = value.equals("") ? parameter.getSimpleName().toString() : value;
-        map.put(key, parameter.getSimpleName().toString());
+        String key = RequestLiterals.escape(value.equals("") ? name : value);
+        literals.remove(key);
+        queries.add(buildValueParam(key, parameter));
       }
 
-      return map;
+      List<ValueParam> all = new ArrayList<ValueParam>(literals.size() + queries.size());
+      for (Map.Entry<String, String> literal : literals.entrySet()) {
+        all.add(new ValueParam(ValueParam.LITERAL, literal.getKey(), literal.getValue(), ""));
+      }
+      all.addAll(queries);
+      return all;
+    }
+
+    private ValueParam buildValueParam(String key, VariableElement parameter) {
+      String name = parameter.getSimpleName().toString();
+      TypeMirror type = parameter.asType();
+      Types typeUtils = processingEnv.getTypeUtils();
+      if (type.getKind().isPrimitive()) {
+        return new ValueParam(ValueParam.PRIMITIVE, key, name, "");
+      }
+      if (type.getKind() == TypeKind.ARRAY) {
+        TypeMirror component = ((ArrayType) type).getComponentType();
+        if (component.getKind().isPrimitive()) {
+          return new ValueParam(ValueParam.PRIMITIVE_ARRAY, key, name, component.toString());
+        }
+        return new ValueParam(ValueParam.ITERABLE, key, name, "");
+      }
+      if (typeUtils.isSameType(type, resolvedTypes.of(String.class))) {
+        return new ValueParam(ValueParam.STRING, key, name, "");
+      }
+      if (typeUtils.isAssignable(typeUtils.erasure(type),
+          typeUtils.erasure(resolvedTypes.of(Iterable.class)))) {
+        return new ValueParam(ValueParam.ITERABLE, key, name, "");
+      }
+      return new ValueParam(ValueParam.OBJECT, key, name, "");
+    }
+
+    private ValueParam buildMapParam(VariableElement parameter, String annotation) {
+      String name = parameter.getSimpleName().toString();
+      Types typeUtils = processingEnv.getTypeUtils();
+      if (!typeUtils.isAssignable(typeUtils.erasure(parameter.asType()),
+          typeUtils.erasure(resolvedTypes.of(Map.class)))) {
+        literalErrors.add(annotation + " parameter " + name + " must be a Map");
+      }
+      return new ValueParam(ValueParam.MAP, "", name, "");
     }
 
     public List<String> buildQueryMaps(ExecutableElement method) {
@@ -824,7 +1278,7 @@ public class RetrofitProcessor extends AbstractProcessor {
      * class. For property {@code foo}, this will be {@code foo} or {@code getFoo} or {@code isFoo}.
      */
     public String getGetter() {
-      return method.getSimpleName().toString();
+      return getter;
     }
 
     TypeElement getOwner() {
@@ -835,6 +1289,10 @@ public class RetrofitProcessor extends AbstractProcessor {
       return method.getReturnType();
     }
 
+    ExecutableElement method() {
+      return method;
+    }
+
     public String getType() {
       return type;
     }
@@ -848,11 +1306,11 @@ public class RetrofitProcessor extends AbstractProcessor {
     }
 
     public TypeKind getKind() {
-      return method.getReturnType().getKind();
+      return kind;
     }
 
     public String getCastType() {
-      return primitive() ? box(method.getReturnType().getKind()) : getType();
+      return primitive() ? box(kind) : getType();
     }
 
     private String box(TypeKind kind) {
@@ -879,7 +1337,7 @@ public class RetrofitProcessor extends AbstractProcessor {
     }
 
     public boolean primitive() {
-      return method.getReturnType().getKind().isPrimitive();
+      return kind.isPrimitive();
     }
 
     public boolean isCallback() {
@@ -910,6 +1368,10 @@ public class RetrofitProcessor extends AbstractProcessor {
       return isBlocking;
     }
 
+    public String getFuture() {
+      return future;
+    }
+
     public boolean isResponseType() {
       return isResponseType;
     }
@@ -938,10 +1400,44 @@ public class RetrofitProcessor extends AbstractProcessor {
       return logLevel;
     }
 
+    public String getLogger() {
+      return logger;
+    }
+
+    public Boolean getLogged() {
+      return logged;
+    }
+
+    public String getCompressThreshold() {
+      return compressThreshold;
+    }
+
+    public Batch getBatch() {
+      return batch;
+    }
+
+    public boolean isConnectionStats() {
+      return isConnectionStats;
+    }
+
+    /** Problems found while parsing the URL and header literals of the method. */
+    List<String> literalErrors() {
+      return literalErrors;
+    }
+
     public List<String> getPermissions() {
       return permissions;
     }
 
+    /** The permissions as Java string literals. */
+    public List<String> getPermissionLiterals() {
+      List<String> literals = new ArrayList<String>(permissions.size());
+      for (String permission : permissions) {
+        literals.add(RequestLiterals.javaString(permission));
+      }
+      return literals;
+    }
+
     public boolean isGet() {
       return isGet;
     }
@@ -966,6 +1462,10 @@ public class RetrofitProcessor extends AbstractProcessor {
       return isAuthenticated;
     }
 
+    public String getRequestInterceptorField() {
+      return requestInterceptorField;
+    }
+
     public boolean isSingletonRequestInterceptor() {
       return isSingletonRequestInterceptor;
     }
@@ -982,7 +1482,7 @@ public class RetrofitProcessor extends AbstractProcessor {
       return path;
     }
 
-    public Map<String, String> getQueries() {
+    public List<ValueParam> getQueries() {
       return queries;
     }
 
@@ -998,7 +1498,7 @@ public class RetrofitProcessor extends AbstractProcessor {
       return headers;
     }
 
-    public Map<String, String> getFields() {
+    public List<ValueParam> getFields() {
       return fields;
     }
 
@@ -1017,6 +1517,50 @@ public class RetrofitProcessor extends AbstractProcessor {
     }
 
     public String getAccess() {
+      return access;
+    }
+
+    public String getHttpMethod() {
+      return httpMethod;
+    }
+
+    /** The URL as written in the annotation, escaped for use inside a Java string literal. */
+    public String getUrl() {
+      return url;
+    }
+
+    /** The full name of the type the method produces, escaped like {@link #getUrl}. */
+    public String getRouteResultType() {
+      return routeResultType;
+    }
+
+    public String getShape() {
+      return isObservable ? "OBSERVABLE" : isCallback() ? "CALLBACK"
+          : !future.equals("") ? "FUTURE" : "BLOCKING";
+    }
+
+    public List<RouteParam> getRouteParams() {
+      return routeParams;
+    }
+
+    /** The {@code @Context} parameter, or an empty string to use the service's context. */
+    public String getContextParam() {
+      return contextParam;
+    }
+
+    public String getPermissionsConstant() {
+      return permissionsConstant;
+    }
+
+    public Integer getRouteId() {
+      return routeId;
+    }
+
+    public String getRouteConstant() {
+      return routeConstant;
+    }
+
+    private static String buildAccess(ExecutableElement method) {
       Set<Modifier> mods = method.getModifiers();
       if (mods.contains(Modifier.PUBLIC)) {
         return "public ";
@@ -1066,49 +1610,61 @@ public class RetrofitProcessor extends AbstractProcessor {
   }
 
   private void findLocalAndInheritedMethods(TypeElement type, List<ExecutableElement> methods) {
+    Set<ExecutableElement> found = new LinkedHashSet<ExecutableElement>();
+    findLocalAndInheritedMethods(type, found, new HashMap<String, List<ExecutableElement>>());
+    methods.addAll(found);
+  }
+
+  /**
+   * Adds the non-private methods of {@code type} and its ancestors to {@code methods}, leaving out
+   * any that are overridden lower down. {@code index} groups the methods found so far by name and
+   * parameter count, which an overriding method must share with the method it overrides, so that
+   * {@link Elements#overrides} is only asked about those. The key can't use erased parameter types,
+   * because {@code void f(String)} overrides {@code void f(T)} in a subclass of {@code Foo<String>}.
+   */
+  private void findLocalAndInheritedMethods(TypeElement type, Set<ExecutableElement> methods,
+      Map<String, List<ExecutableElement>> index) {
     Types typeUtils = processingEnv.getTypeUtils();
     Elements elementUtils = processingEnv.getElementUtils();
     for (TypeMirror superInterface : type.getInterfaces()) {
-      findLocalAndInheritedMethods((TypeElement) typeUtils.asElement(superInterface), methods);
+      findLocalAndInheritedMethods((TypeElement) typeUtils.asElement(superInterface), methods, index);
     }
     if (type.getSuperclass().getKind() != TypeKind.NONE) {
       // Visit the superclass after superinterfaces so we will always see the implementation of a
       // method after any interfaces that declared it.
       findLocalAndInheritedMethods(
-          (TypeElement) typeUtils.asElement(type.getSuperclass()), methods);
+          (TypeElement) typeUtils.asElement(type.getSuperclass()), methods, index);
     }
     // Add each method of this class, and in so doing remove any inherited method it overrides.
-    // This algorithm is quadratic in the number of methods but it's hard to see how to improve
-    // that while still using Elements.overrides.
     List<ExecutableElement> theseMethods = ElementFilter.methodsIn(type.getEnclosedElements());
     for (ExecutableElement method : theseMethods) {
       if (!method.getModifiers().contains(Modifier.PRIVATE)) {
+        String key = method.getSimpleName() + "/" + method.getParameters().size();
+        List<ExecutableElement> candidates = index.get(key);
+        if (candidates == null) {
+          candidates = new ArrayList<ExecutableElement>();
+          index.put(key, candidates);
+        }
         boolean alreadySeen = false;
-        for (Iterator<ExecutableElement> methodIter = methods.iterator(); methodIter.hasNext(); ) {
+        for (Iterator<ExecutableElement> methodIter = candidates.iterator(); methodIter.hasNext(); ) {
           ExecutableElement otherMethod = methodIter.next();
           if (elementUtils.overrides(method, otherMethod, type)) {
             methodIter.remove();
-          } else if (method.getSimpleName().equals(otherMethod.getSimpleName())
-              && method.getParameters().equals(otherMethod.getParameters())) {
+            methods.remove(otherMethod);
+          } else if (method.getParameters().equals(otherMethod.getParameters())) {
             // If we inherit this method on more than one path, we don't want to add it twice.
             alreadySeen = true;
           }
         }
         if (!alreadySeen) {
-          /*
-          Retrofit.GET action = method.getAnnotation(Retrofit.GET.class);
-          System.out.printf(
-              "%s Action value = %s\n",
-              method.getSimpleName(),
-              action == null ? null : action.value() );
-          */
           methods.add(method);
+          candidates.add(method);
         }
       }
     }
   }
 
-  private void processType(TypeElement type) {
+  private PendingType prepareType(TypeElement type) {
     Retrofit autoValue = type.getAnnotation(Retrofit.class);
     if (autoValue == null) {
       // This shouldn't happen unless the compilation environment is buggy,
@@ -1127,6 +1683,8 @@ public class RetrofitProcessor extends AbstractProcessor {
       errorReporter.abortWithError("@Retrofit may not be used to implement an annotation"
           + " interface; try using @AutoAnnotation instead", type);
     }
+    String typeName = type.getQualifiedName().toString();
+    profile.startType(typeName);
     RetrofitTemplateVars vars = new RetrofitTemplateVars();
     vars.pkg = TypeSimplifier.packageNameOf(type);
     vars.origClass = TypeSimplifier.classNameOf(type);
@@ -1135,11 +1693,70 @@ public class RetrofitProcessor extends AbstractProcessor {
     defineVarsForType(type, vars);
     GwtCompatibility gwtCompatibility = new GwtCompatibility(type);
     vars.gwtCompatibleAnnotation = gwtCompatibility.gwtCompatibleAnnotationString();
-    String text = vars.toText();
-    text = Reformatter.fixup(text);
+    PendingType pending = new PendingType(type, typeName, vars, gwtCompatibility);
+    if (javaPoet) {
+      pending.generator = new JavaPoetGenerator(type, vars, gwtCompatibility, processingEnv);
+    }
+    profile.endPhase(ProcessorProfile.Phase.PROPERTIES);
+    return pending;
+  }
+
+  /** Renders and reformats a type's source. This must not touch the compiler's model. */
+  private Callable<String> renderTask(final PendingType pending) {
+    return new Callable<String>() {
+      @Override public String call() {
+        long mark = profile.mark();
+        if (pending.generator != null) {
+          // JavaPoet lays out the source as it writes it, so there is nothing to reformat.
+          String text = pending.generator.generate();
+          profile.charge(pending.typeName, ProcessorProfile.Phase.RENDER, mark);
+          return text;
+        }
+        String text = pending.vars.toText();
+        mark = profile.charge(pending.typeName, ProcessorProfile.Phase.RENDER, mark);
+        text = Reformatter.fixup(text);
+        profile.charge(pending.typeName, ProcessorProfile.Phase.REFORMAT, mark);
+        return text;
+      }
+    };
+  }
+
+  private void writeType(PendingType pending) {
+    String text;
+    try {
+      text = pending.text.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+    TypeElement type = pending.type;
+    profile.startType(pending.typeName);
     writeSourceFile(generatedSubclassName(type), text, type);
-    GwtSerialization gwtSerialization = new GwtSerialization(gwtCompatibility, processingEnv, type);
-    gwtSerialization.maybeWriteGwtSerializer(vars);
+    GwtSerialization gwtSerialization =
+        new GwtSerialization(pending.gwtCompatibility, processingEnv, type);
+    gwtSerialization.maybeWriteGwtSerializer(pending.vars);
+    profile.endPhase(ProcessorProfile.Phase.WRITE);
+  }
+
+  /** A type whose template variables are complete, waiting to be rendered and written. */
+  private static class PendingType {
+    final TypeElement type;
+    final String typeName;
+    final RetrofitTemplateVars vars;
+    final GwtCompatibility gwtCompatibility;
+    /** Writes the source instead of the template, for {@code -Aretrofit.backend=javapoet}. */
+    JavaPoetGenerator generator;
+    Future<String> text;
+
+    PendingType(TypeElement type, String typeName, RetrofitTemplateVars vars,
+        GwtCompatibility gwtCompatibility) {
+      this.type = type;
+      this.typeName = typeName;
+      this.vars = vars;
+      this.gwtCompatibility = gwtCompatibility;
+    }
   }
 
   private void defineVarsForType(TypeElement type, RetrofitTemplateVars vars) {
@@ -1148,6 +1765,7 @@ public class RetrofitProcessor extends AbstractProcessor {
     findLocalAndInheritedMethods(type, methods);
     determineObjectMethodsToGenerate(methods, vars);
     ImmutableSet<ExecutableElement> methodsToImplement = methodsToImplement(methods);
+    profile.endPhase(ProcessorProfile.Phase.DISCOVERY);
     Set<TypeMirror> types = new TypeMirrorSet();
     types.addAll(returnTypesOf(methodsToImplement));
     //    TypeMirror javaxAnnotationGenerated = getTypeMirror(Generated.class);
@@ -1191,10 +1809,22 @@ public class RetrofitProcessor extends AbstractProcessor {
       String propertyName = methodToPropertyName.get(method);
       String identifier = methodToIdentifier.get(method);
       List<String> args = new ArrayList<String>();
-      props.add(new Property(propertyName, identifier, method, propertyType, typeSimplifier, processingEnv));
+      Property property = new Property(propertyName, identifier, method, propertyType, typeSimplifier, processingEnv, resolvedTypes);
+      if (property.getBatch() != null) {
+        checkBatch(property, method);
+      }
+      for (String error : property.literalErrors()) {
+        errorReporter.reportError(error, method);
+      }
+      props.add(property);
+      if (property.isConnectionStats()) {
+        vars.connectionStats = true;
+      }
     }
     // If we are running from Eclipse, undo the work of its compiler which sorts methods.
     eclipseHack().reorderProperties(props);
+    defineRequestInterceptorFields(props, vars);
+    defineRoutes(props);
     vars.props = props;
     vars.serialVersionUID = getSerialVersionUID(type);
     vars.formalTypes = typeSimplifier.formalTypeParametersString(type);
@@ -1204,11 +1834,11 @@ public class RetrofitProcessor extends AbstractProcessor {
     vars.baseUrl = typeAnnoation.value();
 
     Map<String, String> headerMap = new HashMap<String, String>();
+    List<String> literalErrors = new ArrayList<String>();
     Retrofit.Headers headersAnnotation = type.getAnnotation(Retrofit.Headers.class);
     if (headersAnnotation != null) {
       for (String header : headersAnnotation.value()) {
-        String[] tokens = header.split(":");
-        headerMap.put(tokens[0].trim(), "\"" + tokens[1].trim() + "\"");
+        RequestLiterals.header(header, headerMap, literalErrors);
       }
       vars.headers = headerMap;
     }
@@ -1217,11 +1847,13 @@ public class RetrofitProcessor extends AbstractProcessor {
     Retrofit.RetryHeaders retryHeadersAnnotation = type.getAnnotation(Retrofit.RetryHeaders.class);
     if (retryHeadersAnnotation != null) {
       for (String header : retryHeadersAnnotation.value()) {
-        String[] tokens = header.split(":");
-        retryHeaderMap.put(tokens[0].trim(), "\"" + tokens[1].trim() + "\"");
+        RequestLiterals.header(header, retryHeaderMap, literalErrors);
       }
       vars.retryHeaders = retryHeaderMap;
     }
+    for (String error : literalErrors) {
+      errorReporter.reportError(error, type);
+    }
 
     Retrofit.OkHttpClient okHttpClienterAnnotation = type.getAnnotation(Retrofit.OkHttpClient.class);
     if (okHttpClienterAnnotation != null) {
@@ -1244,7 +1876,7 @@ public class RetrofitProcessor extends AbstractProcessor {
         converter = mte.getTypeMirror();
       }
       vars.converter = typeSimplifier.simplify(converter);
-      TypeMirror gsonConverterType = getTypeMirror(retrofit.converter.GsonConverter.class);
+      TypeMirror gsonConverterType = resolvedTypes.of(retrofit.converter.GsonConverter.class);
       if (typeUtils.isSubtype(gsonConverterType, converter)) {
         vars.gsonConverter = vars.converter;
       }
@@ -1264,6 +1896,59 @@ public class RetrofitProcessor extends AbstractProcessor {
     if (logLevelAnnotation != null) {
       vars.logLevel = logLevelAnnotation.value();
     }
+    Retrofit.Compress compressAnnotation = type.getAnnotation(Retrofit.Compress.class);
+    if (compressAnnotation != null) {
+      vars.compressThreshold = String.valueOf(compressAnnotation.threshold());
+    }
+    Retrofit.Protocols protocolsAnnotation = type.getAnnotation(Retrofit.Protocols.class);
+    if (protocolsAnnotation != null) {
+      List<String> protocols = new ArrayList<String>();
+      for (String protocol : protocolsAnnotation.value()) {
+        try {
+          protocols.add(com.squareup.okhttp.Protocol.get(protocol).name());
+        } catch (IOException e) {
+          errorReporter.reportError("Unknown protocol in @Protocols: " + protocol, type);
+        }
+      }
+      if (!protocols.contains(com.squareup.okhttp.Protocol.HTTP_1_1.name())) {
+        errorReporter.reportError("@Protocols must include http/1.1", type);
+      }
+      vars.protocols = protocols;
+    }
+    Retrofit.ConnectionPool connectionPoolAnnotation = type.getAnnotation(Retrofit.ConnectionPool.class);
+    if (connectionPoolAnnotation != null) {
+      vars.connectionPool = connectionPoolAnnotation.maxIdleConnections() + ", "
+          + connectionPoolAnnotation.keepAliveDurationMs() + "L";
+    }
+    Retrofit.Executors executorsAnnotation = type.getAnnotation(Retrofit.Executors.class);
+    if (executorsAnnotation != null) {
+      TypeMirror executor;
+      try {
+        executor = getTypeMirror(executorsAnnotation.request());
+      } catch (MirroredTypeException mte) {
+        executor = mte.getTypeMirror();
+      }
+      vars.requestExecutor = executorName(executor, typeSimplifier);
+      try {
+        executor = getTypeMirror(executorsAnnotation.parse());
+      } catch (MirroredTypeException mte) {
+        executor = mte.getTypeMirror();
+      }
+      vars.parseExecutor = executorName(executor, typeSimplifier);
+      try {
+        executor = getTypeMirror(executorsAnnotation.callback());
+      } catch (MirroredTypeException mte) {
+        executor = mte.getTypeMirror();
+      }
+      vars.callbackExecutor = executorName(executor, typeSimplifier);
+    }
+    if (type.getAnnotation(Retrofit.VirtualThreads.class) != null) {
+      vars.virtualThreads = true;
+      if (!vars.requestExecutor.equals("")) {
+        errorReporter.reportError(
+            "@VirtualThreads cannot be combined with @Executors(request = ...)", type);
+      }
+    }
     Retrofit.RequestInterceptor requestInterceptorAnnotation = type.getAnnotation(Retrofit.RequestInterceptor.class);
     if (requestInterceptorAnnotation != null) {
       TypeMirror requestInterceptor = null;
@@ -1298,6 +1983,7 @@ public class RetrofitProcessor extends AbstractProcessor {
       String authenticated = typeSimplifier.simplify(authenticatedType);
       vars.authenticated = authenticated != null && !"".equals(authenticated);
     }
+    definePermissionSets(props, vars);
 
     List<Property> builderProps = new ArrayList<Property>();
     for (ExecutableElement method : builderSetters) {
@@ -1305,9 +1991,10 @@ public class RetrofitProcessor extends AbstractProcessor {
       String propertyType = typeSimplifier.simplify(parameters.get(0).asType());
       String propertyName = method.getSimpleName().toString();
       String identifier = method.getSimpleName().toString();
-      builderProps.add(new Property(propertyName, identifier, method, propertyType, typeSimplifier, processingEnv));
+      builderProps.add(new Property(propertyName, identifier, method, propertyType, typeSimplifier, processingEnv, resolvedTypes));
     }
     vars.builderProps = builderProps;
+    defineLogLevels(props, vars);
 
     TypeElement parcelable = processingEnv.getElementUtils().getTypeElement("android.os.Parcelable");
     vars.parcelable = parcelable != null
@@ -1460,6 +2147,140 @@ public class RetrofitProcessor extends AbstractProcessor {
     return toImplement.build();
   }
 
+  /**
+   * Gives each distinct per-method {@code @RequestInterceptor} class one field, so that the
+   * generated methods share an instance created up front instead of looking it up per call.
+   * Classes marked {@code @Singleton} get a static field shared by every instance of the service.
+   */
+  private static void defineRequestInterceptorFields(List<Property> props, RetrofitTemplateVars vars) {
+    Map<String, String> fields = new LinkedHashMap<String, String>();
+    Set<String> singletonFields = new HashSet<String>();
+    for (Property p : props) {
+      if (p.requestInterceptor.equals("")) continue;
+      String field = fields.get(p.requestInterceptor);
+      if (field == null) {
+        field = "requestInterceptor" + fields.size();
+        fields.put(p.requestInterceptor, field);
+        if (p.isSingletonRequestInterceptor()) {
+          singletonFields.add(field);
+        }
+      }
+      p.requestInterceptorField = field;
+    }
+    Map<String, String> fieldToType = new LinkedHashMap<String, String>();
+    for (Map.Entry<String, String> entry : fields.entrySet()) {
+      fieldToType.put(entry.getValue(), entry.getKey());
+    }
+    vars.requestInterceptorFields = fieldToType;
+    vars.singletonRequestInterceptorFields = singletonFields;
+  }
+
+  /**
+   * Numbers the HTTP methods in source order for the {@code ROUTES} table and names a
+   * {@code ROUTE_} constant for each, such as {@code ROUTE_GET_USER}. Overloads get a suffix.
+   */
+  private static void defineRoutes(List<Property> props) {
+    Set<String> constants = new HashSet<String>();
+    int id = 0;
+    for (Property p : props) {
+      if (p.getHttpMethod().equals("")) continue;
+      String base = "ROUTE_" + upperUnderscore(p.getGetter());
+      String constant = base;
+      for (int i = 2; !constants.add(constant); i++) {
+        constant = base + "_" + i;
+      }
+      p.routeId = id++;
+      p.routeConstant = constant;
+    }
+  }
+
+  /**
+   * Names a {@code PERMISSIONS_} constant for each distinct set of permissions among the methods
+   * that go through the authenticator, so that they pass the same interned set on every call.
+   */
+  private static void definePermissionSets(List<Property> props, RetrofitTemplateVars vars) {
+    if (vars.authenticator == null || vars.authenticator.equals("")) return;
+    Map<Set<String>, String> constants = new HashMap<Set<String>, String>();
+    Map<String, String> sets = new LinkedHashMap<String, String>();
+    for (Property p : props) {
+      if (!vars.authenticated && !p.isAuthenticated()) continue;
+      Set<String> permissions = new LinkedHashSet<String>(p.getPermissions());
+      String constant = constants.get(permissions);
+      if (constant == null) {
+        String base = permissions.isEmpty() ? "PERMISSIONS_NONE"
+            : "PERMISSIONS_" + upperUnderscore(p.getGetter());
+        constant = base;
+        for (int i = 2; sets.containsKey(constant); i++) {
+          constant = base + "_" + i;
+        }
+        constants.put(permissions, constant);
+        StringBuilder args = new StringBuilder();
+        for (String permission : permissions) {
+          if (args.length() > 0) args.append(", ");
+          args.append(RequestLiterals.javaString(permission));
+        }
+        sets.put(constant, args.toString());
+      }
+      p.permissionsConstant = constant;
+    }
+    vars.permissionSets = sets;
+  }
+
+  /**
+   * Fixes each method's log level at compile time where possible: its own {@code @LogLevel}, else
+   * the class level unless the builder can replace {@code logLevel} or {@code httpLogger}. Methods
+   * whose level is fixed at NONE get no logging code, and each other method level gets a field.
+   */
+  private static void defineLogLevels(List<Property> props, RetrofitTemplateVars vars) {
+    boolean runtimeLevel = false;
+    for (Property p : vars.builderProps) {
+      String name = p.toString();
+      runtimeLevel |= name.equals("logLevel") || name.equals("httpLogger");
+    }
+    Map<String, String> loggers = new LinkedHashMap<String, String>();
+    for (Property p : props) {
+      String level = p.getLogLevel();
+      if (level.equals("")) {
+        p.logged = runtimeLevel || vars.logLevel != retrofit.RestAdapter.LogLevel.NONE;
+      } else if (level.equals("NONE")) {
+        p.logged = false;
+      } else {
+        String field = CaseFormat.UPPER_UNDERSCORE.to(CaseFormat.LOWER_CAMEL, level) + "HttpLogger";
+        loggers.put(level, field);
+        p.logger = field;
+      }
+    }
+    vars.methodLoggers = loggers;
+  }
+
+  /** Returns the type of an {@code @Executors} member, or "" if it was left unset. */
+  private static String executorName(TypeMirror executor, TypeSimplifier typeSimplifier) {
+    if (executor.toString().equals(java.util.concurrent.Executor.class.getName())) return "";
+    return typeSimplifier.simplify(executor);
+  }
+
+  private static String upperUnderscore(String camel) {
+    StringBuilder sb = new StringBuilder(camel.length() + 8);
+    for (int i = 0; i < camel.length(); i++) {
+      char c = camel.charAt(i);
+      if (Character.isUpperCase(c) && i > 0 && !Character.isUpperCase(camel.charAt(i - 1))) {
+        sb.append('_');
+      }
+      sb.append(Character.toUpperCase(c));
+    }
+    return sb.toString();
+  }
+
+  private void checkBatch(Property property, ExecutableElement method) {
+    if (!property.isObservable() || property.isResponseType()) {
+      errorReporter.reportError("@Batch method must return Observable<MODEL>", method);
+    } else if (method.getParameters().size() != 1) {
+      errorReporter.reportError("@Batch method must take exactly one parameter, its key", method);
+    } else if (!property.isGet()) {
+      errorReporter.reportError("@Batch method must be a @GET", method);
+    }
+  }
+
   private static boolean isReferenceArrayType(TypeMirror type) {
     return type.getKind() == TypeKind.ARRAY
         && !((ArrayType) type).getComponentType().getKind().isPrimitive();
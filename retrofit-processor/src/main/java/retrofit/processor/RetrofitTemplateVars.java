@@ -145,12 +145,41 @@ class RetrofitTemplateVars extends TemplateVars {
   String gsonConverter = "";
   String errorHandler = "";
   retrofit.RestAdapter.LogLevel logLevel = retrofit.RestAdapter.LogLevel.NONE;
+  /** The {@code HttpLogger} fields for method-level {@code @LogLevel}s, keyed by level. */
+  Map<String, String> methodLoggers = Collections.emptyMap();
 
   String requestInterceptor = "";
+
+  /** The per-method {@code @RequestInterceptor} fields to declare, mapped to their types. */
+  Map<String, String> requestInterceptorFields = Collections.emptyMap();
+  /** The subset of {@link #requestInterceptorFields} to declare static. */
+  Set<String> singletonRequestInterceptorFields = Collections.emptySet();
   String okHttpClient = "";
 
   String authenticator = "";
   Boolean authenticated = false;
+  /** The {@code PERMISSIONS_} constants to declare, mapped to their permissions as Java literals. */
+  Map<String, String> permissionSets = Collections.emptyMap();
+
+  /** The minimum body length from a class-level {@code @Compress}, or empty if there is none. */
+  String compressThreshold = "";
+
+  /** The {@code com.squareup.okhttp.Protocol} constants from {@code @Protocols}, in order. */
+  List<String> protocols = Collections.emptyList();
+
+  /** The ConnectionPool constructor arguments from {@code @ConnectionPool}, or empty. */
+  String connectionPool = "";
+
+  /** The executor types from {@code @Executors}, or empty for those left unset. */
+  String requestExecutor = "";
+  String parseExecutor = "";
+  String callbackExecutor = "";
+
+  /** Whether {@code @VirtualThreads} is present, so every request is prepared on a virtual thread. */
+  Boolean virtualThreads = false;
+
+  /** Whether some method returns {@code ConnectionStats}, so the client must record them. */
+  Boolean connectionStats = false;
 
   /**
    * The simple names of validation methods (marked {@code @Retrofit.Validate}) in the Retrofit
@@ -158,10 +187,16 @@ class RetrofitTemplateVars extends TemplateVars {
    */
   Set<String> validators = Collections.emptySet();
 
-  private static final SimpleNode TEMPLATE = parsedTemplateForResource("retrofit.vm");
+  // Velocity initializes the parsed tree again on every render, so a tree can't be rendered by
+  // two threads at once. Each thread that renders gets its own.
+  private static final ThreadLocal<SimpleNode> TEMPLATE = new ThreadLocal<SimpleNode>() {
+    @Override protected SimpleNode initialValue() {
+      return parsedTemplateForResource("retrofit.vm");
+    }
+  };
 
   @Override
   SimpleNode parsedTemplate() {
-    return TEMPLATE;
+    return TEMPLATE.get();
   }
 }
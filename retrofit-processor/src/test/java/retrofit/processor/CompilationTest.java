@@ -19,12 +19,15 @@ import static com.google.common.truth.Truth.assertAbout;
 import static com.google.testing.compile.JavaSourceSubjectFactory.javaSource;
 import static com.google.testing.compile.JavaSourcesSubjectFactory.javaSources;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
 import com.google.testing.compile.JavaFileObjects;
 
 import junit.framework.TestCase;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.annotation.Retention;
@@ -32,6 +35,12 @@ import java.lang.annotation.RetentionPolicy;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 
 import javax.annotation.processing.AbstractProcessor;
@@ -41,8 +50,13 @@ import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.util.ElementFilter;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
 import javax.tools.JavaFileObject;
+import javax.tools.ToolProvider;
 
+import retrofit.http.InMemoryTracer;
+import retrofit.http.Tracer;
 import retrofit.processor.RetrofitBuilderProcessor;
 import retrofit.processor.RetrofitProcessor;
 
@@ -350,6 +364,494 @@ public class CompilationTest extends TestCase {
         .in(javaFileObject).onLine(6);
   }
 
+  public void testBatchNeedsSingleKey() throws Exception {
+    JavaFileObject javaFileObject = JavaFileObjects.forSourceLines(
+        "foo.bar.Baz",
+        "package foo.bar;",
+        "",
+        "import retrofit.http.Retrofit;",
+        "import rx.Observable;",
+        "",
+        "@Retrofit(\"https://example.com\")",
+        "public abstract class Baz {",
+        "  @Retrofit.GET(\"/users/{id}\") @Retrofit.Batch(\"/users\")",
+        "  public abstract Observable<String> user(@Retrofit.Path(\"id\") String id,",
+        "      @Retrofit.Query(\"fields\") String fields);",
+        "}");
+    assertAbout(javaSource())
+        .that(javaFileObject)
+        .processedWith(new RetrofitProcessor())
+        .failsToCompile()
+        .withErrorContaining("@Batch method must take exactly one parameter")
+        .in(javaFileObject).onLine(9);
+  }
+
+  public void testBatch() throws Exception {
+    JavaFileObject javaFileObject = JavaFileObjects.forSourceLines(
+        "foo.bar.Baz",
+        "package foo.bar;",
+        "",
+        "import retrofit.http.Retrofit;",
+        "import rx.Observable;",
+        "",
+        "@Retrofit(\"https://example.com\")",
+        "public abstract class Baz {",
+        "  @Retrofit.GET(\"/users/{id}\")",
+        "  @Retrofit.Batch(value = \"/users?tag=\\\"a\\\\b\\\"\", param = \"id\\\"s\", maxSize = 20)",
+        "  public abstract Observable<String> user(@Retrofit.Path(\"id\") long id);",
+        "}");
+    assertAbout(javaSource())
+        .that(javaFileObject)
+        .processedWith(new RetrofitProcessor())
+        .compilesWithoutError();
+  }
+
+  public void testClassLevelAuthenticatedRoutes() throws Exception {
+    JavaFileObject javaFileObject = JavaFileObjects.forSourceLines(
+        "foo.bar.Baz",
+        "package foo.bar;",
+        "",
+        "import java.util.Collection;",
+        "import retrofit.RequestInterceptor;",
+        "import retrofit.http.Retrofit;",
+        "import rx.Observable;",
+        "",
+        "@Retrofit(\"https://example.com\")",
+        "@Retrofit.Authenticated",
+        "@Retrofit.Authenticator(Baz.Auth.class)",
+        "public abstract class Baz {",
+        "  public static class Auth implements Retrofit.RequestAuthenticator {",
+        "    @Override public String authorize(Object context, Collection<String> permissions) {",
+        "      return \"token\";",
+        "    }",
+        "    @Override public void intercept(RequestInterceptor.RequestFacade request) {",
+        "    }",
+        "  }",
+        "  @Retrofit.GET(\"/user\")",
+        "  public abstract Observable<String> user();",
+        "}");
+    List<?> routes = (List<?>) compileAndLoad("foo.bar.Retrofit_Baz", javaFileObject)
+        .getField("ROUTES").get(null);
+    assertEquals(1, routes.size());
+    assertEquals(true, routes.get(0).getClass().getMethod("authenticated").invoke(routes.get(0)));
+
+    // Without an authenticator the call never authenticates, so neither does its route.
+    JavaFileObject noAuthenticator = JavaFileObjects.forSourceLines(
+        "foo.bar.Qux",
+        "package foo.bar;",
+        "",
+        "import retrofit.http.Retrofit;",
+        "import rx.Observable;",
+        "",
+        "@Retrofit(\"https://example.com\")",
+        "@Retrofit.Authenticated",
+        "public abstract class Qux {",
+        "  @Retrofit.GET(\"/user\")",
+        "  public abstract Observable<String> user();",
+        "}");
+    routes = (List<?>) compileAndLoad("foo.bar.Retrofit_Qux", noAuthenticator)
+        .getField("ROUTES").get(null);
+    assertEquals(1, routes.size());
+    assertEquals(false, routes.get(0).getClass().getMethod("authenticated").invoke(routes.get(0)));
+  }
+
+  public void testConversionIsTracedWithParseExecutor() throws Exception {
+    // The parse executor converts the body on another thread after the exchange has completed;
+    // the span must still be open then, or the conversion event is lost.
+    JavaFileObject javaFileObject = JavaFileObjects.forSourceLines(
+        "foo.bar.Baz",
+        "package foo.bar;",
+        "",
+        "import com.squareup.okhttp.Interceptor;",
+        "import com.squareup.okhttp.MediaType;",
+        "import com.squareup.okhttp.Protocol;",
+        "import com.squareup.okhttp.Response;",
+        "import com.squareup.okhttp.ResponseBody;",
+        "import java.lang.reflect.Type;",
+        "import java.util.Scanner;",
+        "import java.util.concurrent.Executor;",
+        "import retrofit.http.Retrofit;",
+        "import retrofit.http.Tracer;",
+        "import retrofit.mime.TypedInput;",
+        "import retrofit.mime.TypedOutput;",
+        "",
+        "@Retrofit(\"https://example.com\")",
+        "@Retrofit.Converter(Baz.Text.class)",
+        "@Retrofit.Executors(parse = Baz.Pool.class)",
+        "public abstract class Baz {",
+        "  public static class Pool implements Executor {",
+        "    @Override public void execute(Runnable command) {",
+        "      new Thread(command).start();",
+        "    }",
+        "  }",
+        "  public static class Text implements retrofit.converter.Converter {",
+        "    @Override public Object fromBody(TypedInput body, Type type) {",
+        "      try {",
+        "        Thread.sleep(50);",
+        "        return new Scanner(body.in()).useDelimiter(\"\\\\A\").next();",
+        "      } catch (Exception e) {",
+        "        throw new RuntimeException(e);",
+        "      }",
+        "    }",
+        "    @Override public TypedOutput toBody(Object object) {",
+        "      throw new UnsupportedOperationException();",
+        "    }",
+        "  }",
+        "  @Retrofit.GET(\"/user\")",
+        "  public abstract String user();",
+        "  @Retrofit.Builder",
+        "  public abstract static class Builder {",
+        "    public abstract Builder tracer(Tracer tracer);",
+        "    public abstract Builder okHttpClient(com.squareup.okhttp.OkHttpClient client);",
+        "    public abstract Baz build();",
+        "  }",
+        "  public static String user(Tracer tracer) {",
+        "    com.squareup.okhttp.OkHttpClient client = new com.squareup.okhttp.OkHttpClient();",
+        "    client.interceptors().add(new Interceptor() {",
+        "      @Override public Response intercept(Interceptor.Chain chain) {",
+        "        return new Response.Builder().request(chain.request()).protocol(Protocol.HTTP_1_1)",
+        "            .code(200).body(ResponseBody.create(MediaType.parse(\"text/plain\"), \"octocat\"))",
+        "            .build();",
+        "      }",
+        "    });",
+        "    return new Retrofit_Baz.Builder().tracer(tracer).okHttpClient(client).build().user();",
+        "  }",
+        "}");
+    InMemoryTracer tracer = new InMemoryTracer();
+    Object user = compileAndLoad("foo.bar.Baz", javaFileObject)
+        .getMethod("user", Tracer.class).invoke(null, tracer);
+    assertEquals("octocat", user);
+    InMemoryTracer.RecordedSpan span = tracer.spans().get(0);
+    assertTrue(span.ended());
+    assertEquals(1, span.events().size());
+    assertEquals(Tracer.CONVERSION, span.events().get(0).name());
+  }
+
+  public void testConnectionStatsDoNotPileUpOnSharedClient() throws Exception {
+    JavaFileObject javaFileObject = JavaFileObjects.forSourceLines(
+        "foo.bar.Baz",
+        "package foo.bar;",
+        "",
+        "import retrofit.http.ConnectionStats;",
+        "import retrofit.http.Retrofit;",
+        "",
+        "@Retrofit(\"https://example.com\")",
+        "public abstract class Baz {",
+        "  @Retrofit.GET(\"/user\")",
+        "  public abstract String user();",
+        "  public abstract ConnectionStats connectionStats();",
+        "  @Retrofit.Builder",
+        "  public abstract static class Builder {",
+        "    public abstract Builder okHttpClient(com.squareup.okhttp.OkHttpClient client);",
+        "    public abstract Baz build();",
+        "  }",
+        "  public static int sharedInterceptors() {",
+        "    com.squareup.okhttp.OkHttpClient client = new com.squareup.okhttp.OkHttpClient();",
+        "    new Retrofit_Baz.Builder().okHttpClient(client).build();",
+        "    new Retrofit_Baz.Builder().okHttpClient(client).build();",
+        "    return client.networkInterceptors().size();",
+        "  }",
+        "}");
+    Object interceptors = compileAndLoad("foo.bar.Baz", javaFileObject)
+        .getMethod("sharedInterceptors").invoke(null);
+    assertEquals(0, interceptors);
+  }
+
+  public void testMalformedHeader() throws Exception {
+    JavaFileObject javaFileObject = JavaFileObjects.forSourceLines(
+        "foo.bar.Baz",
+        "package foo.bar;",
+        "",
+        "import retrofit.http.Retrofit;",
+        "import rx.Observable;",
+        "",
+        "@Retrofit(\"https://example.com\")",
+        "public abstract class Baz {",
+        "  @Retrofit.GET(\"/users\") @Retrofit.Headers(\"Accept application/json\")",
+        "  public abstract Observable<String> users();",
+        "}");
+    assertAbout(javaSource())
+        .that(javaFileObject)
+        .processedWith(new RetrofitProcessor())
+        .failsToCompile()
+        .withErrorContaining("Header must be in the form \"Name: value\"")
+        .in(javaFileObject).onLine(9);
+  }
+
+  public void testQueryParameterTypes() throws Exception {
+    JavaFileObject javaFileObject = JavaFileObjects.forSourceLines(
+        "foo.bar.Baz",
+        "package foo.bar;",
+        "",
+        "import java.util.List;",
+        "import java.util.Map;",
+        "import retrofit.http.Retrofit;",
+        "import rx.Observable;",
+        "",
+        "@Retrofit(\"https://example.com\")",
+        "public abstract class Baz {",
+        "  @Retrofit.GET(\"/search?sort=null\")",
+        "  public abstract Observable<String> search(",
+        "      @Retrofit.Query(\"q\") String q,",
+        "      @Retrofit.Query(\"page\") int page,",
+        "      @Retrofit.Query(\"limit\") Integer limit,",
+        "      @Retrofit.Query(\"tag\") List<String> tags,",
+        "      @Retrofit.Query(\"id\") long[] ids,",
+        "      @Retrofit.Query(\"x\") Object[] xs,",
+        "      @Retrofit.QueryMap Map<String, Object> options);",
+        "}");
+    assertAbout(javaSource())
+        .that(javaFileObject)
+        .processedWith(new RetrofitProcessor())
+        .compilesWithoutError();
+  }
+
+  public void testQueryMapNeedsMap() throws Exception {
+    JavaFileObject javaFileObject = JavaFileObjects.forSourceLines(
+        "foo.bar.Baz",
+        "package foo.bar;",
+        "",
+        "import retrofit.http.Retrofit;",
+        "import rx.Observable;",
+        "",
+        "@Retrofit(\"https://example.com\")",
+        "public abstract class Baz {",
+        "  @Retrofit.GET(\"/search\")",
+        "  public abstract Observable<String> search(@Retrofit.QueryMap String options);",
+        "}");
+    assertAbout(javaSource())
+        .that(javaFileObject)
+        .processedWith(new RetrofitProcessor())
+        .failsToCompile()
+        .withErrorContaining("@QueryMap parameter options must be a Map")
+        .in(javaFileObject).onLine(9);
+  }
+
+  public void testContextParameter() throws Exception {
+    JavaFileObject javaFileObject = JavaFileObjects.forSourceLines(
+        "foo.bar.Baz",
+        "package foo.bar;",
+        "",
+        "import retrofit.http.Retrofit;",
+        "import rx.Observable;",
+        "",
+        "@Retrofit(\"https://example.com\")",
+        "public abstract class Baz {",
+        "  @Retrofit.GET(\"/users/{id}\")",
+        "  public abstract Observable<String> user(@Retrofit.Path(\"id\") String id,",
+        "      @Retrofit.Context Object context);",
+        "}");
+    assertAbout(javaSource())
+        .that(javaFileObject)
+        .processedWith(new RetrofitProcessor())
+        .compilesWithoutError();
+  }
+
+  public void testTwoContextParameters() throws Exception {
+    JavaFileObject javaFileObject = JavaFileObjects.forSourceLines(
+        "foo.bar.Baz",
+        "package foo.bar;",
+        "",
+        "import retrofit.http.Retrofit;",
+        "import rx.Observable;",
+        "",
+        "@Retrofit(\"https://example.com\")",
+        "public abstract class Baz {",
+        "  @Retrofit.GET(\"/users\")",
+        "  public abstract Observable<String> users(@Retrofit.Context Object a,",
+        "      @Retrofit.Context Object b);",
+        "}");
+    assertAbout(javaSource())
+        .that(javaFileObject)
+        .processedWith(new RetrofitProcessor())
+        .failsToCompile()
+        .withErrorContaining("Only one parameter may be annotated with @Context")
+        .in(javaFileObject).onLine(9);
+  }
+
+  public void testMethodLogLevels() throws Exception {
+    JavaFileObject javaFileObject = JavaFileObjects.forSourceLines(
+        "foo.bar.Baz",
+        "package foo.bar;",
+        "",
+        "import retrofit.RestAdapter;",
+        "import retrofit.http.Retrofit;",
+        "import rx.Observable;",
+        "",
+        "@Retrofit(\"https://example.com\")",
+        "@Retrofit.LogLevel(RestAdapter.LogLevel.BASIC)",
+        "public abstract class Baz {",
+        "  @Retrofit.GET(\"/users\")",
+        "  @Retrofit.LogLevel(RestAdapter.LogLevel.FULL)",
+        "  public abstract Observable<String> users();",
+        "  @Retrofit.GET(\"/events\")",
+        "  @Retrofit.LogLevel(RestAdapter.LogLevel.NONE)",
+        "  public abstract Observable<String> events();",
+        "  @Retrofit.GET(\"/repos\")",
+        "  public abstract Observable<String> repos();",
+        "}");
+    String source = generatedSource("foo.bar.Retrofit_Baz", javaFileObject);
+    assertTrue(source, source.contains("retrofit.http.HttpLogger fullHttpLogger;"));
+    // Methods are generated in declaration order, so each one ends where the next begins.
+    int users = source.indexOf("Observable<String> users() {");
+    int events = source.indexOf("Observable<String> events() {");
+    int repos = source.indexOf("Observable<String> repos() {");
+    assertTrue(source, 0 <= users && users < events && events < repos);
+    String usersSource = source.substring(users, events);
+    assertTrue(usersSource, usersSource.contains("fullHttpLogger.logRequest("));
+    String eventsSource = source.substring(events, repos);
+    assertFalse(eventsSource, eventsSource.contains("logRequest"));
+    assertFalse(eventsSource, eventsSource.contains("logged("));
+  }
+
+  public void testExecutors() throws Exception {
+    JavaFileObject javaFileObject = JavaFileObjects.forSourceLines(
+        "foo.bar.Baz",
+        "package foo.bar;",
+        "",
+        "import java.util.concurrent.Executor;",
+        "import retrofit.Callback;",
+        "import retrofit.http.Retrofit;",
+        "import rx.Observable;",
+        "",
+        "@Retrofit(\"https://example.com\")",
+        "@Retrofit.Executors(request = Baz.Pool.class, callback = Baz.Pool.class)",
+        "public abstract class Baz {",
+        "  public static class Pool implements Executor {",
+        "    @Override public void execute(Runnable command) {",
+        "      command.run();",
+        "    }",
+        "  }",
+        "  @Retrofit.GET(\"/users\")",
+        "  public abstract void users(Callback<String> callback);",
+        "  @Retrofit.GET(\"/repos\")",
+        "  public abstract String repos();",
+        "}");
+    assertAbout(javaSource())
+        .that(javaFileObject)
+        .processedWith(new RetrofitProcessor())
+        .compilesWithoutError();
+  }
+
+  public void testNoVirtualThreadsWithoutAnnotation() throws Exception {
+    JavaFileObject javaFileObject = JavaFileObjects.forSourceLines(
+        "foo.bar.Baz",
+        "package foo.bar;",
+        "",
+        "import retrofit.http.Retrofit;",
+        "import rx.Observable;",
+        "",
+        "@Retrofit(\"https://example.com\")",
+        "public abstract class Baz {",
+        "  @Retrofit.GET(\"/users\")",
+        "  public abstract String users();",
+        "  @Retrofit.GET(\"/repos\")",
+        "  public abstract Observable<String> repos();",
+        "}");
+    String source = generatedSource("foo.bar.Retrofit_Baz", javaFileObject);
+    assertFalse(source, source.contains("VirtualThreads"));
+    assertTrue(source, source.contains(".subscribeOn(requestScheduler).toBlocking().single();"));
+  }
+
+  public void testVirtualThreadsWithRequestExecutor() throws Exception {
+    JavaFileObject javaFileObject = JavaFileObjects.forSourceLines(
+        "foo.bar.Baz",
+        "package foo.bar;",
+        "",
+        "import java.util.concurrent.Executor;",
+        "import retrofit.http.Retrofit;",
+        "import rx.Observable;",
+        "",
+        "@Retrofit(\"https://example.com\")",
+        "@Retrofit.VirtualThreads",
+        "@Retrofit.Executors(request = Baz.Pool.class)",
+        "public abstract class Baz {",
+        "  public static class Pool implements Executor {",
+        "    @Override public void execute(Runnable command) {",
+        "      command.run();",
+        "    }",
+        "  }",
+        "  @Retrofit.GET(\"/users\")",
+        "  public abstract String users();",
+        "}");
+    assertAbout(javaSource())
+        .that(javaFileObject)
+        .processedWith(new RetrofitProcessor())
+        .failsToCompile()
+        .withErrorContaining("@VirtualThreads cannot be combined with @Executors(request = ...)")
+        .in(javaFileObject).onLine(10);
+  }
+
+  public void testFutureReturnTypes() throws Exception {
+    JavaFileObject javaFileObject = JavaFileObjects.forSourceLines(
+        "foo.bar.Baz",
+        "package foo.bar;",
+        "",
+        "import com.google.common.util.concurrent.ListenableFuture;",
+        "import com.squareup.okhttp.Response;",
+        "import java.util.List;",
+        "import java.util.concurrent.CompletableFuture;",
+        "import retrofit.http.Retrofit;",
+        "",
+        "@Retrofit(\"https://example.com\")",
+        "public abstract class Baz {",
+        "  @Retrofit.GET(\"/users/{id}\")",
+        "  public abstract CompletableFuture<String> user(@Retrofit.Path(\"id\") String id);",
+        "  @Retrofit.GET(\"/users\")",
+        "  public abstract ListenableFuture<List<String>> users();",
+        "  @Retrofit.GET(\"/ping\")",
+        "  public abstract CompletableFuture<Response> ping();",
+        "}");
+    assertAbout(javaSource())
+        .that(javaFileObject)
+        .processedWith(new RetrofitProcessor())
+        .compilesWithoutError();
+  }
+
+  public void testDeepHierarchy() throws Exception {
+    // Each level redeclares a few methods of the one above, and the top level narrows a generic
+    // parameter, so only the lowest declaration of each method may be implemented.
+    ImmutableList.Builder<String> lines = ImmutableList.builder();
+    lines.add(
+        "package foo.bar;",
+        "",
+        "import retrofit.http.Retrofit;",
+        "import rx.Observable;",
+        "",
+        "abstract class Generic<T> {",
+        "  @Retrofit.GET(\"/things/{id}\")",
+        "  public abstract Observable<String> thing(@Retrofit.Path(\"id\") T id);",
+        "}");
+    int levels = 20;
+    for (int level = 0; level < levels; level++) {
+      String parent = level == 0 ? "Generic<String>" : "Level" + (level - 1);
+      lines.add("abstract class Level" + level + " extends " + parent + " {");
+      for (int i = 0; i < 50; i++) {
+        lines.add("  @Retrofit.GET(\"/l" + level + "\")",
+            "  public abstract Observable<String> m" + level + "_" + i + "();");
+      }
+      if (level > 0) {
+        for (int i = 0; i < 5; i++) {
+          lines.add("  @Retrofit.GET(\"/override" + level + "\")",
+              "  public abstract Observable<String> m" + (level - 1) + "_" + i + "();");
+        }
+      }
+      lines.add("}");
+    }
+    lines.add(
+        "@Retrofit(\"https://example.com\")",
+        "public abstract class Baz extends Level" + (levels - 1) + " {",
+        "  @Retrofit.GET(\"/things/{id}\")",
+        "  @Override public abstract Observable<String> thing(@Retrofit.Path(\"id\") String id);",
+        "}");
+    JavaFileObject javaFileObject =
+        JavaFileObjects.forSourceLines("foo.bar.Baz", lines.build());
+    assertAbout(javaSource())
+        .that(javaFileObject)
+        .processedWith(new RetrofitProcessor())
+        .compilesWithoutError();
+  }
+
   public void testCannotImplementAnnotation() throws Exception {
     JavaFileObject javaFileObject = JavaFileObjects.forSourceLines(
         "foo.bar.RetentionImpl",
@@ -566,6 +1068,300 @@ public class CompilationTest extends TestCase {
         .in(javaFileObject).onLine(9);
   }
 
+  /**
+   * A service that uses most of what the generated code can do, with an {@code exercise()} that
+   * calls each method against canned responses and returns the results and the requests sent.
+   */
+  private static JavaFileObject kitchenSink() {
+    return JavaFileObjects.forSourceLines(
+        "foo.bar.Sink",
+        "package foo.bar;",
+        "",
+        "import com.google.common.util.concurrent.ListenableFuture;",
+        "import com.squareup.okhttp.Interceptor;",
+        "import com.squareup.okhttp.MediaType;",
+        "import com.squareup.okhttp.OkHttpClient;",
+        "import com.squareup.okhttp.Protocol;",
+        "import com.squareup.okhttp.Request;",
+        "import com.squareup.okhttp.ResponseBody;",
+        "import java.io.IOException;",
+        "import java.lang.reflect.Type;",
+        "import java.util.Arrays;",
+        "import java.util.Collection;",
+        "import java.util.Collections;",
+        "import java.util.List;",
+        "import java.util.Map;",
+        "import java.util.Scanner;",
+        "import java.util.concurrent.CompletableFuture;",
+        "import java.util.concurrent.CountDownLatch;",
+        "import okio.Buffer;",
+        "import retrofit.Callback;",
+        "import retrofit.RequestInterceptor;",
+        "import retrofit.RestAdapter;",
+        "import retrofit.RetrofitError;",
+        "import retrofit.client.Response;",
+        "import retrofit.http.ConnectionStats;",
+        "import retrofit.http.Retrofit;",
+        "import retrofit.mime.TypedInput;",
+        "import retrofit.mime.TypedOutput;",
+        "import retrofit.mime.TypedString;",
+        "import rx.Observable;",
+        "",
+        "@Retrofit(\"https://example.com\")",
+        "@Retrofit.Converter(Sink.Text.class)",
+        "@Retrofit.ErrorHandler(Sink.Errors.class)",
+        "@Retrofit.Authenticator(Sink.Auth.class)",
+        "@Retrofit.RetryHeaders(\"Retry: yes\")",
+        "@Retrofit.Headers({\"Accept: text/plain\", \"X-Class: \\\"q\\\"\"})",
+        "@Retrofit.LogLevel(RestAdapter.LogLevel.BASIC)",
+        "@Retrofit.Protocols({\"http/1.1\"})",
+        "@Retrofit.ConnectionPool(maxIdleConnections = 3)",
+        "public abstract class Sink {",
+        "  public static class Text implements retrofit.converter.Converter {",
+        "    @Override public Object fromBody(TypedInput body, Type type) {",
+        "      try {",
+        "        String text = new Scanner(body.in()).useDelimiter(\"\\\\A\").next();",
+        "        return type.toString().startsWith(\"java.util.List\")",
+        "            ? Collections.singletonList(text) : text;",
+        "      } catch (Exception e) {",
+        "        throw new RuntimeException(e);",
+        "      }",
+        "    }",
+        "    @Override public TypedOutput toBody(Object object) {",
+        "      return new TypedString(String.valueOf(object));",
+        "    }",
+        "  }",
+        "  public static class Errors implements retrofit.ErrorHandler {",
+        "    @Override public Throwable handleError(RetrofitError cause) {",
+        "      return cause;",
+        "    }",
+        "  }",
+        "  public static class Auth implements Retrofit.RequestAuthenticator {",
+        "    @Override public String authorize(Object context, Collection<String> permissions) {",
+        "      return \"token\";",
+        "    }",
+        "    @Override public void intercept(RequestInterceptor.RequestFacade request) {",
+        "      request.addHeader(\"Authorization\", \"token\");",
+        "    }",
+        "  }",
+        "  public static class Stamp implements RequestInterceptor {",
+        "    @Override public void intercept(RequestInterceptor.RequestFacade request) {",
+        "      request.addHeader(\"X-Stamp\", \"1\");",
+        "    }",
+        "  }",
+        "  @Retrofit.GET(\"/users/{id}\")",
+        "  @Retrofit.Headers(\"X-Method: a\")",
+        "  public abstract String user(@Retrofit.Path(\"id\") String id, @Retrofit.Header(\"X-Id\") String h);",
+        "  @Retrofit.GET(\"/search?sort=null\")",
+        "  @Retrofit.LogLevel(RestAdapter.LogLevel.FULL)",
+        "  public abstract Observable<String> search(@Retrofit.Query(\"q\") String q,",
+        "      @Retrofit.Query(\"page\") int page, @Retrofit.Query(\"limit\") Integer limit,",
+        "      @Retrofit.Query(\"tag\") List<String> tags, @Retrofit.Query(\"id\") long[] ids,",
+        "      @Retrofit.QueryMap Map<String, Object> options);",
+        "  @Retrofit.GET(\"/list\")",
+        "  public abstract Observable<List<String>> list(@Retrofit.Context Object context);",
+        "  @Retrofit.GET(\"/cb\")",
+        "  @Retrofit.RequestInterceptor(Stamp.class)",
+        "  public abstract void callback(Callback<String> callback);",
+        "  @Retrofit.GET(\"/cbr\")",
+        "  public abstract void callbackResponse(Callback<Response> callback);",
+        "  @Retrofit.GET(\"/raw\")",
+        "  public abstract Response raw();",
+        "  @Retrofit.GET(\"/rawobs\")",
+        "  @Retrofit.LogLevel(RestAdapter.LogLevel.NONE)",
+        "  public abstract Observable<Response> rawObservable();",
+        "  @Retrofit.GET(\"/future/{id}\")",
+        "  public abstract CompletableFuture<String> future(@Retrofit.Path(\"id\") String id);",
+        "  @Retrofit.GET(\"/listenable\")",
+        "  @Retrofit.Authenticated",
+        "  public abstract ListenableFuture<List<String>> listenable();",
+        "  @Retrofit.GET(\"/futureResponse\")",
+        "  public abstract CompletableFuture<Response> futureResponse();",
+        "  @Retrofit.POST(\"/post\")",
+        "  @Retrofit.Compress(threshold = 4)",
+        "  public abstract String post(@Retrofit.Body String body);",
+        "  @Retrofit.POST(\"/form\")",
+        "  public abstract Observable<String> form(@Retrofit.Field(\"a\") String a,",
+        "      @Retrofit.Field(\"n\") int n, @Retrofit.FieldMap Map<String, String> more);",
+        "  @Retrofit.PUT(\"/put\")",
+        "  public abstract String put(@Retrofit.Part(\"name\") String name,",
+        "      @Retrofit.Part(value = \"text\", mimeType = \"text/plain\") String text);",
+        "  @Retrofit.PUT(\"/empty\")",
+        "  public abstract String putEmpty();",
+        "  @Retrofit.DELETE(\"/users/{id}\")",
+        "  public abstract Response delete(@Retrofit.Path(\"id\") long id);",
+        "  @Retrofit.GET(\"/items/{id}\")",
+        "  @Retrofit.Batch(value = \"/items\", param = \"id\", maxSize = 2)",
+        "  public abstract Observable<String> item(@Retrofit.Path(\"id\") long id);",
+        "  public abstract ConnectionStats connectionStats();",
+        "  @Retrofit.Builder",
+        "  public abstract static class Builder {",
+        "    public abstract Builder okHttpClient(OkHttpClient client);",
+        "    public abstract Sink build();",
+        "  }",
+        "  public static String exercise() throws Exception {",
+        "    final StringBuilder log = new StringBuilder();",
+        "    OkHttpClient client = new OkHttpClient();",
+        "    client.interceptors().add(new Interceptor() {",
+        "      @Override public com.squareup.okhttp.Response intercept(Interceptor.Chain chain)",
+        "          throws IOException {",
+        "        Request request = chain.request();",
+        "        Buffer body = new Buffer();",
+        "        if (request.body() != null) {",
+        "          request.body().writeTo(body);",
+        "        }",
+        "        synchronized (log) {",
+        "          log.append(request.method()).append(' ').append(request.urlString()).append('\\n')",
+        "              .append(request.headers()).append(body.size()).append('\\n');",
+        "        }",
+        "        return new com.squareup.okhttp.Response.Builder().request(request)",
+        "            .protocol(Protocol.HTTP_1_1).code(200).message(\"OK\")",
+        "            .body(ResponseBody.create(MediaType.parse(\"text/plain\"), \"octocat\")).build();",
+        "      }",
+        "    });",
+        "    Sink sink = new Retrofit_Sink.Builder().okHttpClient(client).build();",
+        "    final StringBuilder results = new StringBuilder();",
+        "    results.append(sink.user(\"1\", \"h\")).append('\\n');",
+        "    results.append(sink.search(\"a b\", 2, null, Arrays.asList(\"x\", \"y\"), new long[] {3, 4},",
+        "        Collections.<String, Object>singletonMap(\"k\", \"v\")).toBlocking().single()).append('\\n');",
+        "    results.append(sink.list(\"context\").toBlocking().single()).append('\\n');",
+        "    results.append(sink.raw().getStatus()).append('\\n');",
+        "    results.append(sink.rawObservable().toBlocking().single().getStatus()).append('\\n');",
+        "    results.append(sink.future(\"2\").get()).append('\\n');",
+        "    results.append(sink.listenable().get()).append('\\n');",
+        "    results.append(sink.futureResponse().get().getStatus()).append('\\n');",
+        "    results.append(sink.post(\"hello hello hello\")).append('\\n');",
+        "    results.append(sink.form(\"a\", 1, Collections.singletonMap(\"m\", \"n\")).toBlocking().single())",
+        "        .append('\\n');",
+        "    results.append(sink.put(\"n\", \"t\")).append('\\n');",
+        "    results.append(sink.putEmpty()).append('\\n');",
+        "    results.append(sink.delete(5).getStatus()).append('\\n');",
+        "    results.append(sink.item(7).toBlocking().single()).append('\\n');",
+        "    final CountDownLatch latch = new CountDownLatch(1);",
+        "    sink.callback(new Callback<String>() {",
+        "      @Override public void success(String object, Response response) {",
+        "        results.append(object).append(' ').append(response.getStatus()).append('\\n');",
+        "        latch.countDown();",
+        "      }",
+        "      @Override public void failure(RetrofitError error) {",
+        "        latch.countDown();",
+        "      }",
+        "    });",
+        "    latch.await();",
+        "    final CountDownLatch second = new CountDownLatch(1);",
+        "    sink.callbackResponse(new Callback<Response>() {",
+        "      @Override public void success(Response object, Response response) {",
+        "        results.append(object.getStatus()).append('\\n');",
+        "        second.countDown();",
+        "      }",
+        "      @Override public void failure(RetrofitError error) {",
+        "        second.countDown();",
+        "      }",
+        "    });",
+        "    second.await();",
+        "    return results + \"\\n\" + log;",
+        "  }",
+        "}");
+  }
+
+  public void testJavaPoetBackendGeneratesTheTemplatesCode() throws Exception {
+    // The backends lay out and order members differently, so compare the statements.
+    String velocity = generatedSource("foo.bar.Retrofit_Sink", kitchenSink());
+    String javaPoet = generatedSource("foo.bar.Retrofit_Sink",
+        ImmutableList.of("-Aretrofit.backend=javapoet"), kitchenSink());
+    assertEquals(statements(velocity), statements(javaPoet));
+    assertTrue(javaPoet, javaPoet.contains("\nimport com.squareup.okhttp.Request;\n"));
+    assertFalse(javaPoet, javaPoet.contains(".*;"));
+    assertFalse(javaPoet, javaPoet.contains("com.bluelinelabs"));
+  }
+
+  public void testJavaPoetBackendBehavesLikeTheTemplate() throws Exception {
+    Object velocity = compileAndLoad("foo.bar.Sink", kitchenSink())
+        .getMethod("exercise").invoke(null);
+    Object javaPoet = compileAndLoad("foo.bar.Sink",
+        ImmutableList.of("-Aretrofit.backend=javapoet"), kitchenSink())
+        .getMethod("exercise").invoke(null);
+    assertEquals(velocity, javaPoet);
+    assertTrue(javaPoet.toString(), javaPoet.toString().contains("octocat 200"));
+    assertTrue(javaPoet.toString(), javaPoet.toString().contains("Authorization: token"));
+  }
+
+  /**
+   * Returns the statements and declarations of a Java source, without imports, comments, layout
+   * or package names, and sorted.
+   */
+  private static List<String> statements(String source) {
+    String code = source
+        .replaceAll("(?m)^(package|import) .*$", "")
+        .replaceAll("(?s)/\\*.*?\\*/", "")
+        .replaceAll("(?m)//[^\n\"]*$", "")
+        .replaceAll("\\b(?:[a-z][a-z0-9_]*\\.)+(?=[A-Z])", "")
+        .replaceAll("\\s+", " ")
+        .replaceAll(" ?([{}();,=<>\\[\\]?:+.!&|]) ?", "$1");
+    List<String> statements = new ArrayList<String>();
+    for (String statement : code.split("(?<=[;{}])")) {
+      if (!statement.trim().isEmpty()) {
+        statements.add(statement.trim());
+      }
+    }
+    Collections.sort(statements);
+    return statements;
+  }
+
+  /**
+   * Compiles {@code sources} with the processors into a temporary directory and loads
+   * {@code className} from there, for tests that look at the generated class at run time.
+   */
+  private static Class<?> compileAndLoad(String className, JavaFileObject... sources)
+      throws Exception {
+    return compileAndLoad(className, ImmutableList.<String>of(), sources);
+  }
+
+  /** Like {@link #compileAndLoad(String, JavaFileObject...)}, with extra javac options. */
+  private static Class<?> compileAndLoad(String className, List<String> options,
+      JavaFileObject... sources) throws Exception {
+    File out = compile(options, sources);
+    URLClassLoader loader = new URLClassLoader(new URL[] {out.toURI().toURL()},
+        CompilationTest.class.getClassLoader());
+    return loader.loadClass(className);
+  }
+
+  /**
+   * Compiles {@code sources} with the processors and returns the generated source of
+   * {@code className}, for tests that look at what was or was not generated.
+   */
+  private static String generatedSource(String className, JavaFileObject... sources)
+      throws Exception {
+    return generatedSource(className, ImmutableList.<String>of(), sources);
+  }
+
+  /** Like {@link #generatedSource(String, JavaFileObject...)}, with extra javac options. */
+  private static String generatedSource(String className, List<String> options,
+      JavaFileObject... sources) throws Exception {
+    File out = compile(options, sources);
+    return Files.toString(new File(out, className.replace('.', '/') + ".java"), Charsets.UTF_8);
+  }
+
+  /**
+   * Compiles {@code sources} with the processors and {@code options} into a new temporary
+   * directory.
+   */
+  private static File compile(List<String> options, JavaFileObject... sources) {
+    File out = Files.createTempDir();
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+    JavaCompiler.CompilationTask task = compiler.getTask(null, null, diagnostics,
+        ImmutableList.<String>builder()
+            .add("-d", out.getPath(), "-s", out.getPath())
+            .add("-classpath", System.getProperty("java.class.path"))
+            .addAll(options)
+            .build(),
+        null, Arrays.asList(sources));
+    task.setProcessors(ImmutableList.of(new RetrofitProcessor(), new RetrofitBuilderProcessor()));
+    assertTrue(diagnostics.getDiagnostics().toString(), task.call());
+    return out;
+  }
+
   private static class PoisonedRetrofitProcessor extends RetrofitProcessor {
     private final IllegalArgumentException filerException;
 
@@ -0,0 +1,150 @@
+package retrofit.processor;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import com.google.testing.compile.JavaFileObjects;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.ToolProvider;
+
+/**
+ * Checks the contract Gradle relies on when it runs {@link RetrofitProcessor} as an isolating
+ * incremental processor: when several services are compiled together, every generated file names
+ * exactly one originating element, the {@code @Retrofit} type it was generated from.
+ */
+public class IncrementalProcessingTest extends TestCase {
+  private static final JavaFileObject FOO = JavaFileObjects.forSourceLines(
+      "foo.bar.Foo",
+      "package foo.bar;",
+      "",
+      "import retrofit.http.Retrofit;",
+      "import rx.Observable;",
+      "",
+      "@Retrofit(\"https://example.com\")",
+      "public abstract class Foo {",
+      "  @Retrofit.GET(\"/foo\")",
+      "  public abstract Observable<String> foo();",
+      "}");
+  private static final JavaFileObject BAR = JavaFileObjects.forSourceLines(
+      "foo.bar.Bar",
+      "package foo.bar;",
+      "",
+      "import retrofit.http.Retrofit;",
+      "import rx.Observable;",
+      "",
+      "@Retrofit(\"https://example.com\")",
+      "public abstract class Bar {",
+      "  @Retrofit.GET(\"/bar\")",
+      "  public abstract Observable<String> bar();",
+      "}");
+
+  public void testOneOriginatingElementPerFile() throws Exception {
+    Map<String, List<String>> generated = process(FOO, BAR);
+    assertEquals(2, generated.size());
+    assertEquals(Arrays.asList("foo.bar.Foo"), generated.get("foo.bar.Retrofit_Foo"));
+    assertEquals(Arrays.asList("foo.bar.Bar"), generated.get("foo.bar.Retrofit_Bar"));
+  }
+
+  /**
+   * Runs RetrofitProcessor alone over {@code sources} and returns each generated source file
+   * mapped to the names of its originating elements.
+   */
+  private static Map<String, List<String>> process(JavaFileObject... sources) throws Exception {
+    final Map<String, List<String>> generated = new LinkedHashMap<String, List<String>>();
+    File out = Files.createTempDir();
+    try {
+      JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+      // The generated code needs the converter and android on the classpath, so only the
+      // processor's output is checked here; diagnostics about the generated code are dropped.
+      DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+      JavaCompiler.CompilationTask task = compiler.getTask(null, null, diagnostics,
+          ImmutableList.of("-proc:only", "-s", out.getPath(),
+              "-classpath", System.getProperty("java.class.path")),
+          null, Arrays.asList(sources));
+      task.setProcessors(ImmutableList.of(new RetrofitProcessor() {
+        @Override public synchronized void init(ProcessingEnvironment processingEnv) {
+          super.init(recording(processingEnv, generated));
+        }
+      }));
+      task.call();
+    } finally {
+      deleteRecursively(out);
+    }
+    return generated;
+  }
+
+  private static ProcessingEnvironment recording(final ProcessingEnvironment processingEnv,
+      final Map<String, List<String>> generated) {
+    final Filer filer = proxy(Filer.class, processingEnv.getFiler(), new InvocationHandler() {
+      @Override public Object invoke(Object delegate, Method method, Object[] args)
+          throws Throwable {
+        if (method.getName().equals("createSourceFile")) {
+          List<String> origins = new ArrayList<String>();
+          for (Element element : (Element[]) args[1]) {
+            origins.add(((TypeElement) element).getQualifiedName().toString());
+          }
+          generated.put(args[0].toString(), origins);
+        }
+        return invokeDelegate(delegate, method, args);
+      }
+    });
+    return proxy(ProcessingEnvironment.class, processingEnv, new InvocationHandler() {
+      @Override public Object invoke(Object delegate, Method method, Object[] args)
+          throws Throwable {
+        if (method.getName().equals("getFiler")) {
+          return filer;
+        }
+        return invokeDelegate(delegate, method, args);
+      }
+    });
+  }
+
+  /** A proxy that hands {@code handler} the delegate in place of the proxy itself. */
+  private static <T> T proxy(Class<T> type, final T delegate, final InvocationHandler handler) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+        new InvocationHandler() {
+          @Override public Object invoke(Object proxy, Method method, Object[] args)
+              throws Throwable {
+            return handler.invoke(delegate, method, args);
+          }
+        }));
+  }
+
+  private static Object invokeDelegate(Object delegate, Method method, Object[] args)
+      throws Throwable {
+    try {
+      return method.invoke(delegate, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+}
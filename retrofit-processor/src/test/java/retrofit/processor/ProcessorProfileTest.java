@@ -0,0 +1,70 @@
+package retrofit.processor;
+
+import com.google.common.base.Ticker;
+
+import junit.framework.TestCase;
+
+public class ProcessorProfileTest extends TestCase {
+  /** A ticker that moves one millisecond per read. */
+  private static Ticker fakeTicker() {
+    return new Ticker() {
+      long nanos;
+
+      @Override public long read() {
+        long now = nanos;
+        nanos += 1000000;
+        return now;
+      }
+    };
+  }
+
+  public void testPhasesAddUpPerType() {
+    ProcessorProfile profile = new ProcessorProfile(true, fakeTicker());
+    profile.startType("foo.Fast");
+    profile.endPhase(ProcessorProfile.Phase.DISCOVERY);
+    profile.startType("foo.Slow");
+    profile.endPhase(ProcessorProfile.Phase.DISCOVERY);
+    profile.endPhase(ProcessorProfile.Phase.RENDER);
+    profile.endPhase(ProcessorProfile.Phase.RENDER);
+
+    assertEquals("{\n"
+        + "  \"totalMs\": 4.000,\n"
+        + "  \"phases\": {\"discovery\": 2.000, \"properties\": 0.000, \"render\": 2.000,"
+        + " \"reformat\": 0.000, \"write\": 0.000},\n"
+        + "  \"types\": [\n"
+        + "    {\"type\": \"foo.Slow\", \"totalMs\": 3.000, \"phases\": {\"discovery\": 1.000,"
+        + " \"properties\": 0.000, \"render\": 2.000, \"reformat\": 0.000, \"write\": 0.000}},\n"
+        + "    {\"type\": \"foo.Fast\", \"totalMs\": 1.000, \"phases\": {\"discovery\": 1.000,"
+        + " \"properties\": 0.000, \"render\": 0.000, \"reformat\": 0.000, \"write\": 0.000}}\n"
+        + "  ]\n"
+        + "}\n", profile.toJson());
+    assertEquals("@Retrofit processor profile: 2 types in 4.000 ms (discovery 2.000,"
+        + " properties 0.000, render 2.000, reformat 0.000, write 0.000)\n"
+        + "  3.000 ms foo.Slow\n"
+        + "  1.000 ms foo.Fast", profile.summary());
+  }
+
+  public void testChargeFromRenderThreads() {
+    ProcessorProfile profile = new ProcessorProfile(true, fakeTicker());
+    profile.startType("foo.Slow");
+    profile.endPhase(ProcessorProfile.Phase.PROPERTIES);
+    long mark = profile.mark();
+    mark = profile.charge("foo.Slow", ProcessorProfile.Phase.RENDER, mark);
+    profile.charge("foo.Slow", ProcessorProfile.Phase.REFORMAT, mark);
+    profile.startType("foo.Slow");
+    profile.endPhase(ProcessorProfile.Phase.WRITE);
+
+    assertEquals("@Retrofit processor profile: 1 types in 4.000 ms (discovery 0.000,"
+        + " properties 1.000, render 1.000, reformat 1.000, write 1.000)\n"
+        + "  4.000 ms foo.Slow", profile.summary());
+  }
+
+  public void testDisabledRecordsNothing() {
+    ProcessorProfile profile = new ProcessorProfile(false, fakeTicker());
+    profile.startType("foo.Fast");
+    profile.endPhase(ProcessorProfile.Phase.DISCOVERY);
+    assertEquals("{\n  \"totalMs\": 0.000,\n  \"phases\": {\"discovery\": 0.000,"
+        + " \"properties\": 0.000, \"render\": 0.000, \"reformat\": 0.000, \"write\": 0.000},\n"
+        + "  \"types\": [\n  ]\n}\n", profile.toJson());
+  }
+}
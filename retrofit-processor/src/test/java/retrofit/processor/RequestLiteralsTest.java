@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrofit.processor;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link RequestLiterals}.
+ */
+public class RequestLiteralsTest extends TestCase {
+  private final List<String> errors = new ArrayList<String>();
+
+  public void testPath() {
+    Map<String, String> placeholders = ImmutableMap.of("user", "userId", "repo", "repo");
+    assertEquals("/users/\" + userId + \"/repos/\" + repo + \"",
+        RequestLiterals.path("/users/{user}/repos/{repo}?sort=updated", placeholders, errors));
+    assertEquals(ImmutableList.of(), errors);
+  }
+
+  public void testPathErrors() {
+    Map<String, String> placeholders = ImmutableMap.of();
+    assertEquals("/users/{user}",
+        RequestLiterals.path("/users/{user}", placeholders, errors));
+    assertEquals("/users/{user",
+        RequestLiterals.path("/users/{user", placeholders, errors));
+    assertEquals(2, errors.size());
+    assertTrue(errors.get(0), errors.get(0).contains("no parameter named user"));
+    assertTrue(errors.get(1), errors.get(1).contains("unclosed"));
+  }
+
+  public void testQueries() {
+    Map<String, String> queries = new LinkedHashMap<String, String>();
+    RequestLiterals.queries("/search?q=a=b&&flag&redirect=http://example.com/", queries, errors);
+    assertEquals(ImmutableMap.of(
+        "q", "\"a=b\"",
+        "flag", "\"\"",
+        "redirect", "\"http://example.com/\""), queries);
+    assertEquals(ImmutableList.of(), errors);
+
+    RequestLiterals.queries("/search?=nameless", queries, errors);
+    assertEquals(1, errors.size());
+  }
+
+  public void testHeaderSplitsAtFirstColon() {
+    Map<String, String> headers = new LinkedHashMap<String, String>();
+    RequestLiterals.header("Referer:  https://example.com:8443/a ", headers, errors);
+    RequestLiterals.header("X-Quote: say \"hi\"", headers, errors);
+    assertEquals(ImmutableMap.of(
+        "Referer", "\"https://example.com:8443/a\"",
+        "X-Quote", "\"say \\\"hi\\\"\""), headers);
+    assertEquals(ImmutableList.of(), errors);
+  }
+
+  public void testHeaderErrors() {
+    Map<String, String> headers = new LinkedHashMap<String, String>();
+    RequestLiterals.header("Accept application/json", headers, errors);
+    RequestLiterals.header(": value", headers, errors);
+    RequestLiterals.header("Bad Name: value", headers, errors);
+    RequestLiterals.header("X-Split: a\nb", headers, errors);
+    assertEquals(ImmutableMap.of(), headers);
+    assertEquals(4, errors.size());
+  }
+
+  public void testJavaString() {
+    assertEquals("\"a\\\\b\\\"c\\n\\u0001\"", RequestLiterals.javaString("a\\b\"c\n\u0001"));
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.http;
+
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.Callback;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import rx.Observer;
+import rx.Scheduler;
+import rx.functions.Action0;
+
+/**
+ * One call of a generated method returning a future, sent straight to OkHttp with no Rx operators
+ * in between: the request is prepared, on the {@link #prepareScheduler} if there is one, enqueued,
+ * and the response converted and handed to {@link #success} on OkHttp's thread. Only token
+ * interceptors, which fetch tokens asynchronously, are waited on through their Observable.
+ *
+ * <p>Like the Observable pipeline, a call is traced, logged, sent once more with the retry headers
+ * after a network failure, and sent once more after a 401 that a token interceptor answers.
+ *
+ * @param <T> the converted result.
+ */
+public abstract class AsyncCall<T> implements Callback {
+  /** Runs listeners where the future completes. */
+  public static final Executor DIRECT = new Executor() {
+    @Override public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  private final OkHttpClient client;
+  private final Tracer.Trace trace;
+  private final HttpLogger logger;
+  private final String bodyString;
+  private final Object context;
+  private final Object[] tokenInterceptors;
+  private Request request;
+  private volatile Call call;
+  private volatile boolean cancelled;
+  private boolean retried;
+  private boolean reauthorized;
+  private long start;
+
+  /**
+   * @param logger the method's logger, or null if it logs nothing.
+   * @param bodyString the body as text for the log, or null.
+   */
+  protected AsyncCall(OkHttpClient client, Tracer.Trace trace, HttpLogger logger,
+      String bodyString, Object context, Object... tokenInterceptors) {
+    this.client = client;
+    this.trace = trace;
+    this.logger = logger;
+    this.bodyString = bodyString;
+    this.context = context;
+    this.tokenInterceptors = tokenInterceptors;
+  }
+
+  /** Runs the interceptors and authenticator on {@code request}. */
+  protected abstract Request prepare(Request request) throws Exception;
+
+  /** Converts a response; its body is closed afterwards. */
+  protected abstract T convert(Response response) throws Exception;
+
+  protected abstract void success(T value);
+
+  protected abstract void failure(Throwable error);
+
+  /** Returns {@code failed} with the retry headers, or null to not retry a network failure. */
+  protected Request retry(Request failed) {
+    return null;
+  }
+
+  /**
+   * Returns where requests are prepared, or null to prepare them in place: on the caller's thread,
+   * or on OkHttp's after a 401. Override it when {@link #prepare} may block.
+   */
+  protected Scheduler prepareScheduler() {
+    return null;
+  }
+
+  /** Starts the call with {@code request}, once. */
+  public final void start(Request request) {
+    this.request = request;
+    trace.start();
+    send();
+  }
+
+  /** Cancels the call; it fails unless it has already completed. */
+  public final void cancel() {
+    cancelled = true;
+    Call call = this.call;
+    if (call != null) {
+      call.cancel();
+    }
+  }
+
+  /** Returns a listener for {@code future} that cancels this call if the future is cancelled. */
+  public final Runnable cancelWith(final Future<?> future) {
+    return new Runnable() {
+      @Override public void run() {
+        if (future.isCancelled()) cancel();
+      }
+    };
+  }
+
+  private void send() {
+    if (!hasTokenInterceptor()) {
+      enqueue();
+      return;
+    }
+    TokenProvider.whenReady(request, context, tokenInterceptors).subscribe(new Observer<Request>() {
+      @Override public void onCompleted() {
+      }
+
+      @Override public void onError(Throwable e) {
+        fail(e);
+      }
+
+      @Override public void onNext(Request ignored) {
+        enqueue();
+      }
+    });
+  }
+
+  private boolean hasTokenInterceptor() {
+    for (Object interceptor : tokenInterceptors) {
+      if (interceptor instanceof Retrofit.TokenInterceptor) return true;
+    }
+    return false;
+  }
+
+  private void enqueue() {
+    Scheduler scheduler = prepareScheduler();
+    if (scheduler == null) {
+      prepareAndSend();
+      return;
+    }
+    final Scheduler.Worker worker = scheduler.createWorker();
+    worker.schedule(new Action0() {
+      @Override public void call() {
+        try {
+          prepareAndSend();
+        } finally {
+          worker.unsubscribe();
+        }
+      }
+    });
+  }
+
+  private void prepareAndSend() {
+    Request prepared;
+    try {
+      prepared = trace.inject(prepare(request));
+      if (logger != null && logger.enabled()) {
+        prepared = logger.logRequest(prepared, bodyString);
+      }
+    } catch (Throwable e) {
+      fail(e);
+      return;
+    }
+    send(prepared);
+  }
+
+  private void send(Request prepared) {
+    if (cancelled) {
+      fail(new IOException("Canceled"));
+      return;
+    }
+    start = System.nanoTime();
+    Call call = client.newCall(prepared);
+    this.call = call;
+    call.enqueue(this);
+    if (cancelled) {
+      call.cancel();
+    }
+  }
+
+  @Override public final void onFailure(Request failed, IOException e) {
+    if (!retried && !cancelled) {
+      Request again = retry(failed);
+      if (again != null) {
+        retried = true;
+        trace.event(Tracer.RETRY, 0);
+        try {
+          if (logger != null && logger.enabled()) {
+            again = logger.logRequest(again, bodyString);
+          }
+        } catch (IOException logFailure) {
+          fail(logFailure);
+          return;
+        }
+        send(again);
+        return;
+      }
+    }
+    if (logger != null && logger.enabled()) {
+      logger.logError(failed.method(), failed.urlString(), e);
+    }
+    fail(new RequestException(failed, e));
+  }
+
+  @Override public final void onResponse(Response response) {
+    T value;
+    try {
+      if (logger != null && logger.enabled()) {
+        response = logger.logResponse(response, System.nanoTime() - start);
+      }
+      trace.received(response);
+      if (response.code() == 401 && !reauthorized
+          && TokenProvider.unauthorized(response.request(), tokenInterceptors)) {
+        reauthorized = true;
+        response.body().close();
+        trace.event(Tracer.RETRY, 0);
+        send();
+        return;
+      }
+      long convertStart = System.nanoTime();
+      try {
+        value = convert(response);
+      } finally {
+        trace.event(Tracer.CONVERSION, System.nanoTime() - convertStart);
+        response.body().close();
+      }
+    } catch (Throwable e) {
+      fail(e);
+      return;
+    }
+    trace.end(null);
+    success(value);
+  }
+
+  private void fail(Throwable e) {
+    trace.end(cancelled ? new CancellationException() : e);
+    failure(e);
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.http;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.Observer;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.Subscription;
+import rx.functions.Action1;
+import rx.schedulers.Schedulers;
+
+/**
+ * Collects single-key calls for a short window and loads them with one request.
+ *
+ * <p>A batch is flushed when it holds {@code maxSize} distinct keys or {@code maxDelayMs} after
+ * its first key arrived, whichever comes first. The same key requested twice within a window is
+ * loaded once and delivered to both subscribers. The loader must return exactly one value per
+ * key, in the order of the keys it was given.
+ *
+ * @see Retrofit.Batch
+ */
+public final class Batcher<K, V> {
+  /** Loads the values for a batch of keys. */
+  public interface Loader<K, V> {
+    /** Returns one value per key, in the order of {@code keys}. */
+    Observable<List<V>> load(List<K> keys);
+  }
+
+  private final Loader<K, V> loader;
+  private final int maxSize;
+  private final long maxDelayMs;
+  private final Scheduler scheduler;
+
+  // Guarded by this.
+  private Map<K, List<Subscriber<? super V>>> pending;
+  // The flush timer of the pending batch, so that a batch that fills up releases it. Guarded by this.
+  private Subscription timer;
+
+  public Batcher(Loader<K, V> loader, int maxSize, long maxDelayMs) {
+    this(loader, maxSize, maxDelayMs, Schedulers.computation());
+  }
+
+  public Batcher(Loader<K, V> loader, int maxSize, long maxDelayMs, Scheduler scheduler) {
+    if (maxSize < 1) throw new IllegalArgumentException("maxSize < 1: " + maxSize);
+    if (maxDelayMs < 0) throw new IllegalArgumentException("maxDelayMs < 0: " + maxDelayMs);
+    this.loader = TypePreconditions.checkNotNull(loader);
+    this.maxSize = maxSize;
+    this.maxDelayMs = maxDelayMs;
+    this.scheduler = TypePreconditions.checkNotNull(scheduler);
+  }
+
+  /** Returns an observable that emits the value for {@code key} once its batch is loaded. */
+  public Observable<V> get(final K key) {
+    return Observable.create(new Observable.OnSubscribe<V>() {
+      @Override public void call(Subscriber<? super V> subscriber) {
+        enqueue(key, subscriber);
+      }
+    });
+  }
+
+  private void enqueue(K key, Subscriber<? super V> subscriber) {
+    Map<K, List<Subscriber<? super V>>> full = null;
+    Map<K, List<Subscriber<? super V>>> started = null;
+    Subscription cancelled = null;
+    synchronized (this) {
+      if (pending == null) {
+        pending = new LinkedHashMap<K, List<Subscriber<? super V>>>();
+        started = pending;
+      }
+      List<Subscriber<? super V>> subscribers = pending.get(key);
+      if (subscribers == null) {
+        subscribers = new ArrayList<Subscriber<? super V>>(1);
+        pending.put(key, subscribers);
+      }
+      subscribers.add(subscriber);
+      if (pending.size() >= maxSize) {
+        full = pending;
+        pending = null;
+        cancelled = timer;
+        timer = null;
+      }
+    }
+    if (cancelled != null) {
+      cancelled.unsubscribe();
+    }
+    if (full != null) {
+      flush(full);
+    } else if (started != null) {
+      final Map<K, List<Subscriber<? super V>>> batch = started;
+      Subscription subscription = Observable.timer(maxDelayMs, TimeUnit.MILLISECONDS, scheduler)
+          .subscribe(new Action1<Long>() {
+            @Override public void call(Long ignored) {
+              flushPending(batch);
+            }
+          });
+      synchronized (this) {
+        if (pending == batch) {
+          timer = subscription;
+          subscription = null;
+        }
+      }
+      if (subscription != null) {
+        subscription.unsubscribe(); // The batch filled up while its timer was being started.
+      }
+    }
+  }
+
+  /**
+   * Flushes {@code batch} if it is still pending. A batch that filled up has already been flushed,
+   * and its timer must not cut the next batch short.
+   */
+  private void flushPending(Map<K, List<Subscriber<? super V>>> batch) {
+    synchronized (this) {
+      if (pending != batch) return;
+      pending = null;
+      timer = null;
+    }
+    flush(batch);
+  }
+
+  /** Loads the batch and hands each value to the subscribers of the key at the same index. */
+  private void flush(final Map<K, List<Subscriber<? super V>>> batch) {
+    final List<K> keys = new ArrayList<K>(batch.keySet());
+    Observable<List<V>> values;
+    try {
+      values = loader.load(keys);
+    } catch (Throwable e) {
+      values = Observable.error(e);
+    }
+    values.subscribe(new Observer<List<V>>() {
+      boolean delivered;
+
+      @Override public void onNext(List<V> list) {
+        delivered = true;
+        int i = 0;
+        for (List<Subscriber<? super V>> subscribers : batch.values()) {
+          if (i < list.size()) {
+            V value = list.get(i);
+            for (Subscriber<? super V> subscriber : subscribers) {
+              if (subscriber.isUnsubscribed()) continue;
+              subscriber.onNext(value);
+              subscriber.onCompleted();
+            }
+          } else {
+            error(subscribers, new IllegalStateException("Batch returned " + list.size()
+                + " values for " + keys.size() + " keys"));
+          }
+          i++;
+        }
+      }
+
+      @Override public void onCompleted() {
+        if (!delivered) {
+          for (List<Subscriber<? super V>> subscribers : batch.values()) {
+            error(subscribers, new IllegalStateException("Batch completed without values"));
+          }
+        }
+      }
+
+      @Override public void onError(Throwable e) {
+        for (List<Subscriber<? super V>> subscribers : batch.values()) {
+          error(subscribers, e);
+        }
+      }
+    });
+  }
+
+  private static <V> void error(List<Subscriber<? super V>> subscribers, Throwable e) {
+    for (Subscriber<? super V> subscriber : subscribers) {
+      if (!subscriber.isUnsubscribed()) subscriber.onError(e);
+    }
+  }
+}
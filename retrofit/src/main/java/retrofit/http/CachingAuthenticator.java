@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.http;
+
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link Retrofit.RequestAuthenticator} that fetches one token per set of permissions and keeps
+ * it. Generated services pass their interned {@link Permissions} constants, so a cached token is
+ * found by reference equality; other collections are interned first. The generated code hands the
+ * token returned by {@link #authorize} straight to {@link #intercept(String, RequestFacade)}, so
+ * nothing is remembered between the two calls and one instance may serve concurrent requests.
+ */
+public abstract class CachingAuthenticator implements Retrofit.RequestAuthenticator {
+  private final Map<Set<String>, String> tokens = new IdentityHashMap<Set<String>, String>();
+  // One lock per set, so that only one token is fetched per set at a time. The interned sets are
+  // shared by every instance and caller, so they are not locked on themselves.
+  private final Map<Set<String>, Object> locks = new IdentityHashMap<Set<String>, Object>();
+
+  /** Fetches a token granting {@code permissions}, or returns null if there is none. */
+  protected abstract String fetchToken(Object context, Set<String> permissions);
+
+  /** Adds {@code token} to {@code request}. */
+  public abstract void intercept(String token, RequestFacade request);
+
+  /** Not called by generated code, which passes the token to the method above. */
+  @Override public void intercept(RequestFacade request) {
+  }
+
+  @Override public String authorize(Object context, Collection<String> permissions) {
+    String token = cached(permissions);
+    if (token != null) {
+      return token;
+    }
+    Set<String> set = Permissions.intern(permissions);
+    synchronized (lock(set)) {
+      token = cached(set);
+      if (token == null) {
+        token = fetchToken(context, set);
+        if (token != null) {
+          synchronized (tokens) {
+            tokens.put(set, token);
+          }
+        }
+      }
+    }
+    return token;
+  }
+
+  /** Forgets {@code token}, for example after a 401, returning whether it was cached. */
+  public boolean invalidate(String token) {
+    boolean removed = false;
+    synchronized (tokens) {
+      for (Iterator<String> i = tokens.values().iterator(); i.hasNext(); ) {
+        if (i.next().equals(token)) {
+          i.remove();
+          removed = true;
+        }
+      }
+    }
+    return removed;
+  }
+
+  private Object lock(Set<String> set) {
+    synchronized (locks) {
+      Object lock = locks.get(set);
+      if (lock == null) {
+        lock = new Object();
+        locks.put(set, lock);
+      }
+      return lock;
+    }
+  }
+
+  private String cached(Collection<String> permissions) {
+    synchronized (tokens) {
+      return tokens.get(permissions);
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.http;
+
+import com.squareup.okhttp.Connection;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * A network interceptor that counts, per host, the requests sent and the connections that carried
+ * them. A generated client installs one when its class declares a method returning
+ * {@code ConnectionStats}:
+ * <pre>
+ * abstract ConnectionStats connectionStats();
+ * </pre>
+ */
+public final class ConnectionStats implements Interceptor {
+  // Connections don't override equals(), so this is an identity set that forgets closed ones.
+  private final Set<Connection> seen =
+      Collections.newSetFromMap(new WeakHashMap<Connection, Boolean>());
+  private final Map<String, Host> hosts = new LinkedHashMap<String, Host>();
+
+  @Override public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    record(request.httpUrl().host(), chain.connection());
+    return chain.proceed(request);
+  }
+
+  private synchronized void record(String host, Connection connection) {
+    Host stats = hosts.get(host);
+    if (stats == null) {
+      stats = new Host(host);
+      hosts.put(host, stats);
+    }
+    stats.requests++;
+    if (connection == null) return;
+    if (seen.add(connection)) {
+      stats.connections++;
+    }
+    Protocol protocol = connection.getProtocol();
+    if (protocol != Protocol.HTTP_1_0 && protocol != Protocol.HTTP_1_1) {
+      stats.multiplexedRequests++;
+    }
+  }
+
+  /** Returns a copy of the per-host counters, keyed by host name in order of first use. */
+  public synchronized Map<String, Host> snapshot() {
+    Map<String, Host> copy = new LinkedHashMap<String, Host>(hosts.size());
+    for (Host host : hosts.values()) {
+      copy.put(host.host, host.copy());
+    }
+    return Collections.unmodifiableMap(copy);
+  }
+
+  /** Returns a copy of the counters for {@code host}, or null if no request went there. */
+  public synchronized Host get(String host) {
+    Host stats = hosts.get(host);
+    return stats != null ? stats.copy() : null;
+  }
+
+  public synchronized void reset() {
+    hosts.clear();
+    seen.clear();
+  }
+
+  /** Counters for one host. Instances returned by {@link ConnectionStats} don't change. */
+  public static final class Host {
+    private final String host;
+    private int connections;
+    private int requests;
+    private int multiplexedRequests;
+
+    Host(String host) {
+      this.host = host;
+    }
+
+    Host copy() {
+      Host copy = new Host(host);
+      copy.connections = connections;
+      copy.requests = requests;
+      copy.multiplexedRequests = multiplexedRequests;
+      return copy;
+    }
+
+    public String host() {
+      return host;
+    }
+
+    /** Distinct connections that carried at least one request. */
+    public int connectionCount() {
+      return connections;
+    }
+
+    public int requestCount() {
+      return requests;
+    }
+
+    /** Requests that went over an HTTP/2 or SPDY connection. */
+    public int multiplexedRequestCount() {
+      return multiplexedRequests;
+    }
+
+    /** The share of requests that reused an already open connection, from 0 to 1. */
+    public double reuseRatio() {
+      return requests == 0 ? 0 : (double) (requests - connections) / requests;
+    }
+
+    /** Average requests (streams, on HTTP/2) per connection. */
+    public double streamsPerConnection() {
+      return connections == 0 ? 0 : (double) requests / connections;
+    }
+
+    @Override public String toString() {
+      return host + "{connections=" + connections + ", requests=" + requests
+          + ", multiplexed=" + multiplexedRequests + ", reuse=" + reuseRatio() + "}";
+    }
+  }
+}
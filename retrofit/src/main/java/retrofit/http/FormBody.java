@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.http;
+
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.RequestBody;
+
+import java.io.IOException;
+
+import okio.BufferedSink;
+
+/**
+ * An {@code application/x-www-form-urlencoded} {@link RequestBody} that keeps its fields as they
+ * were given and URL-encodes them straight into the sink while it is written, so a form with
+ * thousands of fields is never held as one encoded string. The encoded length is counted once
+ * when the body is built, so the request still has a {@code Content-Length}.
+ *
+ * <p>Names and values are encoded as by {@link java.net.URLEncoder} with UTF-8: letters, digits
+ * and {@code .-*_} are kept, a space becomes {@code +}, and every other byte is percent-encoded.
+ *
+ * @see Retrofit.FormUrlEncoded
+ */
+public final class FormBody extends RequestBody {
+  private static final MediaType CONTENT_TYPE =
+      MediaType.parse("application/x-www-form-urlencoded");
+  private static final byte[] HEX = {
+      '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+  };
+
+  private final String[] namesAndValues;
+  private final int size;
+  private final long contentLength;
+
+  private FormBody(Builder builder) {
+    this.namesAndValues = builder.namesAndValues;
+    this.size = builder.size;
+    long length = size > 0 ? size / 2 - 1 : 0; // The '&' separators.
+    for (int i = 0; i < size; i += 2) {
+      length += encodedLength(namesAndValues[i]) + 1 + encodedLength(namesAndValues[i + 1]);
+    }
+    this.contentLength = length;
+  }
+
+  /** The number of fields. */
+  public int size() {
+    return size / 2;
+  }
+
+  public String name(int index) {
+    return namesAndValues[index * 2];
+  }
+
+  public String value(int index) {
+    return namesAndValues[index * 2 + 1];
+  }
+
+  @Override public MediaType contentType() {
+    return CONTENT_TYPE;
+  }
+
+  @Override public long contentLength() {
+    return contentLength;
+  }
+
+  @Override public void writeTo(BufferedSink sink) throws IOException {
+    for (int i = 0; i < size; i += 2) {
+      if (i > 0) sink.writeByte('&');
+      encode(namesAndValues[i], sink);
+      sink.writeByte('=');
+      encode(namesAndValues[i + 1], sink);
+    }
+  }
+
+  private static boolean isUnreserved(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+        || c == '.' || c == '-' || c == '*' || c == '_';
+  }
+
+  private static boolean isSurrogatePair(String s, int i) {
+    return Character.isHighSurrogate(s.charAt(i)) && i + 1 < s.length()
+        && Character.isLowSurrogate(s.charAt(i + 1));
+  }
+
+  static long encodedLength(String s) {
+    long length = 0;
+    for (int i = 0, len = s.length(); i < len; i++) {
+      char c = s.charAt(i);
+      if (isUnreserved(c) || c == ' ') {
+        length += 1;
+      } else if (c < 0x80) {
+        length += 3;
+      } else if (c < 0x800) {
+        length += 6;
+      } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+        length += 9;
+      } else if (isSurrogatePair(s, i)) {
+        length += 12;
+        i++;
+      } else {
+        length += 3; // A lone surrogate is sent as '?', like URLEncoder does.
+      }
+    }
+    return length;
+  }
+
+  private static void encode(String s, BufferedSink sink) throws IOException {
+    for (int i = 0, len = s.length(); i < len; i++) {
+      char c = s.charAt(i);
+      if (isUnreserved(c)) {
+        sink.writeByte(c);
+      } else if (c == ' ') {
+        sink.writeByte('+');
+      } else if (c < 0x80) {
+        percent(c, sink);
+      } else if (c < 0x800) {
+        percent(0xc0 | c >> 6, sink);
+        percent(0x80 | c & 0x3f, sink);
+      } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+        percent(0xe0 | c >> 12, sink);
+        percent(0x80 | c >> 6 & 0x3f, sink);
+        percent(0x80 | c & 0x3f, sink);
+      } else if (isSurrogatePair(s, i)) {
+        int codePoint = Character.toCodePoint(c, s.charAt(++i));
+        percent(0xf0 | codePoint >> 18, sink);
+        percent(0x80 | codePoint >> 12 & 0x3f, sink);
+        percent(0x80 | codePoint >> 6 & 0x3f, sink);
+        percent(0x80 | codePoint & 0x3f, sink);
+      } else {
+        percent('?', sink);
+      }
+    }
+  }
+
+  private static void percent(int b, BufferedSink sink) throws IOException {
+    sink.writeByte('%');
+    sink.writeByte(HEX[b >> 4 & 0xf]);
+    sink.writeByte(HEX[b & 0xf]);
+  }
+
+  public static final class Builder {
+    private String[] namesAndValues = new String[16];
+    private int size;
+
+    /** Adds a field. A null value is skipped, like a null {@code @Field} argument. */
+    public Builder add(String name, String value) {
+      TypePreconditions.checkNotNull(name);
+      if (value == null) return this;
+      if (size == namesAndValues.length) {
+        String[] grown = new String[size * 2];
+        System.arraycopy(namesAndValues, 0, grown, 0, size);
+        namesAndValues = grown;
+      }
+      namesAndValues[size++] = name;
+      namesAndValues[size++] = value;
+      return this;
+    }
+
+    public FormBody build() {
+      return new FormBody(this);
+    }
+  }
+}
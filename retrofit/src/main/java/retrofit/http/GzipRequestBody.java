@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.http;
+
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.RequestBody;
+
+import java.io.IOException;
+
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * A {@link RequestBody} that gzips another body while it is written to the network. Nothing is
+ * buffered: the delegate streams straight through the deflater into the sink.
+ *
+ * @see Retrofit.Compress
+ */
+public final class GzipRequestBody extends RequestBody {
+  private final RequestBody body;
+
+  public GzipRequestBody(RequestBody body) {
+    this.body = TypePreconditions.checkNotNull(body);
+  }
+
+  /**
+   * Returns {@code body} wrapped in a {@code GzipRequestBody} if it is at least {@code threshold}
+   * bytes long, or {@code body} itself if it is shorter or its length is unknown.
+   */
+  public static RequestBody gzip(RequestBody body, long threshold) {
+    long length;
+    try {
+      length = body.contentLength();
+    } catch (IOException e) {
+      return body;
+    }
+    if (length < 0 || length < threshold) {
+      return body;
+    }
+    return new GzipRequestBody(body);
+  }
+
+  @Override public MediaType contentType() {
+    return body.contentType();
+  }
+
+  @Override public long contentLength() {
+    return -1; // We don't know the compressed length in advance.
+  }
+
+  @Override public void writeTo(BufferedSink sink) throws IOException {
+    BufferedSink gzipSink = Okio.buffer(new GzipSink(sink));
+    body.writeTo(gzipSink);
+    gzipSink.close();
+  }
+}
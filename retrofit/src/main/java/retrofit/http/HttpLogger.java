@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.http;
+
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Sink;
+import okio.Timeout;
+
+import retrofit.RestAdapter.LogLevel;
+
+/**
+ * Logs the requests and responses of a generated service. Each exchange becomes an {@link Event},
+ * which is handed to the {@link Listener} if there is one and formatted into lines for the
+ * {@link Log}. Nothing is read, copied or formatted unless the level asks for it, so with
+ * {@link LogLevel#NONE} the cost of a call is the check of {@link #enabled()}.
+ *
+ * <p>Values of sensitive headers such as {@code Authorization} are redacted, and bodies logged at
+ * {@link LogLevel#FULL} are cut to {@link #maxBodyBytes(long)}. Binary bodies are not logged.
+ */
+public final class HttpLogger {
+  /** Where formatted lines go. */
+  public interface Log {
+    void log(String message);
+
+    Log NONE = new Log() {
+      @Override public void log(String message) {
+      }
+    };
+
+    Log SYSTEM_OUT = new Log() {
+      @Override public void log(String message) {
+        System.out.println(message);
+      }
+    };
+  }
+
+  /** Receives every event as a value, for metrics or structured logs. */
+  public interface Listener {
+    void onEvent(Event event);
+  }
+
+  /** One request sent, response received or call failed. */
+  public static final class Event {
+    public enum Kind {
+      REQUEST, RESPONSE, ERROR
+    }
+
+    private final Kind kind;
+    private final String method;
+    private final String url;
+    private final int code;
+    private final Headers headers;
+    private final MediaType contentType;
+    private final long contentLength;
+    private final String body;
+    private final long elapsedMs;
+    private final Throwable error;
+
+    Event(Kind kind, String method, String url, int code, Headers headers, MediaType contentType,
+        long contentLength, String body, long elapsedMs, Throwable error) {
+      this.kind = kind;
+      this.method = method;
+      this.url = url;
+      this.code = code;
+      this.headers = headers;
+      this.contentType = contentType;
+      this.contentLength = contentLength;
+      this.body = body;
+      this.elapsedMs = elapsedMs;
+      this.error = error;
+    }
+
+    public Kind kind() {
+      return kind;
+    }
+
+    public String method() {
+      return method;
+    }
+
+    public String url() {
+      return url;
+    }
+
+    /** The status code of a response, else -1. */
+    public int code() {
+      return code;
+    }
+
+    /** The headers, redacted; empty below {@link LogLevel#HEADERS}. */
+    public Headers headers() {
+      return headers;
+    }
+
+    /** The body's content type, or null. */
+    public MediaType contentType() {
+      return contentType;
+    }
+
+    /** The length of the body in bytes, or -1 if unknown or there is none. */
+    public long contentLength() {
+      return contentLength;
+    }
+
+    /** The body as text, cut to the limit; null below {@link LogLevel#FULL} or if binary. */
+    public String body() {
+      return body;
+    }
+
+    /** How long the response took to arrive, else -1. */
+    public long elapsedMs() {
+      return elapsedMs;
+    }
+
+    /** The failure of an {@link Kind#ERROR} event, else null. */
+    public Throwable error() {
+      return error;
+    }
+  }
+
+  /** The headers whose values are redacted unless {@link #redact} is called. */
+  public static final Set<String> DEFAULT_REDACTED = Collections.unmodifiableSet(new HashSet<String>(
+      Arrays.asList("authorization", "proxy-authorization", "cookie", "set-cookie")));
+  private static final String REDACTED = "\u2588\u2588";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final Headers NO_HEADERS = new Headers.Builder().build();
+
+  private final LogLevel level;
+  private final Log log;
+  private volatile Listener listener;
+  private volatile Set<String> redacted = DEFAULT_REDACTED;
+  private volatile long maxBodyBytes = 4096;
+
+  public HttpLogger(LogLevel level, Log log) {
+    this.level = TypePreconditions.checkNotNull(level);
+    this.log = TypePreconditions.checkNotNull(log);
+  }
+
+  public LogLevel level() {
+    return level;
+  }
+
+  public boolean enabled() {
+    return level != LogLevel.NONE;
+  }
+
+  /**
+   * Returns a logger at {@code level} with the same log, listener and settings as this one, as
+   * they are now. Used for methods with their own {@code @LogLevel}.
+   */
+  public HttpLogger withLevel(LogLevel level) {
+    if (level == this.level) return this;
+    HttpLogger logger = new HttpLogger(level, log);
+    logger.listener = listener;
+    logger.redacted = redacted;
+    logger.maxBodyBytes = maxBodyBytes;
+    return logger;
+  }
+
+  public HttpLogger listener(Listener listener) {
+    this.listener = listener;
+    return this;
+  }
+
+  /** Redacts the values of the named headers, in place of {@link #DEFAULT_REDACTED}. */
+  public HttpLogger redact(String... headerNames) {
+    Set<String> names = new HashSet<String>();
+    for (String name : headerNames) {
+      names.add(name.toLowerCase(Locale.US));
+    }
+    this.redacted = Collections.unmodifiableSet(names);
+    return this;
+  }
+
+  /** Logs at most this many bytes of each body. */
+  public HttpLogger maxBodyBytes(long maxBodyBytes) {
+    this.maxBodyBytes = maxBodyBytes;
+    return this;
+  }
+
+  /**
+   * Logs {@code request}. {@code bodyString} is the body as already rendered by the caller, or null
+   * to read it from the body at {@link LogLevel#FULL}, unless it has a {@code Content-Encoding}. The
+   * request is returned unchanged.
+   */
+  public Request logRequest(Request request, String bodyString) throws IOException {
+    if (!enabled()) return request;
+    boolean headers = level.ordinal() >= LogLevel.HEADERS.ordinal();
+    RequestBody body = request.body();
+    MediaType contentType = body != null ? body.contentType() : null;
+    long contentLength = body != null ? body.contentLength() : -1;
+    String text = null;
+    if (level == LogLevel.FULL && body != null) {
+      if (bodyString != null) {
+        text = truncate(bodyString);
+      } else if (isPlainText(contentType) && request.header("Content-Encoding") == null) {
+        // An encoded body, such as one gzipped by @Compress, would be encoded again and is not text.
+        Prefix prefix = new Prefix(maxBodyBytes);
+        BufferedSink sink = Okio.buffer(prefix);
+        body.writeTo(sink);
+        sink.flush();
+        text = prefix.text(charset(contentType));
+      }
+    }
+    emit(new Event(Event.Kind.REQUEST, request.method(), request.urlString(), -1,
+        headers ? redact(request.headers()) : NO_HEADERS, contentType, contentLength, text, -1,
+        null));
+    return request;
+  }
+
+  /**
+   * Logs {@code response}, which took {@code elapsedNanos} to arrive. At {@link LogLevel#FULL} the
+   * body is read, so a response with the same content is returned in its place.
+   */
+  public Response logResponse(Response response, long elapsedNanos) throws IOException {
+    if (!enabled()) return response;
+    boolean headers = level.ordinal() >= LogLevel.HEADERS.ordinal();
+    ResponseBody body = response.body();
+    MediaType contentType = body != null ? body.contentType() : null;
+    long contentLength = body != null ? body.contentLength() : -1;
+    String text = null;
+    if (level == LogLevel.FULL && body != null && isPlainText(contentType)) {
+      Buffer buffer = new Buffer();
+      BufferedSource source = body.source();
+      try {
+        buffer.writeAll(source);
+      } finally {
+        source.close();
+      }
+      contentLength = buffer.size();
+      Buffer prefix = new Buffer();
+      buffer.copyTo(prefix, 0, Math.min(buffer.size(), maxBodyBytes));
+      text = prefix.readString(charset(contentType));
+      if (buffer.size() > maxBodyBytes) text += truncatedNote(buffer.size());
+      response = response.newBuilder()
+          .body(ResponseBody.create(contentType, buffer.size(), buffer))
+          .build();
+    }
+    emit(new Event(Event.Kind.RESPONSE, response.request().method(),
+        response.request().urlString(), response.code(),
+        headers ? redact(response.headers()) : NO_HEADERS, contentType, contentLength, text,
+        elapsedNanos / 1000000L, null));
+    return response;
+  }
+
+  /** Logs a call to {@code url} that failed with {@code error}. */
+  public void logError(String method, String url, Throwable error) {
+    if (!enabled()) return;
+    emit(new Event(Event.Kind.ERROR, method, url, -1, NO_HEADERS, null, -1, null, -1, error));
+  }
+
+  private void emit(Event event) {
+    Listener listener = this.listener;
+    if (listener != null) {
+      listener.onEvent(event);
+    }
+    if (log != Log.NONE) {
+      format(event);
+    }
+  }
+
+  private void format(Event event) {
+    StringBuilder sb = new StringBuilder(96);
+    switch (event.kind) {
+      case REQUEST:
+        log.log(sb.append("---> HTTP ").append(event.method).append(' ').append(event.url)
+            .toString());
+        if (level == LogLevel.BASIC) return;
+        formatHeadersAndBody(event);
+        sb.setLength(0);
+        log.log(sb.append("---> END HTTP (").append(bodySize(event)).append(" body)").toString());
+        break;
+      case RESPONSE:
+        log.log(sb.append("<--- HTTP ").append(event.code).append(' ').append(event.url)
+            .append(" (").append(event.elapsedMs).append("ms)").toString());
+        if (level == LogLevel.BASIC) return;
+        formatHeadersAndBody(event);
+        sb.setLength(0);
+        log.log(sb.append("<--- END HTTP (").append(bodySize(event)).append(" body)").toString());
+        break;
+      case ERROR:
+        log.log(sb.append("---- ERROR ").append(event.url != null ? event.url : "").toString());
+        StringWriter trace = new StringWriter();
+        event.error.printStackTrace(new PrintWriter(trace));
+        log.log(trace.toString());
+        log.log("---- END ERROR");
+        break;
+    }
+  }
+
+  private void formatHeadersAndBody(Event event) {
+    Headers headers = event.headers;
+    for (int i = 0, size = headers.size(); i < size; i++) {
+      log.log(headers.name(i) + ": " + headers.value(i));
+    }
+    if (event.contentType != null && headers.get("Content-Type") == null) {
+      log.log("Content-Type: " + event.contentType);
+    }
+    if (event.contentLength != -1 && headers.get("Content-Length") == null) {
+      log.log("Content-Length: " + event.contentLength);
+    }
+    if (event.body != null) {
+      log.log("");
+      log.log(event.body);
+    }
+  }
+
+  private static String bodySize(Event event) {
+    return event.contentLength == -1 ? "unknown-length" : event.contentLength + "-byte";
+  }
+
+  private Headers redact(Headers headers) {
+    Set<String> redacted = this.redacted;
+    Headers.Builder builder = null;
+    for (int i = 0, size = headers.size(); i < size; i++) {
+      if (redacted.contains(headers.name(i).toLowerCase(Locale.US))) {
+        if (builder == null) builder = headers.newBuilder();
+        builder.set(headers.name(i), REDACTED);
+      }
+    }
+    return builder != null ? builder.build() : headers;
+  }
+
+  private String truncate(String body) {
+    if (body.length() <= maxBodyBytes) return body;
+    return body.substring(0, (int) maxBodyBytes) + truncatedNote(body.length());
+  }
+
+  private String truncatedNote(long size) {
+    return "... (" + maxBodyBytes + " of " + size + " logged)";
+  }
+
+  /** Whether a body of {@code type} is text. A body of unknown type may be binary, so it is not. */
+  private static boolean isPlainText(MediaType type) {
+    if (type == null) return false;
+    String subtype = type.subtype().toLowerCase(Locale.US);
+    return type.type().equalsIgnoreCase("text") || subtype.contains("json")
+        || subtype.contains("xml") || subtype.contains("html")
+        || subtype.equals("x-www-form-urlencoded");
+  }
+
+  private static Charset charset(MediaType type) {
+    return type != null ? type.charset(UTF_8) : UTF_8;
+  }
+
+  /** Keeps the first bytes written to it and counts the rest. */
+  static final class Prefix implements Sink {
+    private final Buffer prefix = new Buffer();
+    private final long limit;
+    private long total;
+
+    Prefix(long limit) {
+      this.limit = limit;
+    }
+
+    @Override public void write(Buffer source, long byteCount) throws IOException {
+      long keep = Math.min(byteCount, limit - prefix.size());
+      if (keep > 0) {
+        prefix.write(source, keep);
+      }
+      source.skip(byteCount - Math.max(keep, 0));
+      total += byteCount;
+    }
+
+    String text(Charset charset) {
+      String text = prefix.readString(charset);
+      return total > limit ? text + "... (" + limit + " of " + total + " logged)" : text;
+    }
+
+    @Override public void flush() {
+    }
+
+    @Override public Timeout timeout() {
+      return Timeout.NONE;
+    }
+
+    @Override public void close() {
+    }
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A {@link Tracer} that keeps every span in memory, for tests and for looking at calls in-process.
+ * A call whose context is one of its spans becomes a child of that span; any other call starts a
+ * new trace.
+ */
+public final class InMemoryTracer extends Tracer {
+  /** A span recorded by an {@link InMemoryTracer}. */
+  public static final class RecordedSpan implements Span {
+    /** An event of a {@link RecordedSpan}. */
+    public static final class Event {
+      private final String name;
+      private final long elapsedNanos;
+
+      Event(String name, long elapsedNanos) {
+        this.name = name;
+        this.elapsedNanos = elapsedNanos;
+      }
+
+      public String name() {
+        return name;
+      }
+
+      public long elapsedNanos() {
+        return elapsedNanos;
+      }
+
+      @Override public String toString() {
+        return name;
+      }
+    }
+
+    private final Route route;
+    private final String traceId;
+    private final String spanId;
+    private final String parentId;
+    private final List<Event> events = new ArrayList<Event>();
+    private boolean ended;
+    private Throwable error;
+
+    RecordedSpan(Route route, String traceId, String spanId, String parentId) {
+      this.route = route;
+      this.traceId = traceId;
+      this.spanId = spanId;
+      this.parentId = parentId;
+    }
+
+    /** The name of the generated method. */
+    public String name() {
+      return route.name();
+    }
+
+    /** The relative URL template of the generated method. */
+    public String url() {
+      return route.url();
+    }
+
+    public Route route() {
+      return route;
+    }
+
+    public String traceId() {
+      return traceId;
+    }
+
+    public String spanId() {
+      return spanId;
+    }
+
+    /** The id of the parent span, or null. */
+    public String parentId() {
+      return parentId;
+    }
+
+    @Override public String traceparent() {
+      return Tracer.traceparent(traceId, spanId, true);
+    }
+
+    @Override public String tracestate() {
+      return null;
+    }
+
+    @Override public synchronized void event(String name, long elapsedNanos) {
+      events.add(new Event(name, elapsedNanos));
+    }
+
+    public synchronized List<Event> events() {
+      return new ArrayList<Event>(events);
+    }
+
+    @Override public synchronized void end(Throwable error) {
+      this.ended = true;
+      this.error = error;
+    }
+
+    public synchronized boolean ended() {
+      return ended;
+    }
+
+    /** The error the span ended with, or null. */
+    public synchronized Throwable error() {
+      return error;
+    }
+
+    @Override public String toString() {
+      return route.name() + " " + spanId;
+    }
+  }
+
+  private final Random random = new Random();
+  private final List<RecordedSpan> spans = new ArrayList<RecordedSpan>();
+
+  @Override public Span start(Route route, Object context) {
+    String traceId;
+    String parentId = null;
+    if (context instanceof RecordedSpan) {
+      RecordedSpan parent = (RecordedSpan) context;
+      traceId = parent.traceId;
+      parentId = parent.spanId;
+    } else {
+      traceId = hex(16);
+    }
+    RecordedSpan span = new RecordedSpan(route, traceId, hex(8), parentId);
+    synchronized (this) {
+      spans.add(span);
+    }
+    return span;
+  }
+
+  /** The spans started so far, in order. */
+  public synchronized List<RecordedSpan> spans() {
+    return Collections.unmodifiableList(new ArrayList<RecordedSpan>(spans));
+  }
+
+  public synchronized void clear() {
+    spans.clear();
+  }
+
+  private String hex(int byteCount) {
+    byte[] bytes = new byte[byteCount];
+    synchronized (random) {
+      random.nextBytes(bytes);
+    }
+    char[] chars = new char[byteCount * 2];
+    for (int i = 0; i < byteCount; i++) {
+      chars[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+      chars[2 * i + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+    }
+    return new String(chars);
+  }
+}
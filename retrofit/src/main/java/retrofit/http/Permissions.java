@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.http;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interned, immutable permission sets. Generated services hold one {@code PERMISSIONS_} constant
+ * per distinct set of {@code permissions} of their authenticated methods, made with {@link #of},
+ * so that equal sets are the same instance even across services and an authenticator can key its
+ * tokens by identity.
+ *
+ * @see CachingAuthenticator
+ */
+public final class Permissions {
+  private static final ConcurrentMap<Set<String>, Set<String>> INTERNED =
+      new ConcurrentHashMap<Set<String>, Set<String>>();
+
+  private Permissions() {
+  }
+
+  /** Returns the interned set of {@code permissions}. */
+  public static Set<String> of(String... permissions) {
+    return intern(Arrays.asList(permissions));
+  }
+
+  /**
+   * Returns the interned set equal to {@code permissions}, which is {@code permissions} itself if
+   * it is already interned.
+   */
+  public static Set<String> intern(Collection<String> permissions) {
+    Set<String> set = INTERNED.get(permissions);
+    if (set != null) {
+      return set;
+    }
+    set = Collections.unmodifiableSet(new LinkedHashSet<String>(permissions));
+    Set<String> existing = INTERNED.putIfAbsent(set, set);
+    return existing != null ? existing : set;
+  }
+}
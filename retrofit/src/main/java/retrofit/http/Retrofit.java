@@ -28,6 +28,7 @@ import static java.lang.annotation.ElementType.TYPE;
 
 import java.util.List;
 import java.util.Collection;
+import java.util.concurrent.Executor;
 import rx.functions.*;
 
 /**
@@ -648,6 +649,55 @@ public @interface Retrofit {
   public @interface Streaming {
   }
 
+  /**
+   * Gzip-compresses the request body and sends it with {@code Content-Encoding: gzip}.
+   * &#64;Compress &#64;POST|&#64;PUT, &#64;Compress class
+   * <p>
+   * Bodies shorter than {@link #threshold() threshold} bytes, or whose length is not known up
+   * front, are sent uncompressed.
+   * <pre>
+   * &#64;Compress(threshold = 4096)
+   * &#64;POST("/events")
+   * Observable&lt;Result&gt; upload(&#64;Body List&lt;Event&gt; events);
+   * </pre>
+   */
+  @Documented
+  @Retention(RUNTIME)
+  @Target({METHOD, TYPE})
+  public @interface Compress {
+    /** The minimum body length, in bytes, that is worth compressing. */
+    long threshold() default 1024;
+  }
+
+  /**
+   * Coalesces calls of a single-key {@code Observable} method into one request to a batch
+   * endpoint.
+   * &#64;Batch &#64;GET
+   * <p>
+   * Calls made within {@link #maxDelayMs() maxDelayMs} of each other, up to
+   * {@link #maxSize() maxSize} distinct keys, are sent as one GET to {@link #value() value} with
+   * every key repeated as the {@link #param() param} query parameter. The endpoint must answer
+   * with a JSON array holding one element per key, in request order.
+   * <pre>
+   * &#64;Batch(value = "/users", param = "id")
+   * &#64;GET("/users/{id}")
+   * Observable&lt;User&gt; user(&#64;Path("id") String id); // GET /users?id=1&amp;id=2&amp;id=3
+   * </pre>
+   */
+  @Documented
+  @Retention(RUNTIME)
+  @Target(METHOD)
+  public @interface Batch {
+    /** The batch endpoint, relative to the base url or absolute. */
+    String value();
+    /** The repeated query parameter carrying the keys. Defaults to the key's @Path or @Query name. */
+    String param() default "";
+    /** The most distinct keys sent in one request. */
+    int maxSize() default 50;
+    /** How long the first call of a batch waits for others to join it. */
+    long maxDelayMs() default 10;
+  }
+
   @Retention(RUNTIME)
   @Target({METHOD, TYPE})
   public @interface Authenticated {
@@ -662,6 +712,23 @@ public @interface Retrofit {
     Class<? extends RequestAuthenticator> value() default RequestAuthenticator.class;
   }
 
+  /**
+   * Passes the argument to interceptors and the authenticator as the context of this call only,
+   * instead of the context the service was built with, so that one service instance can be shared
+   * by callers with different contexts.
+   * <pre>
+   * &#64;Authenticated
+   * &#64;GET("/user")
+   * abstract Observable&lt;User&gt; user(@Context Activity activity);
+   * </pre>
+   * The argument is not sent with the request. A method may have one such parameter.
+   */
+  @Documented
+  @Retention(RUNTIME)
+  @Target(PARAMETER)
+  public @interface Context {
+  }
+
   @Retention(RUNTIME)
   @Target(TYPE)
   public @interface OkHttpClient {
@@ -673,10 +740,89 @@ public @interface Retrofit {
     com.squareup.okhttp.OkHttpClient get();
   }
 
+  /**
+   * The protocols the client may negotiate, in order of preference, e.g. {@code "h2"},
+   * {@code "spdy/3.1"}, {@code "http/1.1"}. {@code "http/1.1"} must be one of them.
+   * <pre>
+   * &#64;Protocols({"h2", "http/1.1"})
+   * abstract class GitHub { ... }
+   * </pre>
+   */
+  @Documented
+  @Retention(RUNTIME)
+  @Target(TYPE)
+  public @interface Protocols {
+    String[] value();
+  }
+
+  /**
+   * Sizes the client's connection pool.
+   * <pre>
+   * &#64;ConnectionPool(maxIdleConnections = 10, keepAliveDurationMs = 60000)
+   * abstract class GitHub { ... }
+   * </pre>
+   */
+  @Documented
+  @Retention(RUNTIME)
+  @Target(TYPE)
+  public @interface ConnectionPool {
+    int maxIdleConnections() default 5;
+    long keepAliveDurationMs() default 5 * 60 * 1000;
+  }
+
+  /**
+   * Prepares requests, converts response bodies and calls callbacks on the given executors, each
+   * created once per generated class. A builder may set {@code requestScheduler},
+   * {@code parseScheduler} and {@code callbackScheduler} instead. Unset, requests are prepared on
+   * {@code Schedulers.io()}, and bodies are converted and callbacks called where the response
+   * arrives.
+   * <pre>
+   * &#64;Executors(request = NetworkPool.class, parse = ParsePool.class)
+   * abstract class GitHub { ... }
+   * </pre>
+   */
+  @Documented
+  @Retention(RUNTIME)
+  @Target(TYPE)
+  public @interface Executors {
+    Class<? extends Executor> request() default Executor.class;
+    Class<? extends Executor> parse() default Executor.class;
+    Class<? extends Executor> callback() default Executor.class;
+  }
+
+  /**
+   * Prepares and sends every request on a virtual thread of its own, where the JVM has them. Calls
+   * made on a virtual thread, including blocking methods called from one, run in place with
+   * {@code Call.execute()}. Without virtual threads, as on Android, requests are prepared on
+   * {@code Schedulers.io()}. See {@link retrofit.http.VirtualThreads}.
+   */
+  @Documented
+  @Retention(RUNTIME)
+  @Target(TYPE)
+  public @interface VirtualThreads {
+  }
+
   public interface RequestAuthenticator extends retrofit.RequestInterceptor {
     String authorize(Object context, Collection<String> permissions);
   }
 
+  /**
+   * A request interceptor or authenticator that adds a token from a {@link TokenProvider}. Before
+   * a request is intercepted the generated code waits for {@link #ready} without blocking, and
+   * when the server answers with a 401 it calls {@link #unauthorized} and, if that returns true,
+   * sends the request through the interceptors once more.
+   */
+  public interface TokenInterceptor extends retrofit.RequestInterceptor {
+    /** Emits once a token is cached, fetching one if needed. */
+    rx.Observable<?> ready(Object context);
+
+    /**
+     * Called with a request that the server rejected with a 401, typically to invalidate the token
+     * it carried. Returns whether the request should be sent again.
+     */
+    boolean unauthorized(com.squareup.okhttp.Request request);
+  }
+
   public class SimpleRequestInterceptor implements retrofit.RequestInterceptor {
     @Override public void intercept(retrofit.RequestInterceptor.RequestFacade request) {
     }
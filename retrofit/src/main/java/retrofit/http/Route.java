@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.http;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What the processor knew about one endpoint of a generated service. Each {@code Retrofit_Foo}
+ * class has a {@code ROUTES} table built once when the class is loaded, and an {@code int}
+ * constant per endpoint that indexes it, so metrics, tracing or mocking code can look up an
+ * endpoint without reflection or string keys:
+ * <pre>
+ * Route route = Retrofit_GitHub.ROUTES.get(Retrofit_GitHub.ROUTE_CONTRIBUTOR_LIST);
+ * </pre>
+ */
+public final class Route {
+  /** How the method hands back its result. */
+  public enum Shape {
+    OBSERVABLE, CALLBACK, BLOCKING, FUTURE
+  }
+
+  /** What a parameter of the method is bound to. */
+  public enum Binding {
+    PATH, QUERY, QUERY_MAP, HEADER, FIELD, FIELD_MAP, PART, BODY, CALLBACK, CONTEXT, NONE
+  }
+
+  /** One parameter of the method, in declaration order. */
+  public static final class Param {
+    private final Binding binding;
+    private final String name;
+    private final String key;
+
+    public Param(Binding binding, String name, String key) {
+      this.binding = TypePreconditions.checkNotNull(binding);
+      this.name = TypePreconditions.checkNotNull(name);
+      this.key = TypePreconditions.checkNotNull(key);
+    }
+
+    public Binding binding() {
+      return binding;
+    }
+
+    /** The name of the Java parameter. */
+    public String name() {
+      return name;
+    }
+
+    /** The path placeholder, query parameter, header, field or part name; empty otherwise. */
+    public String key() {
+      return key;
+    }
+
+    @Override public String toString() {
+      return binding + (key.isEmpty() ? "" : "(\"" + key + "\")") + " " + name;
+    }
+  }
+
+  private final int id;
+  private final String name;
+  private final String method;
+  private final String url;
+  private final Shape shape;
+  private final String resultType;
+  private final Class<?> converter;
+  private final boolean authenticated;
+  private final boolean retries;
+  private final List<String> permissions;
+  private final List<Param> params;
+
+  public Route(int id, String name, String method, String url, Shape shape, String resultType,
+      Class<?> converter, boolean authenticated, boolean retries, String[] permissions,
+      Param... params) {
+    this.id = id;
+    this.name = TypePreconditions.checkNotNull(name);
+    this.method = TypePreconditions.checkNotNull(method);
+    this.url = TypePreconditions.checkNotNull(url);
+    this.shape = TypePreconditions.checkNotNull(shape);
+    this.resultType = TypePreconditions.checkNotNull(resultType);
+    this.converter = converter;
+    this.authenticated = authenticated;
+    this.retries = retries;
+    this.permissions = Collections.unmodifiableList(Arrays.asList(permissions.clone()));
+    this.params = Collections.unmodifiableList(Arrays.asList(params.clone()));
+  }
+
+  /**
+   * Returns {@code routes} as an unmodifiable list, checking that each route's id is its index.
+   */
+  public static List<Route> table(Route... routes) {
+    for (int i = 0; i < routes.length; i++) {
+      if (routes[i].id != i) {
+        throw new IllegalArgumentException("Route " + routes[i] + " has id " + routes[i].id
+            + " at index " + i);
+      }
+    }
+    return Collections.unmodifiableList(Arrays.asList(routes.clone()));
+  }
+
+  /** The index of this route in its service's {@code ROUTES}. */
+  public int id() {
+    return id;
+  }
+
+  /** The name of the service method. Overloads share a name but not an id. */
+  public String name() {
+    return name;
+  }
+
+  /** The HTTP method, such as {@code GET}. */
+  public String method() {
+    return method;
+  }
+
+  /** The URL as written in the annotation, placeholders and query string included. */
+  public String url() {
+    return url;
+  }
+
+  public Shape shape() {
+    return shape;
+  }
+
+  /**
+   * The type the method produces: the {@code T} of {@code Observable<T>}, {@code Callback<T>} or a
+   * future, or the return type of a blocking method, written out in full.
+   */
+  public String resultType() {
+    return resultType;
+  }
+
+  /** The method's own {@code @Converter}, else the service's, or null for the default. */
+  public Class<?> converter() {
+    return converter;
+  }
+
+  public boolean authenticated() {
+    return authenticated;
+  }
+
+  /** Whether the service declares {@code @RetryHeaders}, for sending a failed request again. */
+  public boolean retries() {
+    return retries;
+  }
+
+  public List<String> permissions() {
+    return permissions;
+  }
+
+  public List<Param> params() {
+    return params;
+  }
+
+  @Override public String toString() {
+    return method + " " + url + " (" + name + ")";
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.http;
+
+import com.squareup.okhttp.Request;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import rx.Observable;
+import rx.Observer;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
+
+/**
+ * Caches an auth token and fetches a new one when it is missing, expired or invalidated. At most
+ * one fetch runs at a time: callers that need a token while it is in flight subscribe to the same
+ * fetch instead of starting their own, and nobody blocks unless they ask to with
+ * {@link #blockingToken}. A token that is about to expire is still handed out while a new one is
+ * fetched in the background.
+ *
+ * <p>Subclasses only implement {@link #fetch(Object)}. It may block; it runs on the scheduler given
+ * to the constructor, whose clock also decides when tokens expire.
+ *
+ * @see Retrofit.TokenInterceptor
+ */
+public abstract class TokenProvider {
+  /** A token and the time, in the scheduler's milliseconds, at which it stops being valid. */
+  public static final class Token {
+    private final String value;
+    private final long expiresAtMs;
+
+    public Token(String value, long expiresAtMs) {
+      this.value = TypePreconditions.checkNotNull(value);
+      this.expiresAtMs = expiresAtMs;
+    }
+
+    /** Returns a token that never expires on its own, only when invalidated. */
+    public static Token of(String value) {
+      return new Token(value, Long.MAX_VALUE);
+    }
+
+    public String value() {
+      return value;
+    }
+
+    public long expiresAtMs() {
+      return expiresAtMs;
+    }
+  }
+
+  private static final Observer<Token> IGNORE = new Observer<Token>() {
+    @Override public void onCompleted() {
+    }
+    @Override public void onError(Throwable e) {
+      // Callers waiting on the fetch get the error; a background refresh just tries again later.
+    }
+    @Override public void onNext(Token token) {
+    }
+  };
+
+  private static final Func1<Token, String> VALUE = new Func1<Token, String>() {
+    @Override public String call(Token token) {
+      return token.value;
+    }
+  };
+
+  private final Scheduler scheduler;
+  private final long refreshAheadMs;
+  private final Object lock = new Object();
+  private Token current; // Guarded by lock.
+  private Observable<Token> inFlight; // Guarded by lock.
+
+  /** Fetches on the IO scheduler and refreshes tokens a minute before they expire. */
+  protected TokenProvider() {
+    this(Schedulers.io(), 60 * 1000);
+  }
+
+  protected TokenProvider(Scheduler scheduler, long refreshAheadMs) {
+    this.scheduler = TypePreconditions.checkNotNull(scheduler);
+    this.refreshAheadMs = refreshAheadMs;
+  }
+
+  /**
+   * Fetches a new token for the call whose context is {@code context}, see {@link Retrofit.Context};
+   * null if the call has none. Called on the provider's scheduler, never twice at once. Concurrent
+   * calls share one fetch, which gets the context of the call that started it.
+   */
+  protected abstract Token fetch(Object context) throws Exception;
+
+  /** Called after {@code token} was invalidated, for example to tell the issuer. */
+  protected void onInvalidate(String token) {
+  }
+
+  /**
+   * Emits a valid token: the cached one if it has not expired, else the result of the fetch in
+   * flight, starting one if there is none.
+   */
+  public Observable<String> token() {
+    return token(null);
+  }
+
+  /** Like {@link #token()}, fetching with {@code context} if a fetch has to start. */
+  public Observable<String> token(Object context) {
+    Observable<Token> fetching;
+    synchronized (lock) {
+      long now = scheduler.now();
+      if (current != null && now < current.expiresAtMs) {
+        if (now >= current.expiresAtMs - refreshAheadMs) {
+          refresh(context);
+        }
+        return Observable.just(current.value);
+      }
+      fetching = refresh(context);
+    }
+    return fetching.map(VALUE);
+  }
+
+  /** Waits for {@link #token()}, for callers such as interceptors that must return a value. */
+  public String blockingToken() {
+    return blockingToken(null);
+  }
+
+  /** Waits for {@link #token(Object)}. */
+  public String blockingToken(Object context) {
+    return token(context).toBlocking().single();
+  }
+
+  /** Returns the cached token without fetching, or null if there is none. */
+  public String peek() {
+    synchronized (lock) {
+      return current != null ? current.value : null;
+    }
+  }
+
+  /**
+   * Forgets {@code token} if it is still the cached one, so that the next {@link #token()} fetches
+   * a new one. Returns whether it was. A token that a concurrent refresh already replaced is left
+   * alone, so a burst of rejected requests causes one fetch, not one each.
+   */
+  public boolean invalidate(String token) {
+    synchronized (lock) {
+      if (current == null || !current.value.equals(token)) {
+        return false;
+      }
+      current = null;
+    }
+    onInvalidate(token);
+    return true;
+  }
+
+  /** Returns the fetch in flight, starting one if there is none. Called with the lock held. */
+  private Observable<Token> refresh(final Object context) {
+    if (inFlight != null) {
+      return inFlight;
+    }
+    Observable<Token> fetching = Observable.create(new Observable.OnSubscribe<Token>() {
+      @Override public void call(Subscriber<? super Token> subscriber) {
+        Token token;
+        try {
+          token = fetch(context);
+          if (token == null) {
+            throw new NullPointerException("fetch returned null");
+          }
+        } catch (Throwable e) {
+          finish(null);
+          subscriber.onError(e);
+          return;
+        }
+        finish(token);
+        subscriber.onNext(token);
+        subscriber.onCompleted();
+      }
+    }).subscribeOn(scheduler).cache();
+    inFlight = fetching;
+    fetching.subscribe(IGNORE); // Start it now, so later callers join instead of starting another.
+    return fetching;
+  }
+
+  private void finish(Token token) {
+    synchronized (lock) {
+      if (token != null) {
+        current = token;
+      }
+      inFlight = null;
+    }
+  }
+
+  /**
+   * Emits {@code request} once every {@link Retrofit.TokenInterceptor} among {@code interceptors}
+   * has a token ready, so that their {@code intercept} does not have to wait for one. Nulls and
+   * other interceptors are skipped.
+   */
+  public static Observable<Request> whenReady(final Request request, Object context,
+      Object... interceptors) {
+    List<Observable<?>> ready = null;
+    for (Object interceptor : interceptors) {
+      if (interceptor instanceof Retrofit.TokenInterceptor) {
+        if (ready == null) ready = new ArrayList<Observable<?>>(interceptors.length);
+        ready.add(((Retrofit.TokenInterceptor) interceptor).ready(context));
+      }
+    }
+    if (ready == null) {
+      return Observable.just(request);
+    }
+    return Observable.merge(ready).ignoreElements().cast(Request.class)
+        .concatWith(Observable.just(request));
+  }
+
+  /**
+   * Tells every {@link Retrofit.TokenInterceptor} among {@code interceptors} that {@code request}
+   * was answered with a 401, returning whether any of them wants it sent again.
+   */
+  public static boolean unauthorized(Request request, Object... interceptors) {
+    boolean retry = false;
+    for (Object interceptor : interceptors) {
+      if (interceptor instanceof Retrofit.TokenInterceptor) {
+        retry |= ((Retrofit.TokenInterceptor) interceptor).unauthorized(request);
+      }
+    }
+    return retry;
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.http;
+
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.Observable;
+import rx.functions.Action0;
+import rx.functions.Action1;
+
+/**
+ * Opens a span for each call of a generated service. The span is named after the call's
+ * {@link Route}, its W3C {@code traceparent} and {@code tracestate} are sent as headers, and it
+ * records retries, responses served from the cache and the time spent converting bodies as events.
+ * It ends once the response has been converted, or when the call fails or is unsubscribed from.
+ *
+ * <p>Implementations only open spans; the generated code calls the span from whichever thread the
+ * call runs on. {@link #NOOP} is the default and costs a field read per call.
+ *
+ * @see InMemoryTracer
+ */
+public abstract class Tracer {
+  /** The event for a request sent again, after {@code @RetryHeaders} or a 401. */
+  public static final String RETRY = "retry";
+  /** The event for a response served from the HTTP cache without going to the network. */
+  public static final String CACHE_HIT = "cache hit";
+  /** The event for the conversion of a response body; it has the time taken. */
+  public static final String CONVERSION = "conversion";
+
+  /** One call, from the first subscription until it ends. */
+  public interface Span {
+    /** The {@code traceparent} header to send, or null for none. */
+    String traceparent();
+
+    /** The {@code tracestate} header to send, or null for none. */
+    String tracestate();
+
+    /** Records {@code name}, which took {@code elapsedNanos}, or 0 if it has no duration. */
+    void event(String name, long elapsedNanos);
+
+    /**
+     * Ends the span; it is called once. {@code error} is null on success and a
+     * {@link CancellationException} if the call was unsubscribed from before it ended.
+     */
+    void end(Throwable error);
+  }
+
+  /** Opens no spans and sends no headers. */
+  public static final Tracer NOOP = new Tracer() {
+    @Override public Span start(Route route, Object context) {
+      return NOOP_SPAN;
+    }
+
+    @Override public Trace trace(Route route, Object context) {
+      return Trace.NONE;
+    }
+  };
+
+  private static final Span NOOP_SPAN = new Span() {
+    @Override public String traceparent() {
+      return null;
+    }
+
+    @Override public String tracestate() {
+      return null;
+    }
+
+    @Override public void event(String name, long elapsedNanos) {
+    }
+
+    @Override public void end(Throwable error) {
+    }
+  };
+
+  /**
+   * Opens the span for a call of {@code route}. {@code context} is the call's context, see
+   * {@link Retrofit.Context}, and may hold a parent span.
+   */
+  public abstract Span start(Route route, Object context);
+
+  /** Returns the trace of a call, whose span is opened when it is first subscribed to. */
+  public Trace trace(Route route, Object context) {
+    return new Trace(this, route, context);
+  }
+
+  /**
+   * Formats a W3C {@code traceparent} value from a 32 digit trace id and a 16 digit span id, both
+   * lower case hex.
+   */
+  public static String traceparent(String traceId, String spanId, boolean sampled) {
+    return new StringBuilder(55).append("00-").append(traceId).append('-').append(spanId)
+        .append(sampled ? "-01" : "-00").toString();
+  }
+
+  /** The span of one call, as seen by the generated code. */
+  public static final class Trace {
+    static final Trace NONE = new Trace(null, null, null);
+
+    private static final int NEW = 0;
+    private static final int STARTING = 1;
+    private static final int STARTED = 2;
+    private static final int ENDED = 3;
+
+    private final Tracer tracer;
+    private final Route route;
+    private final Object context;
+    private final AtomicInteger state = new AtomicInteger(NEW);
+    private volatile Span span;
+    // The error of an end() that came while the span was starting, for start() to end it with.
+    private volatile Throwable endError;
+
+    Trace(Tracer tracer, Route route, Object context) {
+      this.tracer = tracer;
+      this.route = route;
+      this.context = context;
+    }
+
+    /**
+     * Returns {@code exchange}, opening the span when it is subscribed to and ending it after. The
+     * generated code wraps the converted response, so conversion on a parse scheduler is traced.
+     */
+    public <T> Observable<T> wrap(Observable<T> exchange) {
+      if (tracer == null) return exchange;
+      return exchange.doOnSubscribe(new Action0() {
+        @Override public void call() {
+          start();
+        }
+      }).doOnError(new Action1<Throwable>() {
+        @Override public void call(Throwable e) {
+          end(e);
+        }
+      }).doOnCompleted(new Action0() {
+        @Override public void call() {
+          end(null);
+        }
+      }).doOnUnsubscribe(new Action0() {
+        @Override public void call() {
+          end(new CancellationException());
+        }
+      });
+    }
+
+    /** Returns {@code request} with the span's headers, if it has any. */
+    public Request inject(Request request) {
+      Span span = this.span;
+      if (span == null) return request;
+      String traceparent = span.traceparent();
+      if (traceparent == null) return request;
+      Request.Builder builder = request.newBuilder().header("traceparent", traceparent);
+      String tracestate = span.tracestate();
+      if (tracestate != null) {
+        builder.header("tracestate", tracestate);
+      }
+      return builder.build();
+    }
+
+    /** Records a {@link #CACHE_HIT} if {@code response} did not come from the network. */
+    public void received(Response response) {
+      if (span != null && response.cacheResponse() != null && response.networkResponse() == null) {
+        event(CACHE_HIT, 0);
+      }
+    }
+
+    public void event(String name, long elapsedNanos) {
+      Span span = this.span;
+      if (span != null && state.get() == STARTED) {
+        span.event(name, elapsedNanos);
+      }
+    }
+
+    /**
+     * Opens the span, unless it has been opened already. The span is published before the state
+     * says STARTED; an end() that came while it was opening is applied here instead.
+     */
+    public void start() {
+      if (tracer != null && state.compareAndSet(NEW, STARTING)) {
+        Span span = tracer.start(route, context);
+        this.span = span;
+        if (!state.compareAndSet(STARTING, STARTED)) {
+          span.end(endError);
+        }
+      }
+    }
+
+    /** Ends the span, unless it has ended already. */
+    public void end(Throwable error) {
+      while (true) {
+        int current = state.get();
+        if (current == STARTED) {
+          if (state.compareAndSet(STARTED, ENDED)) {
+            span.end(error);
+            return;
+          }
+        } else if (current == STARTING) {
+          endError = error;
+          if (state.compareAndSet(STARTING, ENDED)) return;
+        } else {
+          return;
+        }
+      }
+    }
+  }
+}
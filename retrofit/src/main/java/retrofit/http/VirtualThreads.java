@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.http;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+
+/**
+ * Runs calls on virtual threads where the JVM has them (Java 21 and later), found by reflection
+ * since this library is built for Java 6. On a virtual thread a generated service executes its
+ * calls in place with {@code Call.execute()} instead of handing them to OkHttp's dispatcher, so a
+ * blocked call parks the virtual thread rather than holding a platform thread.
+ *
+ * <p>Elsewhere, including on Android, nothing changes: {@link #scheduler()} is
+ * {@code Schedulers.io()} and calls are enqueued as before.
+ *
+ * @see Retrofit.VirtualThreads
+ */
+public final class VirtualThreads {
+  private static final Method IS_VIRTUAL = isVirtualMethod();
+  private static final Executor EXECUTOR = newPerTaskExecutor();
+  private static final Scheduler SCHEDULER =
+      EXECUTOR != null ? Schedulers.from(EXECUTOR) : Schedulers.io();
+
+  private VirtualThreads() {
+  }
+
+  /** Whether this JVM has virtual threads. */
+  public static boolean available() {
+    return EXECUTOR != null;
+  }
+
+  /** A scheduler that starts a virtual thread per task, or {@code Schedulers.io()}. */
+  public static Scheduler scheduler() {
+    return SCHEDULER;
+  }
+
+  /** An executor that starts a virtual thread per task, or null without virtual threads. */
+  public static Executor executor() {
+    return EXECUTOR;
+  }
+
+  /** Whether {@code thread} is a virtual thread. */
+  public static boolean isVirtual(Thread thread) {
+    if (IS_VIRTUAL == null) return false;
+    try {
+      return (Boolean) IS_VIRTUAL.invoke(thread);
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns {@code scheduler}, or the immediate scheduler when the caller is already on a virtual
+   * thread, where blocking costs no platform thread.
+   */
+  public static Scheduler unlessVirtual(Scheduler scheduler) {
+    return isVirtual(Thread.currentThread()) ? Schedulers.immediate() : scheduler;
+  }
+
+  private static Method isVirtualMethod() {
+    try {
+      return Thread.class.getMethod("isVirtual");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  private static Executor newPerTaskExecutor() {
+    if (IS_VIRTUAL == null) return null;
+    try {
+      Method factory = java.util.concurrent.Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor");
+      return (Executor) factory.invoke(null);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.http;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.SocketPolicy;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+
+public class AsyncCallTest {
+    static final Route ROUTE = new Route(0, "user", "GET", "/user", Route.Shape.FUTURE,
+        "String", null, false, false, new String[0]);
+
+    final MockWebServer server = new MockWebServer();
+    final OkHttpClient client = new OkHttpClient();
+    final InMemoryTracer tracer = new InMemoryTracer();
+
+    @Before
+    public void setUp() throws Exception {
+        server.start();
+        // Leave retrying to the call, as the generated code does not rely on OkHttp's own retry.
+        client.setRetryOnConnectionFailure(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void testConvertsResponseOnce() throws Exception {
+        server.enqueue(new MockResponse().setBody("octocat"));
+        StringCall call = new StringCall(false);
+        call.start(request());
+
+        assertEquals("octocat", call.await());
+        assertNull(call.error);
+        assertEquals(1, server.getRequestCount());
+        assertEquals(tracer.spans().get(0).traceparent(),
+            server.takeRequest().getHeader("traceparent"));
+        assertTrue(tracer.spans().get(0).ended());
+    }
+
+    @Test
+    public void testRetriesNetworkFailureOnce() throws Exception {
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST));
+        server.enqueue(new MockResponse().setBody("octocat"));
+        StringCall call = new StringCall(true);
+        call.start(request());
+
+        assertEquals("octocat", call.await());
+        assertNull(server.takeRequest().getHeader("X-Retry"));
+        assertEquals("1", server.takeRequest().getHeader("X-Retry"));
+    }
+
+    @Test
+    public void testFailsAfterRetry() throws Exception {
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST));
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST));
+        StringCall call = new StringCall(true);
+        call.start(request());
+
+        assertNull(call.await());
+        assertTrue(call.error instanceof RequestException);
+        assertEquals(call.error, tracer.spans().get(0).error());
+    }
+
+    @Test
+    public void testCancelBeforeResponse() throws Exception {
+        server.enqueue(new MockResponse().setBody("octocat").setBodyDelay(1, TimeUnit.SECONDS));
+        StringCall call = new StringCall(false);
+        call.start(request());
+        call.cancel();
+
+        assertNull(call.await());
+        assertTrue(tracer.spans().get(0).error() instanceof CancellationException);
+    }
+
+    @Test
+    public void testPreparesOnPrepareScheduler() throws Exception {
+        server.enqueue(new MockResponse().setBody("octocat"));
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final Thread[] preparedOn = new Thread[1];
+        StringCall call = new StringCall(false) {
+            @Override protected Request prepare(Request request) {
+                preparedOn[0] = Thread.currentThread();
+                return request;
+            }
+
+            @Override protected Scheduler prepareScheduler() {
+                return Schedulers.from(executor);
+            }
+        };
+        try {
+            call.start(request());
+
+            assertEquals("octocat", call.await());
+            assertNotSame(Thread.currentThread(), preparedOn[0]);
+            assertSame(preparedOn[0], executor.submit(new Callable<Thread>() {
+                @Override public Thread call() {
+                    return Thread.currentThread();
+                }
+            }).get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private Request request() {
+        return new Request.Builder().url(server.getUrl("/user")).build();
+    }
+
+    class StringCall extends AsyncCall<String> {
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean retry;
+        String value;
+        Throwable error;
+
+        StringCall(boolean retry) {
+            super(client, tracer.trace(ROUTE, null), null, null, null);
+            this.retry = retry;
+        }
+
+        @Override protected Request prepare(Request request) {
+            return request;
+        }
+
+        @Override protected Request retry(Request failed) {
+            return retry ? failed.newBuilder().header("X-Retry", "1").build() : null;
+        }
+
+        @Override protected String convert(Response response) throws Exception {
+            return response.body().string();
+        }
+
+        @Override protected void success(String value) {
+            this.value = value;
+            done.countDown();
+        }
+
+        @Override protected void failure(Throwable error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        String await() throws InterruptedException {
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            return value;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscription;
+import rx.functions.Action0;
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+
+public class BatcherTest {
+    final List<List<Integer>> loads = new ArrayList<List<Integer>>();
+    final TestScheduler scheduler = new TestScheduler();
+
+    final Batcher.Loader<Integer, String> loader = new Batcher.Loader<Integer, String>() {
+        @Override public Observable<List<String>> load(List<Integer> keys) {
+            loads.add(keys);
+            List<String> values = new ArrayList<String>();
+            for (Integer key : keys) {
+                values.add("user" + key);
+            }
+            return Observable.just(values);
+        }
+    };
+
+    @Test
+    public void testCallsWithinWindowShareOneLoad() {
+        Batcher<Integer, String> batcher = new Batcher<Integer, String>(loader, 10, 5, scheduler);
+        TestSubscriber<String> a = new TestSubscriber<String>();
+        TestSubscriber<String> b = new TestSubscriber<String>();
+        TestSubscriber<String> c = new TestSubscriber<String>();
+        batcher.get(1).subscribe(a);
+        batcher.get(2).subscribe(b);
+        batcher.get(1).subscribe(c);
+        assertTrue(loads.isEmpty());
+
+        scheduler.advanceTimeBy(5, TimeUnit.MILLISECONDS);
+
+        assertEquals(Arrays.asList(Arrays.asList(1, 2)), loads);
+        a.assertReceivedOnNext(Arrays.asList("user1"));
+        b.assertReceivedOnNext(Arrays.asList("user2"));
+        c.assertReceivedOnNext(Arrays.asList("user1"));
+        assertEquals(1, c.getOnCompletedEvents().size());
+    }
+
+    @Test
+    public void testFullBatchFlushesImmediately() {
+        Batcher<Integer, String> batcher = new Batcher<Integer, String>(loader, 2, 1000, scheduler);
+        TestSubscriber<String> a = new TestSubscriber<String>();
+        TestSubscriber<String> b = new TestSubscriber<String>();
+        TestSubscriber<String> c = new TestSubscriber<String>();
+        batcher.get(1).subscribe(a);
+        batcher.get(2).subscribe(b);
+        batcher.get(3).subscribe(c);
+
+        assertEquals(Arrays.asList(Arrays.asList(1, 2)), loads);
+        b.assertReceivedOnNext(Arrays.asList("user2"));
+        assertTrue(c.getOnNextEvents().isEmpty());
+
+        scheduler.advanceTimeBy(1000, TimeUnit.MILLISECONDS);
+
+        assertEquals(Arrays.asList(Arrays.asList(1, 2), Arrays.asList(3)), loads);
+        c.assertReceivedOnNext(Arrays.asList("user3"));
+    }
+
+    @Test
+    public void testTimerOfFullBatchDoesNotFlushNextBatch() {
+        Batcher<Integer, String> batcher = new Batcher<Integer, String>(loader, 2, 10, scheduler);
+        batcher.get(1).subscribe(new TestSubscriber<String>());
+        scheduler.advanceTimeBy(5, TimeUnit.MILLISECONDS);
+        batcher.get(2).subscribe(new TestSubscriber<String>());
+        TestSubscriber<String> c = new TestSubscriber<String>();
+        batcher.get(3).subscribe(c);
+
+        // The first batch's timer fires here, 5ms into the second batch's window.
+        scheduler.advanceTimeBy(9, TimeUnit.MILLISECONDS);
+
+        assertEquals(Arrays.asList(Arrays.asList(1, 2)), loads);
+        assertTrue(c.getOnNextEvents().isEmpty());
+
+        scheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS);
+
+        assertEquals(Arrays.asList(Arrays.asList(1, 2), Arrays.asList(3)), loads);
+        c.assertReceivedOnNext(Arrays.asList("user3"));
+    }
+
+    @Test
+    public void testTimersAreReleased() {
+        final int[] live = new int[1];
+        Scheduler counting = new Scheduler() {
+            @Override public Worker createWorker() {
+                final Worker worker = scheduler.createWorker();
+                live[0]++;
+                return new Worker() {
+                    @Override public Subscription schedule(Action0 action) {
+                        return worker.schedule(action);
+                    }
+                    @Override public Subscription schedule(Action0 action, long delay, TimeUnit unit) {
+                        return worker.schedule(action, delay, unit);
+                    }
+                    @Override public void unsubscribe() {
+                        if (!worker.isUnsubscribed()) live[0]--;
+                        worker.unsubscribe();
+                    }
+                    @Override public boolean isUnsubscribed() {
+                        return worker.isUnsubscribed();
+                    }
+                };
+            }
+        };
+        Batcher<Integer, String> batcher = new Batcher<Integer, String>(loader, 2, 10, counting);
+        batcher.get(1).subscribe(new TestSubscriber<String>());
+        assertEquals(1, live[0]);
+        batcher.get(2).subscribe(new TestSubscriber<String>());
+        assertEquals(0, live[0]);
+
+        batcher.get(3).subscribe(new TestSubscriber<String>());
+        assertEquals(1, live[0]);
+        scheduler.advanceTimeBy(10, TimeUnit.MILLISECONDS);
+        assertEquals(0, live[0]);
+        assertEquals(Arrays.asList(Arrays.asList(1, 2), Arrays.asList(3)), loads);
+    }
+
+    @Test
+    public void testShortResponseFailsMissingKeys() {
+        Batcher<Integer, String> batcher = new Batcher<Integer, String>(new Batcher.Loader<Integer, String>() {
+            @Override public Observable<List<String>> load(List<Integer> keys) {
+                return Observable.just(Arrays.asList("user1"));
+            }
+        }, 10, 5, scheduler);
+        TestSubscriber<String> a = new TestSubscriber<String>();
+        TestSubscriber<String> b = new TestSubscriber<String>();
+        batcher.get(1).subscribe(a);
+        batcher.get(2).subscribe(b);
+
+        scheduler.advanceTimeBy(5, TimeUnit.MILLISECONDS);
+
+        a.assertReceivedOnNext(Arrays.asList("user1"));
+        assertEquals(1, b.getOnErrorEvents().size());
+    }
+
+    @Test
+    public void testLoadErrorReachesEveryCaller() {
+        final RuntimeException boom = new RuntimeException("boom");
+        Batcher<Integer, String> batcher = new Batcher<Integer, String>(new Batcher.Loader<Integer, String>() {
+            @Override public Observable<List<String>> load(List<Integer> keys) {
+                return Observable.error(boom);
+            }
+        }, 10, 5, scheduler);
+        TestSubscriber<String> a = new TestSubscriber<String>();
+        TestSubscriber<String> b = new TestSubscriber<String>();
+        batcher.get(1).subscribe(a);
+        batcher.get(2).subscribe(b);
+
+        scheduler.advanceTimeBy(5, TimeUnit.MILLISECONDS);
+
+        assertEquals(Arrays.asList(boom), a.getOnErrorEvents());
+        assertEquals(Arrays.asList(boom), b.getOnErrorEvents());
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+public class CachingAuthenticatorTest {
+    final List<Set<String>> fetched = new ArrayList<Set<String>>();
+
+    final CachingAuthenticator authenticator = new CachingAuthenticator() {
+        @Override protected String fetchToken(Object context, Set<String> permissions) {
+            fetched.add(permissions);
+            return "token" + fetched.size();
+        }
+
+        @Override public void intercept(String token, RequestFacade request) {
+            request.addHeader("Authorization", token);
+        }
+    };
+
+    @Test
+    public void testPermissionsAreInterned() {
+        Set<String> set = Permissions.of("repo", "user");
+        assertSame(set, Permissions.of("user", "repo", "user"));
+        assertSame(set, Permissions.intern(Arrays.asList("user", "repo")));
+        assertSame(set, Permissions.intern(set));
+        assertEquals(2, set.size());
+    }
+
+    @Test
+    public void testOneFetchPerPermissionSet() {
+        Set<String> user = Permissions.of("user");
+        assertEquals("token1", authenticator.authorize(null, user));
+        assertEquals("token1", authenticator.authorize(null, user));
+        assertEquals("token1", authenticator.authorize(null, Arrays.asList("user")));
+        assertEquals("token2", authenticator.authorize(null, Permissions.of("user", "repo")));
+        assertEquals(2, fetched.size());
+        assertSame(user, fetched.get(0));
+    }
+
+    @Test
+    public void testInvalidate() {
+        Set<String> user = Permissions.of("user");
+        authenticator.authorize(null, user);
+        assertTrue(authenticator.invalidate("token1"));
+        assertFalse(authenticator.invalidate("token1"));
+        assertEquals("token2", authenticator.authorize(null, user));
+    }
+
+    @Test(timeout = 5000)
+    public void testInstancesDoNotShareLocks() throws Exception {
+        final Set<String> user = Permissions.of("user");
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CachingAuthenticator blocked = new CachingAuthenticator() {
+            @Override protected String fetchToken(Object context, Set<String> permissions) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "blocked";
+            }
+
+            @Override public void intercept(String token, RequestFacade request) {
+            }
+        };
+        Thread thread = new Thread(new Runnable() {
+            @Override public void run() {
+                blocked.authorize(null, user);
+            }
+        });
+        thread.start();
+        entered.await();
+        try {
+            assertEquals("token1", authenticator.authorize(null, user));
+        } finally {
+            release.countDown();
+        }
+        thread.join();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.http;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+public class ConnectionStatsTest {
+    final MockWebServer server = new MockWebServer();
+    final ConnectionStats stats = new ConnectionStats();
+    final OkHttpClient client = new OkHttpClient();
+
+    @Before
+    public void setUp() throws Exception {
+        server.start();
+        client.networkInterceptors().add(stats);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void testKeepAliveReusesConnection() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            server.enqueue(new MockResponse().setBody("ok"));
+        }
+        for (int i = 0; i < 3; i++) {
+            get();
+        }
+
+        ConnectionStats.Host host = stats.get(server.getHostName());
+        assertEquals(3, host.requestCount());
+        assertEquals(1, host.connectionCount());
+        assertEquals(0, host.multiplexedRequestCount());
+        assertEquals(2.0 / 3, host.reuseRatio(), 0.001);
+        assertEquals(3.0, host.streamsPerConnection(), 0.001);
+    }
+
+    @Test
+    public void testClosedConnectionIsNotReused() throws Exception {
+        server.enqueue(new MockResponse().setBody("ok").addHeader("Connection", "close"));
+        server.enqueue(new MockResponse().setBody("ok"));
+        get();
+        get();
+
+        ConnectionStats.Host host = stats.snapshot().get(server.getHostName());
+        assertEquals(2, host.requestCount());
+        assertEquals(2, host.connectionCount());
+        assertEquals(0.0, host.reuseRatio(), 0.001);
+    }
+
+    private void get() throws Exception {
+        Request request = new Request.Builder().url(server.getUrl("/")).build();
+        assertEquals("ok", client.newCall(request).execute().body().string());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.URLEncoder;
+
+import okio.Buffer;
+
+public class FormBodyTest {
+    @Test
+    public void testEncodesLikeUrlEncoder() throws Exception {
+        String[] values = {
+            "plain", "a b+c&d=e", "caf\u00e9", "\u20ac100", "\ud83d\ude00", "lone \ud83d", "~!*'()", ""
+        };
+        FormBody.Builder builder = new FormBody.Builder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            builder.add("k" + i + " \u00e9", values[i]);
+            if (i > 0) expected.append('&');
+            expected.append(URLEncoder.encode("k" + i + " \u00e9", "UTF-8")).append('=')
+                .append(URLEncoder.encode(values[i], "UTF-8"));
+        }
+        FormBody body = builder.build();
+
+        Buffer wire = new Buffer();
+        body.writeTo(wire);
+        assertEquals(expected.toString(), wire.readUtf8());
+        assertEquals(expected.length(), body.contentLength());
+        assertEquals("application/x-www-form-urlencoded", body.contentType().toString());
+    }
+
+    @Test
+    public void testManyFieldsAndNullValues() throws Exception {
+        FormBody.Builder builder = new FormBody.Builder();
+        for (int i = 0; i < 5000; i++) {
+            builder.add("field", i % 2 == 0 ? String.valueOf(i) : null);
+        }
+        FormBody body = builder.build();
+        assertEquals(2500, body.size());
+        assertEquals("4998", body.value(2499));
+
+        Buffer wire = new Buffer();
+        body.writeTo(wire);
+        assertEquals(body.contentLength(), wire.size());
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        FormBody body = new FormBody.Builder().build();
+        Buffer wire = new Buffer();
+        body.writeTo(wire);
+        assertEquals(0, body.contentLength());
+        assertEquals(0, wire.size());
+    }
+}
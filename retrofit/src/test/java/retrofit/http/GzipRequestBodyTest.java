@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.RequestBody;
+
+import okio.Buffer;
+import okio.GzipSource;
+import okio.Okio;
+
+public class GzipRequestBodyTest {
+    static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    @Test
+    public void testSmallBodyIsNotCompressed() {
+        RequestBody body = RequestBody.create(JSON, "{}");
+        assertSame(body, GzipRequestBody.gzip(body, 1024));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < 1000; i++) {
+            if (i > 0) sb.append(',');
+            sb.append("{\"id\":").append(i).append(",\"name\":\"contributor\"}");
+        }
+        String json = sb.append(']').toString();
+        RequestBody body = RequestBody.create(JSON, json);
+
+        RequestBody gzipBody = GzipRequestBody.gzip(body, 1024);
+        assertTrue(gzipBody instanceof GzipRequestBody);
+        assertEquals(JSON, gzipBody.contentType());
+        assertEquals(-1, gzipBody.contentLength());
+
+        Buffer wire = new Buffer();
+        gzipBody.writeTo(wire);
+        assertTrue(wire.size() < json.length() / 4);
+
+        String decoded = Okio.buffer(new GzipSource(wire)).readUtf8();
+        assertEquals(json, decoded);
+    }
+}
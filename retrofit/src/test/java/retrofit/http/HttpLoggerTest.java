@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import retrofit.RestAdapter.LogLevel;
+
+public class HttpLoggerTest {
+    static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    final List<String> lines = new ArrayList<String>();
+    final List<HttpLogger.Event> events = new ArrayList<HttpLogger.Event>();
+    final HttpLogger.Log log = new HttpLogger.Log() {
+        @Override public void log(String message) {
+            lines.add(message);
+        }
+    };
+    final HttpLogger.Listener listener = new HttpLogger.Listener() {
+        @Override public void onEvent(HttpLogger.Event event) {
+            events.add(event);
+        }
+    };
+
+    HttpLogger logger(LogLevel level) {
+        return new HttpLogger(level, log).listener(listener);
+    }
+
+    Request request(String body) {
+        return new Request.Builder()
+            .url("https://example.com/users")
+            .header("Authorization", "token secret")
+            .header("Accept", "application/json")
+            .post(RequestBody.create(JSON, body))
+            .build();
+    }
+
+    Response response(Request request, String body) {
+        return new Response.Builder()
+            .request(request)
+            .protocol(Protocol.HTTP_1_1)
+            .code(200)
+            .header("Set-Cookie", "session=1")
+            .body(ResponseBody.create(JSON, body))
+            .build();
+    }
+
+    @Test
+    public void testDisabledDoesNothing() throws IOException {
+        HttpLogger logger = logger(LogLevel.NONE);
+        assertFalse(logger.enabled());
+        Request request = request("{}");
+        Response response = response(request, "{}");
+        assertSame(request, logger.logRequest(request, null));
+        assertSame(response, logger.logResponse(response, 0));
+        logger.logError("GET", "https://example.com/", new IOException());
+        assertTrue(lines.isEmpty());
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void testRedactsHeaders() throws IOException {
+        HttpLogger logger = logger(LogLevel.HEADERS);
+        Request request = request("{}");
+        logger.logRequest(request, null);
+        logger.logResponse(response(request, "{}"), 0);
+
+        assertEquals("---> HTTP POST https://example.com/users", lines.get(0));
+        assertTrue(lines.contains("Authorization: \u2588\u2588"));
+        assertTrue(lines.contains("Accept: application/json"));
+        assertTrue(lines.contains("Set-Cookie: \u2588\u2588"));
+        assertFalse(lines.toString().contains("secret"));
+        assertEquals("\u2588\u2588", events.get(0).headers().get("Authorization"));
+        assertNull(events.get(0).body());
+
+        lines.clear();
+        logger.redact("Accept");
+        logger.logRequest(request, null);
+        assertTrue(lines.contains("Authorization: token secret"));
+        assertTrue(lines.contains("Accept: \u2588\u2588"));
+    }
+
+    @Test
+    public void testTruncatesBodies() throws IOException {
+        HttpLogger logger = logger(LogLevel.FULL).maxBodyBytes(4);
+        Request request = request("{\"id\":1}");
+        logger.logRequest(request, null);
+        assertEquals("{\"id... (4 of 8 logged)", events.get(0).body());
+        assertEquals(8, events.get(0).contentLength());
+
+        logger.logRequest(request, "[1, 2]");
+        assertEquals("[1, ... (4 of 6 logged)", events.get(1).body());
+
+        logger.logRequest(request, "[]");
+        assertEquals("[]", events.get(2).body());
+    }
+
+    @Test
+    public void testSkipsEncodedBodies() throws IOException {
+        HttpLogger logger = logger(LogLevel.FULL);
+        RequestBody form = RequestBody.create(
+            MediaType.parse("application/x-www-form-urlencoded"), "login=octocat");
+        Request request = new Request.Builder()
+            .url("https://example.com/users")
+            .header("Content-Encoding", "gzip")
+            .post(GzipRequestBody.gzip(form, 0))
+            .build();
+        logger.logRequest(request, null);
+        assertNull(events.get(0).body());
+    }
+
+    @Test
+    public void testSkipsBodiesWithoutContentType() throws IOException {
+        HttpLogger logger = logger(LogLevel.FULL);
+        byte[] png = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+        Request request = new Request.Builder()
+            .url("https://example.com/avatar")
+            .post(RequestBody.create(null, png))
+            .build();
+        logger.logRequest(request, null);
+        Response response = new Response.Builder()
+            .request(request)
+            .protocol(Protocol.HTTP_1_1)
+            .code(200)
+            .body(ResponseBody.create(null, png))
+            .build();
+        logger.logResponse(response, 0);
+
+        assertNull(events.get(0).body());
+        assertEquals(8, events.get(0).contentLength());
+        assertNull(events.get(1).body());
+    }
+
+    @Test
+    public void testResponseIsReplacedAndTimed() throws IOException {
+        HttpLogger logger = logger(LogLevel.FULL).maxBodyBytes(4);
+        Response response = response(request("{}"), "{\"id\":1}");
+        Response logged = logger.logResponse(response, 12000000L);
+
+        assertNotSame(response, logged);
+        assertEquals("{\"id\":1}", logged.body().string());
+        HttpLogger.Event event = events.get(0);
+        assertEquals(HttpLogger.Event.Kind.RESPONSE, event.kind());
+        assertEquals(200, event.code());
+        assertEquals(12, event.elapsedMs());
+        assertEquals(8, event.contentLength());
+        assertEquals("{\"id... (4 of 8 logged)", event.body());
+        assertEquals("<--- HTTP 200 https://example.com/users (12ms)", lines.get(0));
+        assertEquals("<--- END HTTP (8-byte body)", lines.get(lines.size() - 1));
+    }
+
+    @Test
+    public void testBasicLogsOneLineAndErrors() throws IOException {
+        HttpLogger logger = logger(LogLevel.BASIC);
+        logger.logRequest(request("{}"), null);
+        assertEquals(1, lines.size());
+
+        IOException error = new IOException("offline");
+        logger.logError("GET", "https://example.com/", error);
+        assertEquals(HttpLogger.Event.Kind.ERROR, events.get(1).kind());
+        assertSame(error, events.get(1).error());
+        assertEquals("---- ERROR https://example.com/", lines.get(1));
+        assertEquals("---- END ERROR", lines.get(lines.size() - 1));
+    }
+}
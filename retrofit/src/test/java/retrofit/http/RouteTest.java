@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+public class RouteTest {
+    static final int ROUTE_USER = 0;
+    static final int ROUTE_REPOS = 1;
+
+    static Route user(int id) {
+        return new Route(id, "user", "GET", "/users/{id}", Route.Shape.OBSERVABLE,
+                "java.lang.String", null, true, false, new String[] { "INTERNET" },
+                new Route.Param(Route.Binding.PATH, "id", "id"));
+    }
+
+    @Test
+    public void testTableIsIndexedById() {
+        Route user = user(ROUTE_USER);
+        Route repos = new Route(ROUTE_REPOS, "repos", "GET", "/users/{id}/repos?sort=updated",
+                Route.Shape.CALLBACK, "java.util.List<java.lang.String>", null, false, true,
+                new String[0],
+                new Route.Param(Route.Binding.PATH, "id", "id"),
+                new Route.Param(Route.Binding.CALLBACK, "callback", ""));
+        List<Route> routes = Route.table(user, repos);
+
+        assertSame(repos, routes.get(ROUTE_REPOS));
+        assertEquals("GET /users/{id}/repos?sort=updated (repos)", repos.toString());
+        assertEquals("[PATH(\"id\") id, CALLBACK callback]", repos.params().toString());
+        assertEquals("[INTERNET]", routes.get(ROUTE_USER).permissions().toString());
+    }
+
+    @Test
+    public void testTableRejectsIdsOutOfOrder() {
+        try {
+            Route.table(user(1));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testTableIsUnmodifiable() {
+        Route.table(user(0)).set(0, user(0));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.squareup.okhttp.Request;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.Observable;
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+
+public class TokenProviderTest {
+    final TestScheduler scheduler = new TestScheduler();
+    final AtomicInteger fetches = new AtomicInteger();
+    final Counting provider = new Counting();
+    final StringBuilder invalidated = new StringBuilder();
+    long lifetimeMs = Long.MAX_VALUE;
+    boolean fail;
+
+    class Counting extends TokenProvider {
+        Counting() {
+            super(scheduler, 1000);
+        }
+
+        @Override protected Token fetch(Object context) throws Exception {
+            int n = fetches.incrementAndGet();
+            if (fail) throw new IOException("offline");
+            long expiresAt = lifetimeMs == Long.MAX_VALUE ? Long.MAX_VALUE : scheduler.now() + lifetimeMs;
+            return new Token("t" + n, expiresAt);
+        }
+
+        @Override protected void onInvalidate(String token) {
+            invalidated.append(token);
+        }
+    }
+
+    TestSubscriber<String> subscribe() {
+        TestSubscriber<String> subscriber = new TestSubscriber<String>();
+        provider.token().subscribe(subscriber);
+        return subscriber;
+    }
+
+    @Test
+    public void testConcurrentCallersShareOneFetch() {
+        TestSubscriber<String> a = subscribe();
+        TestSubscriber<String> b = subscribe();
+        TestSubscriber<String> c = subscribe();
+        assertEquals(0, fetches.get());
+        assertEquals(0, a.getOnNextEvents().size());
+
+        scheduler.triggerActions();
+        assertEquals(1, fetches.get());
+        for (TestSubscriber<String> subscriber : Arrays.asList(a, b, c)) {
+            subscriber.assertReceivedOnNext(Arrays.asList("t1"));
+            subscriber.assertTerminalEvent();
+        }
+
+        subscribe().assertReceivedOnNext(Arrays.asList("t1"));
+        assertEquals(1, fetches.get());
+    }
+
+    @Test
+    public void testInvalidateOnlyTheCachedToken() {
+        subscribe();
+        scheduler.triggerActions();
+        assertEquals("t1", provider.peek());
+
+        assertTrue(provider.invalidate("t1"));
+        assertFalse(provider.invalidate("t1"));
+        assertNull(provider.peek());
+        assertEquals("t1", invalidated.toString());
+
+        TestSubscriber<String> subscriber = subscribe();
+        scheduler.triggerActions();
+        subscriber.assertReceivedOnNext(Arrays.asList("t2"));
+        // A late 401 for the old token must not throw away the new one.
+        assertFalse(provider.invalidate("t1"));
+        assertEquals("t2", provider.peek());
+    }
+
+    @Test
+    public void testRefreshesAheadOfExpiry() {
+        lifetimeMs = 10000;
+        subscribe();
+        scheduler.triggerActions();
+
+        scheduler.advanceTimeTo(9500, TimeUnit.MILLISECONDS);
+        subscribe().assertReceivedOnNext(Arrays.asList("t1"));
+        scheduler.triggerActions();
+        assertEquals(2, fetches.get());
+        subscribe().assertReceivedOnNext(Arrays.asList("t2"));
+
+        scheduler.advanceTimeTo(30000, TimeUnit.MILLISECONDS);
+        TestSubscriber<String> expired = subscribe();
+        assertEquals(0, expired.getOnNextEvents().size());
+        scheduler.triggerActions();
+        expired.assertReceivedOnNext(Arrays.asList("t3"));
+    }
+
+    @Test
+    public void testFailedFetchIsRetriedByTheNextCaller() {
+        fail = true;
+        TestSubscriber<String> failed = subscribe();
+        scheduler.triggerActions();
+        assertEquals(1, failed.getOnErrorEvents().size());
+
+        fail = false;
+        TestSubscriber<String> subscriber = subscribe();
+        scheduler.triggerActions();
+        subscriber.assertReceivedOnNext(Arrays.asList("t2"));
+    }
+
+    static class FakeInterceptor implements Retrofit.TokenInterceptor {
+        int unauthorized;
+
+        @Override public void intercept(RequestFacade request) {
+        }
+
+        @Override public Observable<?> ready(Object context) {
+            return Observable.just("token");
+        }
+
+        @Override public boolean unauthorized(Request request) {
+            unauthorized++;
+            return true;
+        }
+    }
+
+    @Test
+    public void testFetchGetsContextOfCallThatStartedIt() {
+        final StringBuilder contexts = new StringBuilder();
+        TokenProvider provider = new TokenProvider(scheduler, 1000) {
+            @Override protected Token fetch(Object context) {
+                contexts.append(context);
+                return Token.of("t-" + context);
+            }
+        };
+        TestSubscriber<String> a = new TestSubscriber<String>();
+        TestSubscriber<String> b = new TestSubscriber<String>();
+        provider.token("first").subscribe(a);
+        provider.token("second").subscribe(b);
+        scheduler.triggerActions();
+
+        assertEquals("first", contexts.toString());
+        a.assertReceivedOnNext(Arrays.asList("t-first"));
+        b.assertReceivedOnNext(Arrays.asList("t-first"));
+    }
+
+    @Test
+    public void testHelpersSkipOtherInterceptors() {
+        Request request = new Request.Builder().url("https://example.com/").build();
+        FakeInterceptor tokens = new FakeInterceptor();
+
+        assertSame(request, TokenProvider.whenReady(request, null, retrofit.RequestInterceptor.NONE, null)
+            .toBlocking().single());
+        assertSame(request, TokenProvider.whenReady(request, null, retrofit.RequestInterceptor.NONE, tokens)
+            .toBlocking().single());
+
+        assertFalse(TokenProvider.unauthorized(request, retrofit.RequestInterceptor.NONE, null));
+        assertTrue(TokenProvider.unauthorized(request, retrofit.RequestInterceptor.NONE, tokens));
+        assertEquals(1, tokens.unauthorized);
+    }
+}
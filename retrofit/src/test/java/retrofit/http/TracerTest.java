@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.squareup.okhttp.Request;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+
+import rx.Observable;
+import rx.Subscription;
+import rx.observers.TestSubscriber;
+import rx.subjects.PublishSubject;
+
+public class TracerTest {
+    static final Route ROUTE = new Route(0, "user", "GET", "/users/{id}", Route.Shape.OBSERVABLE,
+        "User", null, false, false, new String[0]);
+
+    final InMemoryTracer tracer = new InMemoryTracer();
+    final Request request = new Request.Builder().url("https://example.com/users/1").build();
+
+    @Test
+    public void testSpanPerCallWithTraceparent() {
+        Tracer.Trace trace = tracer.trace(ROUTE, null);
+        assertSame(request, trace.inject(request));
+        assertTrue(tracer.spans().isEmpty());
+
+        trace.wrap(Observable.just(request)).subscribe(new TestSubscriber<Request>());
+        InMemoryTracer.RecordedSpan span = tracer.spans().get(0);
+        assertEquals("user", span.name());
+        assertEquals("/users/{id}", span.url());
+        assertTrue(span.ended());
+        assertNull(span.error());
+
+        String traceparent = "00-" + span.traceId() + "-" + span.spanId() + "-01";
+        assertEquals(55, traceparent.length());
+        assertEquals(traceparent, span.traceparent());
+        assertEquals(traceparent, trace.inject(request).header("traceparent"));
+        assertNull(trace.inject(request).header("tracestate"));
+    }
+
+    @Test
+    public void testEventsAndErrors() {
+        final Tracer.Trace trace = tracer.trace(ROUTE, null);
+        PublishSubject<String> exchange = PublishSubject.create();
+        TestSubscriber<String> subscriber = new TestSubscriber<String>();
+        trace.wrap(exchange).subscribe(subscriber);
+
+        trace.event(Tracer.RETRY, 0);
+        trace.event(Tracer.CONVERSION, 1500);
+        IOException error = new IOException("offline");
+        exchange.onError(error);
+        trace.event(Tracer.RETRY, 0);
+
+        InMemoryTracer.RecordedSpan span = tracer.spans().get(0);
+        assertEquals("[retry, conversion]", span.events().toString());
+        assertEquals(1500, span.events().get(1).elapsedNanos());
+        assertSame(error, span.error());
+    }
+
+    @Test
+    public void testUnsubscribeCancels() {
+        Tracer.Trace trace = tracer.trace(ROUTE, null);
+        PublishSubject<String> exchange = PublishSubject.create();
+        Subscription subscription = trace.wrap(exchange).subscribe(new TestSubscriber<String>());
+        subscription.unsubscribe();
+
+        InMemoryTracer.RecordedSpan span = tracer.spans().get(0);
+        assertTrue(span.ended());
+        assertTrue(span.error() instanceof CancellationException);
+    }
+
+    @Test
+    public void testEndWhileStartingEndsSpan() {
+        final Tracer.Trace[] trace = new Tracer.Trace[1];
+        Tracer starting = new Tracer() {
+            @Override public Span start(Route route, Object context) {
+                // A concurrent unsubscribe, after start() has claimed the span but before it has one.
+                trace[0].end(new CancellationException());
+                return tracer.start(route, context);
+            }
+        };
+        trace[0] = starting.trace(ROUTE, null);
+        trace[0].start();
+
+        InMemoryTracer.RecordedSpan span = tracer.spans().get(0);
+        assertTrue(span.ended());
+        assertTrue(span.error() instanceof CancellationException);
+        trace[0].end(null);
+        assertTrue(span.error() instanceof CancellationException);
+    }
+
+    @Test
+    public void testContextSpanIsParent() {
+        Tracer.Trace outer = tracer.trace(ROUTE, null);
+        outer.wrap(Observable.just("")).subscribe(new TestSubscriber<String>());
+        InMemoryTracer.RecordedSpan parent = tracer.spans().get(0);
+
+        tracer.trace(ROUTE, parent).wrap(Observable.just("")).subscribe(new TestSubscriber<String>());
+        InMemoryTracer.RecordedSpan child = tracer.spans().get(1);
+        assertEquals(parent.traceId(), child.traceId());
+        assertEquals(parent.spanId(), child.parentId());
+        assertFalse(parent.spanId().equals(child.spanId()));
+    }
+
+    @Test
+    public void testNoopTracesNothing() {
+        Tracer.Trace trace = Tracer.NOOP.trace(ROUTE, null);
+        Observable<Request> exchange = Observable.just(request);
+        assertSame(exchange, trace.wrap(exchange));
+        assertSame(request, trace.inject(request));
+        trace.event(Tracer.RETRY, 0);
+    }
+}
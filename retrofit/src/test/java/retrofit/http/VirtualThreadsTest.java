@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 8tory, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package retrofit.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import rx.Scheduler;
+import rx.functions.Action0;
+import rx.schedulers.Schedulers;
+
+public class VirtualThreadsTest {
+    @Test
+    public void testPlatformThreadsAreNotVirtual() {
+        assertFalse(VirtualThreads.isVirtual(Thread.currentThread()));
+        Scheduler io = Schedulers.io();
+        assertSame(io, VirtualThreads.unlessVirtual(io));
+    }
+
+    @Test
+    public void testFallsBackWithoutVirtualThreads() {
+        if (VirtualThreads.available()) {
+            assertNotNull(VirtualThreads.executor());
+        } else {
+            assertNull(VirtualThreads.executor());
+            assertSame(Schedulers.io(), VirtualThreads.scheduler());
+        }
+    }
+
+    @Test
+    public void testSchedulerRunsOnVirtualThreadsWhenAvailable() throws InterruptedException {
+        final AtomicBoolean virtual = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(1);
+        VirtualThreads.scheduler().createWorker().schedule(new Action0() {
+            @Override public void call() {
+                virtual.set(VirtualThreads.isVirtual(Thread.currentThread()));
+                done.countDown();
+            }
+        });
+        done.await(5, TimeUnit.SECONDS);
+        assertEquals(VirtualThreads.available(), virtual.get());
+    }
+}